@@ -0,0 +1,84 @@
+package com.lyndir.lhunath.opal.crypto;
+
+import java.security.spec.AlgorithmParameterSpec;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+
+
+/**
+ * AES block cipher modes that use a random IV per message and need no padding.
+ *
+ * <p> Unlike CBC, both modes can be decrypted without chaining blocks, which is what makes the chunked format of {@link
+ * CryptUtils#encryptChunked(byte[], byte[], AESMode, int)} possible. </p>
+ *
+ * @author lhunath
+ */
+public enum AESMode {
+
+    /**
+     * Galois/Counter Mode: authenticated encryption.  Tampered data fails to decrypt.
+     */
+    GCM( "AES/GCM/NoPadding", 12, 16 ),
+
+    /**
+     * Counter Mode: unauthenticated encryption.  Use only when the data is authenticated by other means.
+     */
+    CTR( "AES/CTR/NoPadding", 16, 0 );
+
+    private final String transformation;
+    private final int    ivBytes;
+    private final int    tagBytes;
+
+    AESMode(final String transformation, final int ivBytes, final int tagBytes) {
+
+        this.transformation = transformation;
+        this.ivBytes = ivBytes;
+        this.tagBytes = tagBytes;
+    }
+
+    public String getTransformation() {
+
+        return transformation;
+    }
+
+    /**
+     * @return The amount of IV bytes that prefix each encrypted message.
+     */
+    public int getIVBytes() {
+
+        return ivBytes;
+    }
+
+    /**
+     * @return The amount of authentication tag bytes that suffix each encrypted message.
+     */
+    public int getTagBytes() {
+
+        return tagBytes;
+    }
+
+    public boolean isAuthenticated() {
+
+        return tagBytes > 0;
+    }
+
+    /**
+     * @return The amount of bytes an encrypted message takes beyond the size of its plain data.
+     */
+    public int getOverhead() {
+
+        return ivBytes + tagBytes;
+    }
+
+    AlgorithmParameterSpec getParameters(final byte[] data, final int ivOffset) {
+
+        switch (this) {
+            case GCM:
+                return new GCMParameterSpec( tagBytes * Byte.SIZE, data, ivOffset, ivBytes );
+            case CTR:
+                return new IvParameterSpec( data, ivOffset, ivBytes );
+        }
+
+        throw new IllegalArgumentException( "Unsupported mode: " + this );
+    }
+}
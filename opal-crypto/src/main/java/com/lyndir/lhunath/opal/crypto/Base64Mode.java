@@ -0,0 +1,67 @@
+package com.lyndir.lhunath.opal.crypto;
+
+import java.util.Base64;
+
+
+/**
+ * Base64 alphabets and line formats, as defined by RFC 4648 and RFC 2045.
+ *
+ * @author lhunath
+ */
+public enum Base64Mode {
+
+    /**
+     * The basic alphabet ({@code +} and {@code /}), padded, on a single line.
+     */
+    BASIC( Base64.getEncoder(), Base64.getDecoder() ),
+
+    /**
+     * The URL and filename safe alphabet ({@code -} and {@code _}), padded, on a single line.
+     */
+    URL_SAFE( Base64.getUrlEncoder(), Base64.getUrlDecoder() ),
+
+    /**
+     * The URL and filename safe alphabet without padding, for use in URLs and tokens.
+     */
+    URL_SAFE_UNPADDED( Base64.getUrlEncoder().withoutPadding(), Base64.getUrlDecoder() ),
+
+    /**
+     * The basic alphabet in lines of at most {@value #MIME_LINE_LENGTH} characters separated by CRLF.  Decoding ignores characters
+     * outside the alphabet, such as line separators.
+     */
+    MIME( Base64.getMimeEncoder(), Base64.getMimeDecoder() );
+
+    static final int MIME_LINE_LENGTH = 76;
+
+    private final Base64.Encoder encoder;
+    private final Base64.Decoder decoder;
+
+    Base64Mode(final Base64.Encoder encoder, final Base64.Decoder decoder) {
+
+        this.encoder = encoder;
+        this.decoder = decoder;
+    }
+
+    public Base64.Encoder getEncoder() {
+
+        return encoder;
+    }
+
+    public Base64.Decoder getDecoder() {
+
+        return decoder;
+    }
+
+    /**
+     * @return The amount of characters that encoding the given amount of bytes produces.
+     */
+    public long getEncodedLength(final long bytes) {
+
+        long length = this == URL_SAFE_UNPADDED? (bytes * 4 + 2) / 3: (bytes + 2) / 3 * 4;
+        if (this == MIME && length > 0)
+            // CRLF between lines.
+            length += (length - 1) / MIME_LINE_LENGTH * 2;
+
+        return length;
+    }
+}
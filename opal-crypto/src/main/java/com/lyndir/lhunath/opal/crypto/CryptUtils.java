@@ -4,15 +4,19 @@ import static com.google.common.base.Preconditions.*;
 import static com.lyndir.lhunath.opal.system.util.StringUtils.*;
 
 import com.lyndir.lhunath.opal.system.logging.Logger;
+import java.io.*;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.security.*;
 import java.security.spec.AlgorithmParameterSpec;
-import java.util.Random;
+import java.util.*;
+import java.util.regex.Pattern;
+import java.util.stream.IntStream;
 import javax.annotation.Nullable;
 import javax.crypto.*;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
-import org.bouncycastle.util.encoders.Base64;
 
 
 /**
@@ -22,8 +26,26 @@ import org.bouncycastle.util.encoders.Base64;
  */
 public abstract class CryptUtils {
 
-    private static final Logger logger = Logger.get( CryptUtils.class );
-    private static final Random random = new SecureRandom();
+    private static final Logger  logger     = Logger.get( CryptUtils.class );
+    private static final Random  random     = new SecureRandom();
+    private static final Pattern WHITESPACE = Pattern.compile( "\\s+" );
+
+    private static final String AES_CBC_PADDING    = "AES/CBC/PKCS5Padding";
+    private static final String AES_CBC_NO_PADDING = "AES/CBC/NoPadding";
+    private static final int    STREAM_BUFFER_SIZE = 8192;
+    private static final int    CHUNK_HEADER_BYTES = Integer.SIZE / Byte.SIZE;
+    private static final int    CHUNK_AAD_BYTES    = Integer.SIZE / Byte.SIZE + 1;
+
+    /**
+     * Ciphers are not thread-safe but expensive to look up from the provider, so each thread keeps one per transformation.
+     */
+    private static final ThreadLocal<Map<String, Cipher>> ciphers = new ThreadLocal<Map<String, Cipher>>() {
+        @Override
+        protected Map<String, Cipher> initialValue() {
+
+            return new HashMap<>();
+        }
+    };
 
     /**
      * Encrypt the given data using the given key with AES at 128 bit in CBC.
@@ -41,8 +63,7 @@ public abstract class CryptUtils {
             throws IllegalBlockSizeException {
 
         try {
-            String cipherTransformation = String.format( "AES/CBC/%s", usePadding? "PKCS5Padding": "NoPadding" );
-            return doCrypt( plainData, key, cipherTransformation, 128, Cipher.ENCRYPT_MODE );
+            return doCrypt( plainData, key, cbcTransformation( usePadding ), 128, Cipher.ENCRYPT_MODE );
         }
         catch (final BadPaddingException e) {
             throw logger.bug( e, "Should only occur in decryption mode." );
@@ -64,14 +85,367 @@ public abstract class CryptUtils {
             throws BadPaddingException {
 
         try {
-            String cipherTransformation = String.format( "AES/CBC/%s", usePadding? "PKCS5Padding": "NoPadding" );
-            return doCrypt( encryptedData, key, cipherTransformation, 128, Cipher.DECRYPT_MODE );
+            return doCrypt( encryptedData, key, cbcTransformation( usePadding ), 128, Cipher.DECRYPT_MODE );
         }
         catch (final IllegalBlockSizeException e) {
             throw logger.bug( e, "Should only occur in encryption mode." );
         }
     }
 
+    /**
+     * Encrypt the given data using the given key with AES at 128 bit in CBC.
+     *
+     * <p> The plain data is read from the buffer's position up to its limit and the encrypted data is written into the output buffer
+     * from its position.  Use direct buffers to let the provider operate on them without copying them onto the heap. </p>
+     *
+     * @param plainData     The data to encrypt.
+     * @param encryptedData The buffer to write the encrypted data into.
+     * @param key           The encryption key to encrypt the data with.
+     * @param usePadding    Whether to use PKCS7 padding during the encryption (needed for messages that do not fit the block size).
+     *
+     * @return The amount of bytes written into {@code encryptedData}.
+     *
+     * @throws IllegalBlockSizeException {@code usePadding} was {@code false} but the plain text data was not a multiple of the
+     *                                   block size.
+     */
+    public static int encrypt(final ByteBuffer plainData, final ByteBuffer encryptedData, final byte[] key, final boolean usePadding)
+            throws IllegalBlockSizeException {
+
+        try {
+            return doCrypt( plainData, encryptedData, key, cbcTransformation( usePadding ), 128, Cipher.ENCRYPT_MODE );
+        }
+        catch (final BadPaddingException e) {
+            throw logger.bug( e, "Should only occur in decryption mode." );
+        }
+    }
+
+    /**
+     * Decrypt the given data using the given key with AES at 128 bit in CBC.
+     *
+     * <p> The encrypted data is read from the buffer's position up to its limit and the plain data is written into the output buffer
+     * from its position.  Use direct buffers to let the provider operate on them without copying them onto the heap. </p>
+     *
+     * @param encryptedData The data to decrypt.
+     * @param plainData     The buffer to write the decrypted data into.
+     * @param key           The encryption key to decrypt the data with.
+     * @param usePadding    Whether to use PKCS7 padding during the encryption (needed for messages that do not fit the block size).
+     *
+     * @return The amount of bytes written into {@code plainData}.
+     *
+     * @throws BadPaddingException {@code usePadding} was {@code true} but the encrypted data was not padded.
+     */
+    public static int decrypt(final ByteBuffer encryptedData, final ByteBuffer plainData, final byte[] key, final boolean usePadding)
+            throws BadPaddingException {
+
+        try {
+            return doCrypt( encryptedData, plainData, key, cbcTransformation( usePadding ), 128, Cipher.DECRYPT_MODE );
+        }
+        catch (final IllegalBlockSizeException e) {
+            throw logger.bug( e, "Should only occur in encryption mode." );
+        }
+    }
+
+    /**
+     * Encrypt the data from the given stream using the given key with AES at 128 bit in CBC.
+     *
+     * <p> The data is processed through a fixed-size working buffer, so the size of the data does not affect memory use.  Neither
+     * stream is closed. </p>
+     *
+     * @param plainData     The stream that provides the data to encrypt.
+     * @param encryptedData The stream to write the encrypted data to.
+     * @param key           The encryption key to encrypt the data with.
+     * @param usePadding    Whether to use PKCS7 padding during the encryption (needed for messages that do not fit the block size).
+     *
+     * @return The amount of bytes written to {@code encryptedData}.
+     *
+     * @throws IllegalBlockSizeException {@code usePadding} was {@code false} but the plain text data was not a multiple of the
+     *                                   block size.
+     */
+    public static long encrypt(final InputStream plainData, final OutputStream encryptedData, final byte[] key, final boolean usePadding)
+            throws IOException, IllegalBlockSizeException {
+
+        try {
+            return doCrypt( plainData, encryptedData, key, cbcTransformation( usePadding ), 128, Cipher.ENCRYPT_MODE );
+        }
+        catch (final BadPaddingException e) {
+            throw logger.bug( e, "Should only occur in decryption mode." );
+        }
+    }
+
+    /**
+     * Decrypt the data from the given stream using the given key with AES at 128 bit in CBC.
+     *
+     * <p> The data is processed through a fixed-size working buffer, so the size of the data does not affect memory use.  Neither
+     * stream is closed. </p>
+     *
+     * @param encryptedData The stream that provides the data to decrypt.
+     * @param plainData     The stream to write the decrypted data to.
+     * @param key           The encryption key to decrypt the data with.
+     * @param usePadding    Whether to use PKCS7 padding during the encryption (needed for messages that do not fit the block size).
+     *
+     * @return The amount of bytes written to {@code plainData}.
+     *
+     * @throws BadPaddingException {@code usePadding} was {@code true} but the encrypted data was not padded.
+     */
+    public static long decrypt(final InputStream encryptedData, final OutputStream plainData, final byte[] key, final boolean usePadding)
+            throws IOException, BadPaddingException {
+
+        try {
+            return doCrypt( encryptedData, plainData, key, cbcTransformation( usePadding ), 128, Cipher.DECRYPT_MODE );
+        }
+        catch (final IllegalBlockSizeException e) {
+            throw logger.bug( e, "Should only occur in encryption mode." );
+        }
+    }
+
+    /**
+     * Wrap the given stream such that data written to it is encrypted using the given key with AES at 128 bit in CBC.
+     *
+     * <p> The final block is written when the returned stream is closed. </p>
+     *
+     * @param encryptedData The stream to write the encrypted data to.
+     * @param key           The encryption key to encrypt the data with.
+     * @param usePadding    Whether to use PKCS7 padding during the encryption (needed for messages that do not fit the block size).
+     *
+     * @return A stream that accepts plain data.
+     */
+    public static OutputStream encrypting(final OutputStream encryptedData, final byte[] key, final boolean usePadding) {
+
+        // The stream outlives this call, so it cannot borrow this thread's pooled cipher.
+        return new CipherOutputStream( encryptedData,
+                                       initCipher( newCipher( cbcTransformation( usePadding ) ), key, 128, Cipher.ENCRYPT_MODE ) );
+    }
+
+    /**
+     * Wrap the given stream such that data read from it is decrypted using the given key with AES at 128 bit in CBC.
+     *
+     * @param encryptedData The stream that provides the data to decrypt.
+     * @param key           The encryption key to decrypt the data with.
+     * @param usePadding    Whether to use PKCS7 padding during the encryption (needed for messages that do not fit the block size).
+     *
+     * @return A stream that provides plain data.
+     */
+    public static InputStream decrypting(final InputStream encryptedData, final byte[] key, final boolean usePadding) {
+
+        // The stream outlives this call, so it cannot borrow this thread's pooled cipher.
+        return new CipherInputStream( encryptedData,
+                                      initCipher( newCipher( cbcTransformation( usePadding ) ), key, 128, Cipher.DECRYPT_MODE ) );
+    }
+
+    /**
+     * Encrypt the given data using the given key with AES in the given mode.
+     *
+     * <p> A random IV is generated for the message and prefixed to the result.  In {@link AESMode#GCM} an authentication tag is
+     * appended to it. </p>
+     *
+     * @param plainData The data to encrypt.
+     * @param key       The encryption key to encrypt the data with.  Must be 128, 192 or 256 bits.
+     * @param mode      The block cipher mode to encrypt the data in.
+     *
+     * @return The IV, followed by the encrypted version of the plain text data as encrypted by the given key.
+     *
+     * @throws IllegalArgumentException The encrypted data would not fit in an array.
+     */
+    public static byte[] encrypt(final byte[] plainData, final byte[] key, final AESMode mode) {
+
+        byte[] encryptedData = new byte[arraySize( (long) plainData.length + mode.getOverhead() )];
+        try {
+            encryptChunk( plainData, 0, plainData.length, encryptedData, 0, newAESKey( key ), mode, null );
+        }
+        catch (final GeneralSecurityException e) {
+            throw logger.bug( e );
+        }
+
+        return encryptedData;
+    }
+
+    /**
+     * Decrypt the given data using the given key with AES in the given mode.
+     *
+     * @param encryptedData The data to decrypt, as produced by {@link #encrypt(byte[], byte[], AESMode)}.
+     * @param key           The encryption key to decrypt the data with.  Must be 128, 192 or 256 bits.
+     * @param mode          The block cipher mode the data was encrypted in.
+     *
+     * @return The decrypted version of the encrypted data as decrypted by the given key.
+     *
+     * @throws BadPaddingException The mode is authenticated and the data was not encrypted with the given key or has been tampered
+     *                             with.
+     */
+    public static byte[] decrypt(final byte[] encryptedData, final byte[] key, final AESMode mode)
+            throws BadPaddingException {
+
+        checkArgument( encryptedData.length >= mode.getOverhead(), "Encrypted data is too short to hold an IV and tag." );
+
+        byte[] plainData = new byte[encryptedData.length - mode.getOverhead()];
+        decryptChunk( encryptedData, 0, encryptedData.length, plainData, 0, newAESKey( key ), mode, null );
+
+        return plainData;
+    }
+
+    /**
+     * Encrypt the given data using the given key with AES in the given mode, splitting it into independently encrypted chunks.
+     *
+     * <p> Each chunk gets its own random IV and is encrypted in parallel on the common fork-join pool.  In {@link AESMode#GCM} the
+     * chunk's index and whether it is the last chunk are authenticated with it, so chunks cannot be reordered, dropped or
+     * truncated without failing decryption. </p>
+     *
+     * <p> The result is formatted as the chunk size (4 bytes, big-endian) followed by each encrypted chunk, as produced by {@link
+     * #encrypt(byte[], byte[], AESMode)}. </p>
+     *
+     * @param plainData The data to encrypt.
+     * @param key       The encryption key to encrypt the data with.  Must be 128, 192 or 256 bits.
+     * @param mode      The block cipher mode to encrypt the chunks in.
+     * @param chunkSize The amount of plain data bytes in each chunk.  Only the last chunk may be smaller.
+     *
+     * @return The chunked encrypted version of the plain text data as encrypted by the given key.
+     *
+     * @throws IllegalArgumentException The encrypted data would not fit in an array.
+     */
+    public static byte[] encryptChunked(final byte[] plainData, final byte[] key, final AESMode mode, final int chunkSize) {
+
+        checkArgument( chunkSize > 0, "Chunk size must be positive." );
+
+        final SecretKeySpec keySpec       = newAESKey( key );
+        final int           chunks        = (int) Math.max( 1, ((long) plainData.length + chunkSize - 1) / chunkSize );
+        final byte[]        encryptedData = new byte[arraySize(
+                CHUNK_HEADER_BYTES + (long) plainData.length + (long) chunks * mode.getOverhead() )];
+        ByteBuffer.wrap( encryptedData ).putInt( chunkSize );
+
+        try {
+            forEachChunk( chunks, chunk -> {
+                int plainOffset = chunk * chunkSize;
+                encryptChunk( plainData, plainOffset, Math.min( chunkSize, plainData.length - plainOffset ), //
+                              encryptedData, CHUNK_HEADER_BYTES + chunk * (chunkSize + mode.getOverhead()), keySpec, mode,
+                              chunkAAD( chunk, chunk == chunks - 1 ) );
+            } );
+        }
+        catch (final GeneralSecurityException e) {
+            throw logger.bug( e );
+        }
+
+        return encryptedData;
+    }
+
+    /**
+     * Decrypt the given chunked data using the given key with AES in the given mode, decrypting its chunks in parallel.
+     *
+     * @param encryptedData The data to decrypt, as produced by {@link #encryptChunked(byte[], byte[], AESMode, int)}.
+     * @param key           The encryption key to decrypt the data with.  Must be 128, 192 or 256 bits.
+     * @param mode          The block cipher mode the chunks were encrypted in.
+     *
+     * @return The decrypted version of the encrypted data as decrypted by the given key.
+     *
+     * @throws BadPaddingException The mode is authenticated and the data was not encrypted with the given key or has been tampered
+     *                             with.
+     */
+    public static byte[] decryptChunked(final byte[] encryptedData, final byte[] key, final AESMode mode)
+            throws BadPaddingException {
+
+        checkArgument( encryptedData.length >= CHUNK_HEADER_BYTES + mode.getOverhead(), "Encrypted data is too short to hold a chunk." );
+        final int encryptedLength = encryptedData.length - CHUNK_HEADER_BYTES;
+        final int headerChunkSize = ByteBuffer.wrap( encryptedData ).getInt();
+        checkArgument( headerChunkSize > 0, "Encrypted data has an invalid chunk size: %s", headerChunkSize );
+        // A chunk size beyond the data means there is a single chunk; bound it before the arithmetic below can overflow.
+        final int chunkSize = Math.min( headerChunkSize, encryptedLength - mode.getOverhead() );
+
+        final SecretKeySpec keySpec            = newAESKey( key );
+        final int           encryptedChunkSize = chunkSize + mode.getOverhead();
+        final int           chunks             = (int) Math.max( 1, ((long) encryptedLength + encryptedChunkSize - 1) / encryptedChunkSize );
+        checkArgument( encryptedLength - (long) (chunks - 1) * encryptedChunkSize >= mode.getOverhead(),
+                       "Encrypted data's last chunk is too short to hold an IV and tag." );
+        final byte[] plainData = new byte[arraySize( encryptedLength - (long) chunks * mode.getOverhead() )];
+
+        try {
+            forEachChunk( chunks, chunk -> {
+                int encryptedOffset = CHUNK_HEADER_BYTES + chunk * encryptedChunkSize;
+                decryptChunk( encryptedData, encryptedOffset, Math.min( encryptedChunkSize, encryptedData.length - encryptedOffset ),
+                              plainData, chunk * chunkSize, keySpec, mode, chunkAAD( chunk, chunk == chunks - 1 ) );
+            } );
+        }
+        catch (final BadPaddingException e) {
+            throw e;
+        }
+        catch (final GeneralSecurityException e) {
+            throw logger.bug( e );
+        }
+
+        return plainData;
+    }
+
+    /**
+     * @throws IllegalArgumentException The size is too large for an array.
+     */
+    private static int arraySize(final long size) {
+
+        checkArgument( size <= Integer.MAX_VALUE, "Result of %s bytes is too large for an array.", size );
+        return (int) size;
+    }
+
+    private static void encryptChunk(final byte[] input, final int inputOffset, final int inputLength, final byte[] output,
+                                     final int outputOffset, final SecretKeySpec key, final AESMode mode, @Nullable final byte[] aad)
+            throws GeneralSecurityException {
+
+        byte[] iv = new byte[mode.getIVBytes()];
+        random.nextBytes( iv );
+        System.arraycopy( iv, 0, output, outputOffset, iv.length );
+
+        Cipher cipher = getCipher( mode.getTransformation() );
+        cipher.init( Cipher.ENCRYPT_MODE, key, mode.getParameters( iv, 0 ) );
+        if (aad != null && mode.isAuthenticated())
+            cipher.updateAAD( aad );
+        cipher.doFinal( input, inputOffset, inputLength, output, outputOffset + iv.length );
+    }
+
+    private static void decryptChunk(final byte[] input, final int inputOffset, final int inputLength, final byte[] output,
+                                     final int outputOffset, final SecretKeySpec key, final AESMode mode, @Nullable final byte[] aad)
+            throws BadPaddingException {
+
+        try {
+            Cipher cipher = getCipher( mode.getTransformation() );
+            cipher.init( Cipher.DECRYPT_MODE, key, mode.getParameters( input, inputOffset ) );
+            if (aad != null && mode.isAuthenticated())
+                cipher.updateAAD( aad );
+            cipher.doFinal( input, inputOffset + mode.getIVBytes(), inputLength - mode.getIVBytes(), output, outputOffset );
+        }
+        catch (final InvalidKeyException | InvalidAlgorithmParameterException e) {
+            throw logger.bug( e, "Key or IV is inappropriate for cipher." );
+        }
+        catch (final IllegalBlockSizeException | ShortBufferException e) {
+            throw logger.bug( e, "Output is sized to hold the chunk." );
+        }
+    }
+
+    private static byte[] chunkAAD(final int chunk, final boolean last) {
+
+        return ByteBuffer.allocate( CHUNK_AAD_BYTES ).putInt( chunk ).put( (byte) (last? 1: 0) ).array();
+    }
+
+    private static void forEachChunk(final int chunks, final ChunkOperation operation)
+            throws GeneralSecurityException {
+
+        try {
+            IntStream.range( 0, chunks ).parallel().forEach( chunk -> {
+                try {
+                    operation.run( chunk );
+                }
+                catch (final GeneralSecurityException e) {
+                    throw new ChunkFailedException( e );
+                }
+            } );
+        }
+        catch (final ChunkFailedException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static SecretKeySpec newAESKey(final byte[] key) {
+
+        checkArgument( key.length == 16 || key.length == 24 || key.length == 32, //
+                       "AES keys must be 128, 192 or 256 bits, got: %s bits", key.length * Byte.SIZE );
+
+        return new SecretKeySpec( key, "AES" );
+    }
+
     /**
      * Encrypt or decrypt the given data using the given key using the given cipher.
      *
@@ -91,21 +465,117 @@ public abstract class CryptUtils {
                                  final int mode)
             throws IllegalBlockSizeException, BadPaddingException {
 
-        // Truncate key to the block size.
-        int blockByteSize = blockBitSize / Byte.SIZE;
-        byte[] blockSizedKey = key;
-        if (blockSizedKey.length != blockByteSize) {
-            blockSizedKey = new byte[blockByteSize];
-            System.arraycopy( key, 0, blockSizedKey, 0, blockByteSize );
+        return initCipher( getCipher( cipherTransformation ), key, blockBitSize, mode ).doFinal( data );
+    }
+
+    /**
+     * Encrypt or decrypt the given data using the given key using the given cipher.
+     *
+     * @param input                The data to process, from its position up to its limit.
+     * @param output               The buffer to write the result into, from its position.  It must have room for the whole result.
+     * @param key                  The encryption key to process the data with.
+     * @param cipherTransformation The cipher to use for performing the operation.
+     * @param blockBitSize         The bit-length of the blocks the cipher should operate on.  The key will be trimmed to this size.
+     * @param mode                 {@code Cipher.ENCRYPT_MODE}  or {@code Cipher.DECRYPT_MODE}
+     *
+     * @return The amount of bytes written into {@code output}.
+     *
+     * @throws IllegalBlockSizeException While encrypting without padding, the plain text data's length is not a multiple of the cipher
+     *                                   block size.
+     * @throws BadPaddingException       While decrypting with padding, the encrypted data was not padded during encryption.
+     */
+    public static int doCrypt(final ByteBuffer input, final ByteBuffer output, final byte[] key, final String cipherTransformation,
+                              final int blockBitSize, final int mode)
+            throws IllegalBlockSizeException, BadPaddingException {
+
+        Cipher cipher = initCipher( getCipher( cipherTransformation ), key, blockBitSize, mode );
+        checkArgument( output.remaining() >= cipher.getOutputSize( input.remaining() ),
+                       "Output buffer has %s bytes remaining, but the result can take up to %s bytes.", output.remaining(),
+                       cipher.getOutputSize( input.remaining() ) );
+
+        try {
+            return cipher.doFinal( input, output );
         }
+        catch (final ShortBufferException e) {
+            throw logger.bug( e, "Output buffer size was checked." );
+        }
+    }
+
+    /**
+     * Encrypt or decrypt the data from the given stream using the given key using the given cipher.
+     *
+     * @param input                The stream that provides the data to process.  It is read until exhausted but not closed.
+     * @param output               The stream to write the result to.  It is not closed.
+     * @param key                  The encryption key to process the data with.
+     * @param cipherTransformation The cipher to use for performing the operation.
+     * @param blockBitSize         The bit-length of the blocks the cipher should operate on.  The key will be trimmed to this size.
+     * @param mode                 {@code Cipher.ENCRYPT_MODE}  or {@code Cipher.DECRYPT_MODE}
+     *
+     * @return The amount of bytes written to {@code output}.
+     *
+     * @throws IllegalBlockSizeException While encrypting without padding, the plain text data's length is not a multiple of the cipher
+     *                                   block size.
+     * @throws BadPaddingException       While decrypting with padding, the encrypted data was not padded during encryption.
+     */
+    public static long doCrypt(final InputStream input, final OutputStream output, final byte[] key, final String cipherTransformation,
+                               final int blockBitSize, final int mode)
+            throws IOException, IllegalBlockSizeException, BadPaddingException {
+
+        Cipher cipher      = initCipher( getCipher( cipherTransformation ), key, blockBitSize, mode );
+        byte[] inBuffer    = new byte[STREAM_BUFFER_SIZE];
+        byte[] outBuffer   = new byte[STREAM_BUFFER_SIZE + 2 * Math.max( cipher.getBlockSize(), 1 )];
+        long   outputBytes = 0;
 
-        // Encrypt data with key.
         try {
-            Cipher                 cipher     = Cipher.getInstance( cipherTransformation );
-            AlgorithmParameterSpec parameters = new IvParameterSpec( new byte[blockByteSize] );
-            cipher.init( mode, new SecretKeySpec( blockSizedKey, "AES" ), parameters );
+            for (int read; (read = input.read( inBuffer )) != -1; ) {
+                int written = cipher.update( inBuffer, 0, read, outBuffer );
+                output.write( outBuffer, 0, written );
+                outputBytes += written;
+            }
 
-            return cipher.doFinal( data );
+            int written = cipher.doFinal( outBuffer, 0 );
+            output.write( outBuffer, 0, written );
+            return outputBytes + written;
+        }
+        catch (final ShortBufferException e) {
+            throw logger.bug( e, "Output buffer is sized to hold any pending blocks." );
+        }
+    }
+
+    /**
+     * @param usePadding Whether to use PKCS7 padding.
+     *
+     * @return The transformation for AES in CBC mode.
+     */
+    private static String cbcTransformation(final boolean usePadding) {
+
+        return usePadding? AES_CBC_PADDING: AES_CBC_NO_PADDING;
+    }
+
+    /**
+     * Obtain the current thread's cipher for the given transformation.
+     *
+     * <p> The cipher is shared by all operations on this thread, so it must be (re-)initialized before use and must not be used
+     * after returning control to the caller. </p>
+     *
+     * @param cipherTransformation The cipher transformation.
+     *
+     * @return A cipher for the given transformation, owned by the current thread.
+     */
+    private static Cipher getCipher(final String cipherTransformation) {
+
+        Map<String, Cipher> threadCiphers = ciphers.get();
+        Cipher cipher = threadCiphers.get( cipherTransformation );
+        if (cipher == null)
+            threadCiphers.put( cipherTransformation, cipher = newCipher( cipherTransformation ) );
+
+        return cipher;
+    }
+
+    private static Cipher newCipher(final String cipherTransformation) {
+
+        try {
+            return Cipher.getInstance( cipherTransformation );
         }
         catch (final NoSuchAlgorithmException e) {
             throw new IllegalStateException(
@@ -116,6 +586,24 @@ public abstract class CryptUtils {
                     strf( "Cipher transformation: %s, uses a padding scheme that is not valid or not supported by the provider.",
                           cipherTransformation ), e );
         }
+    }
+
+    private static Cipher initCipher(final Cipher cipher, final byte[] key, final int blockBitSize, final int mode) {
+
+        // Truncate key to the block size.
+        int blockByteSize = blockBitSize / Byte.SIZE;
+        byte[] blockSizedKey = key;
+        if (blockSizedKey.length != blockByteSize) {
+            blockSizedKey = new byte[blockByteSize];
+            System.arraycopy( key, 0, blockSizedKey, 0, blockByteSize );
+        }
+
+        try {
+            AlgorithmParameterSpec parameters = new IvParameterSpec( new byte[blockByteSize] );
+            cipher.init( mode, new SecretKeySpec( blockSizedKey, "AES" ), parameters );
+
+            return cipher;
+        }
         catch (final InvalidKeyException e) {
             throw logger.bug( e, "Key is inappropriate for cipher." );
         }
@@ -163,7 +651,7 @@ public abstract class CryptUtils {
      *
      * @param plainData The plain data.
      *
-     * @return This convenience method returns an empty string when the byte array is {@code null} or empty.
+     * @return This convenience method returns {@code null} when the byte array is {@code null} or empty.
      */
     @Nullable
     public static String encodeBase64(@Nullable final byte[] plainData) {
@@ -171,21 +659,246 @@ public abstract class CryptUtils {
         if (plainData == null || plainData.length == 0)
             return null;
 
-        return new String( Base64.encode( plainData ), StandardCharsets.UTF_8 );
+        return encodeBase64( plainData, Base64Mode.BASIC );
     }
 
     /**
-     * Base64 decode a string.
+     * Base64 decode a string in the basic alphabet.  Whitespace, such as the line breaks of MIME encoded data, is ignored.
      *
      * @param b64Data The base64 encoded data.
      *
      * @return This convenience method returns an empty byte array when the string is {@code null} or empty.
+     *
+     * @throws IllegalArgumentException The data contains characters outside the Base64 alphabet other than whitespace.
      */
     public static byte[] decodeBase64(@Nullable final String b64Data) {
 
         if (b64Data == null || b64Data.isEmpty())
             return new byte[0];
 
-        return Base64.decode( b64Data.getBytes( StandardCharsets.UTF_8 ) );
+        try {
+            return Base64Mode.BASIC.getDecoder().decode( b64Data );
+        }
+        catch (final IllegalArgumentException ignored) {
+            // Not strictly Base64, eg. wrapped in lines.  Unlike the MIME decoder, still reject any other characters.
+            return Base64Mode.BASIC.getDecoder().decode( WHITESPACE.matcher( b64Data ).replaceAll( "" ) );
+        }
+    }
+
+    /**
+     * @param plainData The plain data.
+     * @param mode      The Base64 alphabet and line format to encode with.
+     *
+     * @return The Base64 encoded data.
+     */
+    public static String encodeBase64(final byte[] plainData, final Base64Mode mode) {
+
+        return new String( mode.getEncoder().encode( plainData ), StandardCharsets.ISO_8859_1 );
+    }
+
+    /**
+     * @param b64Data The base64 encoded data.
+     * @param mode    The Base64 alphabet and line format to decode with.
+     *
+     * @return The plain data.
+     *
+     * @throws IllegalArgumentException The data is not valid in the given mode.
+     */
+    public static byte[] decodeBase64(final String b64Data, final Base64Mode mode) {
+
+        return mode.getDecoder().decode( b64Data );
+    }
+
+    /**
+     * Base64 encode the remaining bytes of one buffer into another.
+     *
+     * @param plainData The buffer to encode from.  Its position is advanced to its limit.
+     * @param b64Data   The buffer to write the encoded data to.  Its position is advanced past the encoded data.
+     * @param mode      The Base64 alphabet and line format to encode with.
+     *
+     * @return The amount of bytes written to {@code b64Data}.
+     *
+     * @throws BufferOverflowException {@code b64Data} does not have room for {@link Base64Mode#getEncodedLength(long)} bytes.  Neither
+     *                                 buffer is modified.
+     */
+    public static int encodeBase64(final ByteBuffer plainData, final ByteBuffer b64Data, final Base64Mode mode) {
+
+        long encodedLength = mode.getEncodedLength( plainData.remaining() );
+        if (encodedLength > b64Data.remaining())
+            throw new BufferOverflowException();
+
+        int start = b64Data.position();
+        try (OutputStream out = mode.getEncoder().wrap( new ByteBufferOutputStream( b64Data ) )) {
+            transfer( plainData, out );
+        }
+        catch (final IOException e) {
+            throw logger.bug( e, "Buffers don't throw I/O exceptions." );
+        }
+
+        return b64Data.position() - start;
+    }
+
+    /**
+     * Base64 decode the remaining bytes of one buffer into another.
+     *
+     * @param b64Data   The buffer to decode from.  Its position is advanced to its limit.
+     * @param plainData The buffer to write the decoded data to.  Its position is advanced past the decoded data.
+     * @param mode      The Base64 alphabet and line format to decode with.
+     *
+     * @return The amount of bytes written to {@code plainData}.
+     *
+     * @throws IllegalArgumentException The data is not valid in the given mode.
+     * @throws BufferOverflowException  {@code plainData} does not have room for the decoded data.
+     */
+    public static int decodeBase64(final ByteBuffer b64Data, final ByteBuffer plainData, final Base64Mode mode) {
+
+        int start = plainData.position();
+        try (InputStream in = mode.getDecoder().wrap( new ByteBufferInputStream( b64Data ) )) {
+            if (plainData.hasArray())
+                for (int read; plainData.hasRemaining() && (read = in.read( plainData.array(), plainData.arrayOffset() + plainData.position(),
+                                                                            plainData.remaining() )) >= 0; )
+                    plainData.position( plainData.position() + read );
+            else {
+                byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+                for (int read; (read = in.read( buffer, 0, Math.min( buffer.length, Math.max( 1, plainData.remaining() ) ) )) >= 0; )
+                    plainData.put( buffer, 0, read );
+            }
+
+            if (in.read() >= 0)
+                throw new BufferOverflowException();
+        }
+        catch (final IOException e) {
+            // The decoder reports invalid data as an IOException when it is wrapped around a stream.
+            throw new IllegalArgumentException( e.getMessage(), e );
+        }
+
+        return plainData.position() - start;
+    }
+
+    /**
+     * Wrap the given stream such that data written to it is Base64 encoded.
+     *
+     * <p> The final characters are written when the returned stream is closed, which also closes the given stream. </p>
+     *
+     * @param b64Data The stream to write the encoded data to.
+     * @param mode    The Base64 alphabet and line format to encode with.
+     *
+     * @return A stream that accepts plain data.
+     */
+    public static OutputStream encodingBase64(final OutputStream b64Data, final Base64Mode mode) {
+
+        return mode.getEncoder().wrap( b64Data );
+    }
+
+    /**
+     * Wrap the given stream such that data read from it is Base64 decoded.
+     *
+     * @param b64Data The stream that provides the encoded data.
+     * @param mode    The Base64 alphabet and line format to decode with.
+     *
+     * @return A stream that provides plain data.  Reading it throws an {@link IOException} if the data is not valid in the given mode.
+     */
+    public static InputStream decodingBase64(final InputStream b64Data, final Base64Mode mode) {
+
+        return mode.getDecoder().wrap( b64Data );
+    }
+
+    private static void transfer(final ByteBuffer from, final OutputStream to)
+            throws IOException {
+
+        if (from.hasArray()) {
+            to.write( from.array(), from.arrayOffset() + from.position(), from.remaining() );
+            from.position( from.limit() );
+            return;
+        }
+
+        byte[] buffer = new byte[Math.min( STREAM_BUFFER_SIZE, from.remaining() )];
+        while (from.hasRemaining()) {
+            int length = Math.min( buffer.length, from.remaining() );
+            from.get( buffer, 0, length );
+            to.write( buffer, 0, length );
+        }
+    }
+
+
+    private static class ByteBufferOutputStream extends OutputStream {
+
+        private final ByteBuffer buffer;
+
+        ByteBufferOutputStream(final ByteBuffer buffer) {
+
+            this.buffer = buffer;
+        }
+
+        @Override
+        public void write(final int b) {
+
+            buffer.put( (byte) b );
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) {
+
+            buffer.put( b, off, len );
+        }
+    }
+
+
+    private static class ByteBufferInputStream extends InputStream {
+
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(final ByteBuffer buffer) {
+
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+
+            return buffer.hasRemaining()? buffer.get() & 0xFF: -1;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) {
+
+            if (len == 0)
+                return 0;
+            if (!buffer.hasRemaining())
+                return -1;
+
+            int read = Math.min( len, buffer.remaining() );
+            buffer.get( b, off, read );
+
+            return read;
+        }
+
+        @Override
+        public int available() {
+
+            return buffer.remaining();
+        }
+    }
+
+
+    private interface ChunkOperation {
+
+        void run(int chunk)
+                throws GeneralSecurityException;
+    }
+
+
+    private static class ChunkFailedException extends RuntimeException {
+
+        ChunkFailedException(final GeneralSecurityException cause) {
+
+            super( cause );
+        }
+
+        @Override
+        public synchronized GeneralSecurityException getCause() {
+
+            return (GeneralSecurityException) super.getCause();
+        }
     }
 }
@@ -16,8 +16,10 @@
 package com.lyndir.lhunath.opal.crypto.gpg;
 
 import com.google.common.io.ByteStreams;
-import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import java.io.*;
+import java.nio.channels.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.security.*;
 import java.util.*;
 import javax.annotation.Nullable;
@@ -37,6 +39,11 @@ public abstract class GPG {
 
     private static final Logger logger = LoggerFactory.getLogger( GPG.class );
 
+    /**
+     * The size of the working buffers used for streaming data through the PGP layers.  Must be a power of two.
+     */
+    private static final int BUFFER_SIZE = 1 << 16;
+
     static {
         Security.addProvider( new BouncyCastleProvider() );
     }
@@ -72,13 +79,11 @@ public abstract class GPG {
      * @throws IOException
      * @throws PGPException
      */
-    @SuppressFBWarnings({ "RCN_REDUNDANT_NULLCHECK_OF_NULL_VALUE" })
+    @Nullable
     public static PGPPublicKey getPublicKey(final File publicKeyFile, final long publicKeyId)
             throws IOException, PGPException {
 
-        try (FileInputStream publicKeyInputStream = new FileInputStream( publicKeyFile )) {
-            return new PGPPublicKeyRing( publicKeyInputStream ).getPublicKey( publicKeyId );
-        }
+        return KeyRing.of( publicKeyFile ).getPublicKey( publicKeyId );
     }
 
     /**
@@ -91,14 +96,11 @@ public abstract class GPG {
      * @throws IOException
      * @throws PGPException
      */
-    @SuppressFBWarnings({ "RCN_REDUNDANT_NULLCHECK_OF_NULL_VALUE" })
+    @Nullable
     public static PGPSecretKey getPrivateKey(final File privateKeyFile, final long privateKeyId)
             throws IOException, PGPException {
 
-        try (FileInputStream privateKeyInputStream = new FileInputStream( privateKeyFile )) {
-            PGPSecretKeyRingCollection privateKeyRing = new PGPSecretKeyRingCollection( PGPUtil.getDecoderStream( privateKeyInputStream ) );
-            return privateKeyRing.getSecretKey( privateKeyId );
-        }
+        return KeyRing.of( privateKeyFile ).getSecretKey( privateKeyId );
     }
 
     /**
@@ -144,10 +146,11 @@ public abstract class GPG {
         Iterator<PGPPublicKeyEncryptedData> encryptedDataIterator = ((PGPEncryptedDataList) encryptedDataObjects).getEncryptedDataObjects();
 
         /* Extract the public key out of the data and find the matching private key required to decrypt the data. */
+        KeyRing privateKeyRing = KeyRing.of( privateKeyFile );
         PGPSecretKey privateKey = null;
         while (privateKey == null && encryptedDataIterator.hasNext()) {
             PGPPublicKeyEncryptedData encryptedData = encryptedDataIterator.next();
-            privateKey = getPrivateKey( privateKeyFile, encryptedData.getKeyID() );
+            privateKey = privateKeyRing.getSecretKey( encryptedData.getKeyID() );
         }
 
         return privateKey;
@@ -165,35 +168,22 @@ public abstract class GPG {
     public static List<PrintableKeyWrapper<PGPSecretKey>> getPrivateKeys(final File privateKeyFile)
             throws IOException, PGPException {
 
-        /* Open the key ring. */
-        try (FileInputStream privateKeyInputStream = new FileInputStream( privateKeyFile )) {
-            List<PrintableKeyWrapper<PGPSecretKey>> keys = new ArrayList<>();
-            PGPSecretKeyRingCollection privateKeyRing = new PGPSecretKeyRingCollection( PGPUtil.getDecoderStream( privateKeyInputStream ) );
-
-            /* Enumerate the IDs. */
-            @SuppressWarnings("unchecked")
-            Iterator<PGPSecretKeyRing> rings = privateKeyRing.getKeyRings();
-            while (rings.hasNext()) {
-                @SuppressWarnings("unchecked")
-                Iterator<PGPSecretKey> ring = rings.next().getSecretKeys();
-                while (ring.hasNext()) {
-                    PGPSecretKey key = ring.next();
-                    if (!key.getUserIDs().hasNext())
-                        continue;
-
-                    keys.add( new PrintableKeyWrapper<PGPSecretKey>( key, key.getKeyID() ) {
-
-                        @Override
-                        public String toString() {
-
-                            return getKey().getUserIDs().next().toString();
-                        }
-                    } );
-                }
-            }
+        List<PrintableKeyWrapper<PGPSecretKey>> keys = new ArrayList<>();
+        for (final PGPSecretKey key : KeyRing.of( privateKeyFile ).getSecretKeys()) {
+            if (!key.getUserIDs().hasNext())
+                continue;
 
-            return keys;
+            keys.add( new PrintableKeyWrapper<PGPSecretKey>( key, key.getKeyID() ) {
+
+                @Override
+                public String toString() {
+
+                    return getKey().getUserIDs().next().toString();
+                }
+            } );
         }
+
+        return keys;
     }
 
     /**
@@ -208,35 +198,22 @@ public abstract class GPG {
     public static List<PrintableKeyWrapper<PGPPublicKey>> getPublicKeys(final File publicKeyFile)
             throws IOException, PGPException {
 
-        /* Open the key ring. */
-        try (FileInputStream publicKeyInputStream = new FileInputStream( publicKeyFile )) {
-            List<PrintableKeyWrapper<PGPPublicKey>> keys = new ArrayList<>();
-            PGPPublicKeyRingCollection privateKeyRing = new PGPPublicKeyRingCollection( PGPUtil.getDecoderStream( publicKeyInputStream ) );
-
-            /* Enumerate the IDs. */
-            @SuppressWarnings("unchecked")
-            Iterator<PGPPublicKeyRing> rings = privateKeyRing.getKeyRings();
-            while (rings.hasNext()) {
-                @SuppressWarnings("unchecked")
-                Iterator<PGPPublicKey> ring = rings.next().getPublicKeys();
-                while (ring.hasNext()) {
-                    PGPPublicKey key = ring.next();
-                    if (!key.getUserIDs().hasNext())
-                        continue;
-
-                    keys.add( new PrintableKeyWrapper<PGPPublicKey>( key, key.getKeyID() ) {
-
-                        @Override
-                        public String toString() {
-
-                            return getKey().getUserIDs().next().toString();
-                        }
-                    } );
-                }
-            }
+        List<PrintableKeyWrapper<PGPPublicKey>> keys = new ArrayList<>();
+        for (final PGPPublicKey key : KeyRing.of( publicKeyFile ).getPublicKeys()) {
+            if (!key.getUserIDs().hasNext())
+                continue;
+
+            keys.add( new PrintableKeyWrapper<PGPPublicKey>( key, key.getKeyID() ) {
+
+                @Override
+                public String toString() {
 
-            return keys;
+                    return getKey().getUserIDs().next().toString();
+                }
+            } );
         }
+
+        return keys;
     }
 
     /**
@@ -254,9 +231,10 @@ public abstract class GPG {
     public static void encryptFile(final File plainFile, final File encryptedFile, final PGPPublicKey publicKey, final boolean armoured)
             throws NoSuchProviderException, IOException, PGPException {
 
-        try (OutputStream encryptedOutputStream = new FileOutputStream( encryptedFile ); InputStream plainInputStream = new FileInputStream(
-                plainFile ); InputStream encryptedInputStream = encrypt( plainInputStream, publicKey, armoured )) {
-            ByteStreams.copy( encryptedInputStream, encryptedOutputStream );
+        try (FileChannel plainChannel = new FileInputStream( plainFile ).getChannel();
+             OutputStream encryptedOutputStream = new BufferedOutputStream( new FileOutputStream( encryptedFile ), BUFFER_SIZE );
+             OutputStream encryptingStream = encrypting( encryptedOutputStream, publicKey, armoured )) {
+            transfer( plainChannel, Channels.newChannel( encryptingStream ) );
         }
     }
 
@@ -276,12 +254,20 @@ public abstract class GPG {
     public static byte[] encrypt(final byte[] plainTextData, final PGPPublicKey publicKey, final boolean armoured)
             throws NoSuchProviderException, IOException, PGPException {
 
-        return ByteStreams.toByteArray( encrypt( new ByteArrayInputStream( plainTextData ), publicKey, armoured ) );
+        ByteArrayOutputStream encryptedByteStream = new ByteArrayOutputStream( plainTextData.length );
+        try (OutputStream encryptingStream = encrypting( encryptedByteStream, publicKey, armoured )) {
+            encryptingStream.write( plainTextData );
+        }
+
+        return encryptedByteStream.toByteArray();
     }
 
     /**
      * PGP Encrypt a stream.
      *
+     * <p> The encrypted data is buffered in memory.  Use {@link #encrypting(OutputStream, PGPPublicKey, boolean)} to stream large
+     * data. </p>
+     *
      * @param plainTextStream The stream that contains the plain-text data.
      * @param publicKey       The public key to use for encryption.
      * @param armoured        {@code true}: ASCII armor the encrypted data.
@@ -295,41 +281,84 @@ public abstract class GPG {
     public static InputStream encrypt(final InputStream plainTextStream, final PGPPublicKey publicKey, final boolean armoured)
             throws IOException, NoSuchProviderException, PGPException {
 
-        /* Compress and extract literal data packets that can be encrypted. */
-        PGPEncryptedDataGenerator encryptedDataGenerator = null;
-        try (ByteArrayOutputStream decryptedStream = new ByteArrayOutputStream(); ByteArrayOutputStream encryptedByteStream = new ByteArrayOutputStream()) {
-            PGPLiteralDataGenerator literalDataGenerator = new PGPLiteralDataGenerator();
-            PGPCompressedDataGenerator compressor = new PGPCompressedDataGenerator( CompressionAlgorithmTags.ZLIB );
-            OutputStream literalStream = literalDataGenerator.open( compressor.open( decryptedStream ), PGPLiteralData.BINARY, "",
-                                                                    new Date(), new byte[4096] );
-            ByteStreams.copy( plainTextStream, literalStream );
-            compressor.close();
+        ByteArrayOutputStream encryptedByteStream = new ByteArrayOutputStream();
+        try (OutputStream encryptingStream = encrypting( encryptedByteStream, publicKey, armoured )) {
+            ByteStreams.copy( plainTextStream, encryptingStream );
+        }
 
-        /* Encrypt compressed data. */
-            encryptedDataGenerator = new PGPEncryptedDataGenerator( SymmetricKeyAlgorithmTags.CAST5, new SecureRandom(),
-                                                                    BouncyCastleProvider.PROVIDER_NAME );
-            encryptedDataGenerator.addMethod( publicKey );
+        return new ByteArrayInputStream( encryptedByteStream.toByteArray() );
+    }
+
+    /**
+     * PGP Encrypt data as it is written.
+     *
+     * <p> Plain-text data written to the returned stream is compressed, encrypted and (optionally) armoured incrementally, using
+     * fixed-size buffers regardless of the amount of data.  Closing the returned stream finishes the PGP message but does not close
+     * {@code encryptedStream}. </p>
+     *
+     * @param encryptedStream The stream to write the encrypted data into.
+     * @param publicKey       The public key to use for encryption.
+     * @param armoured        {@code true}: ASCII armor the encrypted data.
+     *
+     * @return The stream to write the plain-text data into.
+     *
+     * @throws NoSuchProviderException
+     * @throws IOException
+     * @throws PGPException
+     */
+    public static OutputStream encrypting(final OutputStream encryptedStream, final PGPPublicKey publicKey, final boolean armoured)
+            throws IOException, NoSuchProviderException, PGPException {
 
         /* Create the encrypted output stream, armour if necessary. */
-            OutputStream encryptedStream = encryptedByteStream;
-            if (armoured)
-                encryptedStream = new ArmoredOutputStream( encryptedStream );
+        final OutputStream armouredStream = armoured? new ArmoredOutputStream( encryptedStream ): encryptedStream;
 
-        /* Create and write out the encrypted file. */
-            OutputStream encryptionStream = encryptedDataGenerator.open( encryptedStream, new byte[4096] );
-            ByteStreams.copy( new ByteArrayInputStream( decryptedStream.toByteArray() ), encryptionStream );
+        /* Encrypt compressed data. */
+        final PGPEncryptedDataGenerator encryptedDataGenerator = new PGPEncryptedDataGenerator( SymmetricKeyAlgorithmTags.CAST5,
+                                                                                                new SecureRandom(),
+                                                                                                BouncyCastleProvider.PROVIDER_NAME );
+        encryptedDataGenerator.addMethod( publicKey );
+        OutputStream encryptionStream = encryptedDataGenerator.open( armouredStream, new byte[BUFFER_SIZE] );
 
-            return new ByteArrayInputStream( encryptedByteStream.toByteArray() );
-        }
-        finally {
-            if (encryptedDataGenerator != null)
+        /* Compress and extract literal data packets that can be encrypted. */
+        final PGPCompressedDataGenerator compressor = new PGPCompressedDataGenerator( CompressionAlgorithmTags.ZLIB );
+        final PGPLiteralDataGenerator literalDataGenerator = new PGPLiteralDataGenerator();
+        OutputStream literalStream = literalDataGenerator.open( compressor.open( encryptionStream ), PGPLiteralData.BINARY, "",
+                                                                new Date(), new byte[BUFFER_SIZE] );
+
+        return new FilterOutputStream( literalStream ) {
+            private boolean closed;
+
+            @Override
+            public void write(final byte[] b, final int off, final int len)
+                    throws IOException {
+
+                out.write( b, off, len );
+            }
+
+            @Override
+            public void close()
+                    throws IOException {
+
+                if (closed)
+                    return;
+                closed = true;
+
+                /* Finish each layer from the inside out. */
+                literalDataGenerator.close();
+                compressor.close();
                 encryptedDataGenerator.close();
-        }
+                if (armoured)
+                    armouredStream.close();
+            }
+        };
     }
 
     /**
      * Decrypt a PGP encrypted file.
      *
+     * <p> The plain-text is written to a temporary file next to the plain-text file, which only replaces it once the data has been
+     * decrypted and its integrity verified.  If decryption fails, the plain-text file is left untouched. </p>
+     *
      * @param encryptedFile The file that contains the encrypted data.
      * @param plainTextFile The file to write the plain-text data into.
      * @param privateKey    The private key to use for decrypting the data.
@@ -343,10 +372,23 @@ public abstract class GPG {
                                    final String passPhrase)
             throws NoSuchProviderException, IOException, PGPException {
 
-        try (InputStream encryptedInputStream = new FileInputStream( encryptedFile ); InputStream decryptedInputStream = decrypt(
-                encryptedInputStream, privateKey, passPhrase ); OutputStream decryptedOutputStream = new FileOutputStream(
-                plainTextFile )) {
-            ByteStreams.copy( decryptedInputStream, decryptedOutputStream );
+        File plainTextDirectory = plainTextFile.getAbsoluteFile().getParentFile();
+        File decryptingFile = File.createTempFile( plainTextFile.getName(), ".decrypting", plainTextDirectory );
+        boolean decrypted = false;
+        try {
+            try (InputStream encryptedInputStream = new BufferedInputStream( new FileInputStream( encryptedFile ), BUFFER_SIZE );
+                 InputStream decryptedInputStream = decrypt( encryptedInputStream, privateKey, passPhrase );
+                 FileChannel decryptedChannel = new FileOutputStream( decryptingFile ).getChannel()) {
+                transfer( Channels.newChannel( decryptedInputStream ), decryptedChannel );
+            }
+
+            // Only now has the integrity of all of the plain-text been verified.
+            Files.move( decryptingFile.toPath(), plainTextFile.toPath(), StandardCopyOption.REPLACE_EXISTING );
+            decrypted = true;
+        }
+        finally {
+            if (!decrypted && !decryptingFile.delete() && decryptingFile.exists())
+                logger.warn( "Couldn't delete unverified plain-text: {}", decryptingFile );
         }
     }
 
@@ -372,6 +414,10 @@ public abstract class GPG {
     /**
      * Decrypt a PGP encrypted stream.
      *
+     * <p> The encrypted data is decrypted and decompressed incrementally as the returned stream is read.  If the message is integrity
+     * protected, its integrity is verified when the end of the returned stream is reached; a failed check is reported as an {@link
+     * IOException} at that point. </p>
+     *
      * @param encryptedStream The stream that contains the encrypted data.
      * @param privateKey      The private key to use for decrypting the data.
      * @param passPhrase      The passphrase the private key is encrypted with.
@@ -385,6 +431,36 @@ public abstract class GPG {
     public static InputStream decrypt(final InputStream encryptedStream, final PGPSecretKey privateKey, final String passPhrase)
             throws IOException, PGPException, NoSuchProviderException {
 
+        return decrypt( encryptedStream, keyId -> keyId == privateKey.getKeyID()
+                ? privateKey.extractPrivateKey( passPhrase.toCharArray(), BouncyCastleProvider.PROVIDER_NAME ): null );
+    }
+
+    /**
+     * Decrypt a PGP encrypted stream with whichever private key in the given key ring it was encrypted for.
+     *
+     * <p> The private key is extracted through the key ring's private key cache, so repeated decryptions with the same key don't
+     * repeat the key extraction. </p>
+     *
+     * @param encryptedStream The stream that contains the encrypted data.
+     * @param privateKeyRing  The key ring that holds the private key to use for decrypting the data.
+     * @param passPhrase      The passphrase the private key is encrypted with.
+     *
+     * @return The plain-text stream.
+     *
+     * @throws NoSuchProviderException
+     * @throws IOException
+     * @throws PGPException
+     * @see #decrypt(InputStream, PGPSecretKey, String)
+     */
+    public static InputStream decrypt(final InputStream encryptedStream, final KeyRing privateKeyRing, final String passPhrase)
+            throws IOException, PGPException, NoSuchProviderException {
+
+        return decrypt( encryptedStream, keyId -> privateKeyRing.getPrivateKey( keyId, passPhrase ) );
+    }
+
+    private static InputStream decrypt(final InputStream encryptedStream, final PrivateKeyResolver privateKeyResolver)
+            throws IOException, PGPException, NoSuchProviderException {
+
         /* Open the encrypted file. */
         InputStream encryptedDataStream = PGPUtil.getDecoderStream( encryptedStream );
         PGPObjectFactory encryptedDataFactory = new PGPObjectFactory( encryptedDataStream );
@@ -407,18 +483,19 @@ public abstract class GPG {
 
         /* Extract the public key out of the data and find the matching private key required to decrypt the data. */
         PGPPublicKeyEncryptedData encryptedData = null;
-        while (encryptedDataIterator.hasNext()) {
+        PGPPrivateKey privateKey = null;
+        while (privateKey == null && encryptedDataIterator.hasNext()) {
             encryptedData = encryptedDataIterator.next();
-            if (encryptedData.getKeyID() == privateKey.getKeyID())
-                break;
+            privateKey = privateKeyResolver.resolve( encryptedData.getKeyID() );
         }
         if (encryptedData == null)
             throw new PGPException( "No encrypted data found." );
+        if (privateKey == null)
+            throw new PGPException( "Data was not encrypted for any of the available private keys." );
 
         /* Decrypt the data. */
-        InputStream unencryptedStream = encryptedData.getDataStream(
-                privateKey.extractPrivateKey( passPhrase.toCharArray(), BouncyCastleProvider.PROVIDER_NAME ),
-                BouncyCastleProvider.PROVIDER_NAME );
+        final PGPPublicKeyEncryptedData decryptingData = encryptedData;
+        InputStream unencryptedStream = decryptingData.getDataStream( privateKey, BouncyCastleProvider.PROVIDER_NAME );
         PGPObjectFactory pgpFactory = new PGPObjectFactory( unencryptedStream );
         Object unencryptedObject = pgpFactory.nextObject();
 
@@ -429,10 +506,6 @@ public abstract class GPG {
             unencryptedObject = pgpFactory.nextObject();
         }
 
-        /* Verify integrity. */
-        if (encryptedData.isIntegrityProtected() && !encryptedData.verify())
-            throw new PGPException( "Message integrity check failed." );
-
         /* Check to see if the data is valid decrypted data. */
         if (unencryptedObject == null)
             throw new PGPException( "No encrypted data found." );
@@ -441,9 +514,44 @@ public abstract class GPG {
         if (!(unencryptedObject instanceof PGPLiteralData))
             throw new PGPException( "Message type unrecognized: " + unencryptedObject.getClass() );
 
-        /* Write out decrypted data. */
+        /* Stream out decrypted data, verify integrity once it has all been read. */
         PGPLiteralData unencryptedData = (PGPLiteralData) unencryptedObject;
-        return unencryptedData.getInputStream();
+        if (!decryptingData.isIntegrityProtected())
+            return unencryptedData.getInputStream();
+
+        return new FilterInputStream( unencryptedData.getInputStream() ) {
+            private boolean verified;
+
+            @Override
+            public int read()
+                    throws IOException {
+
+                return verifyAtEnd( super.read() );
+            }
+
+            @Override
+            public int read(final byte[] b, final int off, final int len)
+                    throws IOException {
+
+                return verifyAtEnd( super.read( b, off, len ) );
+            }
+
+            private int verifyAtEnd(final int read)
+                    throws IOException {
+
+                if (read < 0 && !verified)
+                    try {
+                        if (!decryptingData.verify())
+                            throw new IOException( "Message integrity check failed." );
+                        verified = true;
+                    }
+                    catch (final PGPException e) {
+                        throw new IOException( "Message integrity check failed.", e );
+                    }
+
+                return read;
+            }
+        };
     }
 
     /**
@@ -466,11 +574,10 @@ public abstract class GPG {
                                 final boolean armoured)
             throws NoSuchAlgorithmException, NoSuchProviderException, SignatureException, PGPException, IOException {
 
-        try (InputStream dataInputStream = new FileInputStream( dataFile )) {
-            try (InputStream signedInputStream = sign( dataInputStream, privateKey, passPhrase,
-                                                       armoured ); OutputStream signedOutputStream = new FileOutputStream( signedFile )) {
-                ByteStreams.copy( signedInputStream, signedOutputStream );
-            }
+        try (FileChannel dataChannel = new FileInputStream( dataFile ).getChannel();
+             OutputStream signedOutputStream = new FileOutputStream( signedFile );
+             OutputStream signingStream = signing( signedOutputStream, privateKey, passPhrase, armoured )) {
+            transfer( dataChannel, Channels.newChannel( signingStream ) );
         }
     }
 
@@ -517,29 +624,124 @@ public abstract class GPG {
     public static InputStream sign(final InputStream data, final PGPSecretKey privateKey, final String passPhrase, final boolean armoured)
             throws NoSuchAlgorithmException, NoSuchProviderException, PGPException, SignatureException, IOException {
 
+        /* Write the data into the signature generator. */
+        ByteArrayOutputStream signatureByteStream = new ByteArrayOutputStream();
+        try (OutputStream signingStream = signing( signatureByteStream, privateKey, passPhrase, armoured )) {
+            ByteStreams.copy( data, signingStream );
+        }
+
+        return new ByteArrayInputStream( signatureByteStream.toByteArray() );
+    }
+
+    /**
+     * PGP sign data as it is written.
+     *
+     * <p> Data written to the returned stream is fed into the signature generator incrementally and is not retained.  Closing the
+     * returned stream writes the signature to {@code signatureStream} but does not close it. </p>
+     *
+     * @param signatureStream The stream to write the signature into.
+     * @param privateKey      The private key to use for signing.
+     * @param passPhrase      The passphrase that the private key is locked with.
+     * @param armoured        {@code true}: ASCII armor the signature.
+     *
+     * @return The stream to write the data to sign into.
+     *
+     * @throws NoSuchAlgorithmException
+     * @throws NoSuchProviderException
+     * @throws PGPException
+     */
+    public static OutputStream signing(final OutputStream signatureStream, final PGPSecretKey privateKey, final String passPhrase,
+                                       final boolean armoured)
+            throws NoSuchAlgorithmException, NoSuchProviderException, PGPException {
+
         /* Build the signature generator. */
-        PGPSignatureGenerator signer = new PGPSignatureGenerator( privateKey.getPublicKey().getAlgorithm(), HashAlgorithmTags.SHA1,
-                                                                  BouncyCastleProvider.PROVIDER_NAME );
+        final PGPSignatureGenerator signer = new PGPSignatureGenerator( privateKey.getPublicKey().getAlgorithm(), HashAlgorithmTags.SHA1,
+                                                                        BouncyCastleProvider.PROVIDER_NAME );
         signer.initSign( PGPSignature.BINARY_DOCUMENT,
                          privateKey.extractPrivateKey( passPhrase.toCharArray(), BouncyCastleProvider.PROVIDER_NAME ) );
 
-        /* Write the data into the generator. */
-        byte[] buffer = new byte[4096];
-        for (int read; (read = data.read( buffer )) >= 0; )
-            signer.update( buffer, 0, read );
+        return new OutputStream() {
+            private boolean closed;
 
-        /* Create the signature output stream, armour if necessary. */
-        try (ByteArrayOutputStream signatureByteStream = new ByteArrayOutputStream(); OutputStream signatureStream = armoured
-                ? new ArmoredOutputStream( signatureByteStream ): signatureByteStream) {
+            @Override
+            public void write(final int b)
+                    throws IOException {
 
-            /* Create and write out the signature. */
-            PGPSignature signature = signer.generate();
-            signature.encode( signatureStream );
+                try {
+                    signer.update( (byte) b );
+                }
+                catch (final SignatureException e) {
+                    throw new IOException( e );
+                }
+            }
 
-            return new ByteArrayInputStream( signatureByteStream.toByteArray() );
-        }
+            @Override
+            public void write(final byte[] b, final int off, final int len)
+                    throws IOException {
+
+                try {
+                    signer.update( b, off, len );
+                }
+                catch (final SignatureException e) {
+                    throw new IOException( e );
+                }
+            }
+
+            @Override
+            public void close()
+                    throws IOException {
+
+                if (closed)
+                    return;
+                closed = true;
+
+                /* Create the signature output stream, armour if necessary, and write out the signature. */
+                OutputStream armouredStream = armoured? new ArmoredOutputStream( signatureStream ): signatureStream;
+                try {
+                    signer.generate().encode( armouredStream );
+                }
+                catch (final PGPException | SignatureException e) {
+                    throw new IOException( e );
+                }
+                if (armoured)
+                    armouredStream.close();
+                else
+                    armouredStream.flush();
+            }
+        };
     }
 
+    /**
+     * Move all data from a file into a channel.
+     */
+    private static void transfer(final FileChannel from, final WritableByteChannel to)
+            throws IOException {
+
+        for (long position = 0, size = from.size(); position < size; )
+            position += from.transferTo( position, size - position, to );
+    }
+
+    /**
+     * Move all data from a channel into a file.
+     */
+    private static void transfer(final ReadableByteChannel from, final FileChannel to)
+            throws IOException {
+
+        for (long position = 0, transferred; (transferred = to.transferFrom( from, position, BUFFER_SIZE )) > 0; )
+            position += transferred;
+    }
+
+    private interface PrivateKeyResolver {
+
+        /**
+         * @return The private key with the given ID, or {@code null} if it is not available.
+         */
+        @Nullable
+        PGPPrivateKey resolve(long keyId)
+                throws IOException, PGPException, NoSuchProviderException;
+    }
+
+
     /**
      * <h2>{@link PrintableKeyWrapper}<br> <sub>A wrapper for wrapping a key id with a printable representation of it.</sub></h2>
      *
@@ -0,0 +1,311 @@
+package com.lyndir.lhunath.opal.crypto.gpg;
+
+import com.google.common.cache.*;
+import com.google.common.collect.*;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.openpgp.*;
+
+
+/**
+ * <h2>{@link KeyRing}<br> <sub>A parsed and indexed PGP key ring file.</sub></h2>
+ *
+ * <p> The file is parsed once and its public and secret keys are indexed by key ID and user ID.  Lookups check the file's
+ * modification time and size and only re-parse it when either has changed. </p>
+ *
+ * <p> Private keys extracted from the ring's secret keys are cached for a configurable time, so that repeated decryptions don't
+ * repeat the expensive passphrase-based key extraction.  They are evicted once that time has passed.  A cached private key is only
+ * handed out for the passphrase it was extracted with, which is remembered as an HMAC under a random key of the ring. </p>
+ *
+ * <p> Key rings are shared per file for as long as they are referenced, and are safe for use by multiple threads. </p>
+ *
+ * @author lhunath
+ */
+public class KeyRing {
+
+    private static final String                      PASSPHRASE_MAC               = "HmacSHA256";
+    private static final long                        DEFAULT_PRIVATE_KEY_LIFETIME = TimeUnit.MINUTES.toMillis( 5 );
+    private static final LoadingCache<File, KeyRing> keyRings                     = CacheBuilder.newBuilder().weakValues().build(
+            CacheLoader.from( KeyRing::new ) );
+
+    private final File                             file;
+    private final SecretKeySpec                    passPhraseKey;
+    private volatile Cache<Long, CachedPrivateKey> privateKeys = newPrivateKeyCache( DEFAULT_PRIVATE_KEY_LIFETIME );
+    @Nullable
+    private volatile Index                         index;
+
+    /**
+     * @param file The key ring file.  It may contain public key rings, secret key rings or both.
+     *
+     * @return The shared key ring for the given file.
+     */
+    public static KeyRing of(final File file) {
+
+        return keyRings.getUnchecked( file.getAbsoluteFile() );
+    }
+
+    private KeyRing(final File file) {
+
+        this.file = file;
+
+        byte[] passPhraseKeyBytes = new byte[32];
+        new SecureRandom().nextBytes( passPhraseKeyBytes );
+        passPhraseKey = new SecretKeySpec( passPhraseKeyBytes, PASSPHRASE_MAC );
+    }
+
+    private static Cache<Long, CachedPrivateKey> newPrivateKeyCache(final long lifetimeMillis) {
+
+        return CacheBuilder.newBuilder().expireAfterWrite( lifetimeMillis, TimeUnit.MILLISECONDS ).build();
+    }
+
+    public File getFile() {
+
+        return file;
+    }
+
+    /**
+     * @param keyId The ID of the public key.
+     *
+     * @return The public key with the given ID, or {@code null} if the ring has no such key.  Public keys of secret keys in the ring
+     * are also found.
+     */
+    @Nullable
+    public PGPPublicKey getPublicKey(final long keyId)
+            throws IOException, PGPException {
+
+        return index().publicKeysById.get( keyId );
+    }
+
+    /**
+     * @param keyId The ID of the secret key.
+     *
+     * @return The secret key with the given ID, or {@code null} if the ring has no such key.
+     */
+    @Nullable
+    public PGPSecretKey getSecretKey(final long keyId)
+            throws IOException, PGPException {
+
+        return index().secretKeysById.get( keyId );
+    }
+
+    /**
+     * @param userId The exact user ID, eg. {@code Maarten Billemont <lhunath@lyndir.com>}.
+     *
+     * @return The public keys that carry the given user ID.
+     */
+    public List<PGPPublicKey> getPublicKeys(final String userId)
+            throws IOException, PGPException {
+
+        return index().publicKeysByUserId.get( userId );
+    }
+
+    /**
+     * @param userId The exact user ID, eg. {@code Maarten Billemont <lhunath@lyndir.com>}.
+     *
+     * @return The secret keys that carry the given user ID.
+     */
+    public List<PGPSecretKey> getSecretKeys(final String userId)
+            throws IOException, PGPException {
+
+        return index().secretKeysByUserId.get( userId );
+    }
+
+    /**
+     * @return All public keys in the ring, in file order.
+     */
+    public Collection<PGPPublicKey> getPublicKeys()
+            throws IOException, PGPException {
+
+        return index().publicKeysById.values();
+    }
+
+    /**
+     * @return All secret keys in the ring, in file order.
+     */
+    public Collection<PGPSecretKey> getSecretKeys()
+            throws IOException, PGPException {
+
+        return index().secretKeysById.values();
+    }
+
+    /**
+     * Extract the private key of one of the ring's secret keys.
+     *
+     * @param keyId      The ID of the secret key.
+     * @param passPhrase The passphrase the secret key is locked with.
+     *
+     * @return The private key, or {@code null} if the ring has no secret key with the given ID.
+     *
+     * @throws PGPException The passphrase is wrong or the key could not be extracted.
+     */
+    @Nullable
+    public PGPPrivateKey getPrivateKey(final long keyId, final String passPhrase)
+            throws IOException, PGPException, NoSuchProviderException {
+
+        // Index first: it drops cached private keys when the ring's file has changed.
+        PGPSecretKey secretKey = getSecretKey( keyId );
+        if (secretKey == null)
+            return null;
+
+        byte[] passPhraseMac = mac( passPhrase );
+        Cache<Long, CachedPrivateKey> currentPrivateKeys = privateKeys;
+        CachedPrivateKey cachedPrivateKey = currentPrivateKeys.getIfPresent( keyId );
+        if (cachedPrivateKey != null && cachedPrivateKey.isValidFor( secretKey, passPhraseMac ))
+            return cachedPrivateKey.privateKey;
+
+        PGPPrivateKey privateKey = secretKey.extractPrivateKey( passPhrase.toCharArray(), BouncyCastleProvider.PROVIDER_NAME );
+        currentPrivateKeys.put( keyId, new CachedPrivateKey( secretKey, privateKey, passPhraseMac ) );
+
+        return privateKey;
+    }
+
+    private byte[] mac(final String passPhrase) {
+
+        try {
+            Mac mac = Mac.getInstance( PASSPHRASE_MAC );
+            mac.init( passPhraseKey );
+
+            return mac.doFinal( passPhrase.getBytes( StandardCharsets.UTF_8 ) );
+        }
+        catch (final NoSuchAlgorithmException | InvalidKeyException e) {
+            throw new IllegalStateException( e );
+        }
+    }
+
+    /**
+     * @param lifetime How long extracted private keys remain cached.  Zero disables caching.
+     * @param unit     The unit of the lifetime.
+     */
+    public void setPrivateKeyLifetime(final long lifetime, final TimeUnit unit) {
+
+        Cache<Long, CachedPrivateKey> oldPrivateKeys = privateKeys;
+        privateKeys = newPrivateKeyCache( Math.max( 0, unit.toMillis( lifetime ) ) );
+        oldPrivateKeys.invalidateAll();
+    }
+
+    /**
+     * Forget all cached private keys.
+     */
+    public void clearPrivateKeys() {
+
+        privateKeys.invalidateAll();
+    }
+
+    private Index index()
+            throws IOException, PGPException {
+
+        long lastModified = file.lastModified();
+        long length = file.length();
+
+        Index currentIndex = index;
+        if (currentIndex != null && currentIndex.lastModified == lastModified && currentIndex.length == length)
+            return currentIndex;
+
+        synchronized (this) {
+            currentIndex = index;
+            if (currentIndex == null || currentIndex.lastModified != lastModified || currentIndex.length != length) {
+                index = currentIndex = new Index( file, lastModified, length );
+
+                // Keys may have been replaced or removed.
+                privateKeys.invalidateAll();
+            }
+
+            return currentIndex;
+        }
+    }
+
+    private static class Index {
+
+        final long lastModified;
+        final long length;
+
+        final Map<Long, PGPPublicKey>                     publicKeysById;
+        final Map<Long, PGPSecretKey>                     secretKeysById;
+        final ImmutableListMultimap<String, PGPPublicKey> publicKeysByUserId;
+        final ImmutableListMultimap<String, PGPSecretKey> secretKeysByUserId;
+
+        Index(final File file, final long lastModified, final long length)
+                throws IOException, PGPException {
+
+            this.lastModified = lastModified;
+            this.length = length;
+
+            Map<Long, PGPPublicKey> publicKeys = new LinkedHashMap<>();
+            Map<Long, PGPSecretKey> secretKeys = new LinkedHashMap<>();
+            ImmutableListMultimap.Builder<String, PGPPublicKey> publicKeysByUserIdBuilder = ImmutableListMultimap.builder();
+            ImmutableListMultimap.Builder<String, PGPSecretKey> secretKeysByUserIdBuilder = ImmutableListMultimap.builder();
+
+            try (InputStream keyRingStream = new BufferedInputStream( new FileInputStream( file ) )) {
+                PGPObjectFactory keyRingFactory = new PGPObjectFactory( PGPUtil.getDecoderStream( keyRingStream ) );
+                for (Object keyRing; (keyRing = keyRingFactory.nextObject()) != null; ) {
+                    if (keyRing instanceof PGPSecretKeyRing) {
+                        @SuppressWarnings("unchecked")
+                        Iterator<PGPSecretKey> ring = ((PGPSecretKeyRing) keyRing).getSecretKeys();
+                        while (ring.hasNext()) {
+                            PGPSecretKey key = ring.next();
+                            secretKeys.put( key.getKeyID(), key );
+                            publicKeys.put( key.getKeyID(), key.getPublicKey() );
+
+                            @SuppressWarnings("unchecked")
+                            Iterator<String> userIds = key.getUserIDs();
+                            while (userIds.hasNext()) {
+                                String userId = userIds.next();
+                                secretKeysByUserIdBuilder.put( userId, key );
+                                publicKeysByUserIdBuilder.put( userId, key.getPublicKey() );
+                            }
+                        }
+                    } else if (keyRing instanceof PGPPublicKeyRing) {
+                        @SuppressWarnings("unchecked")
+                        Iterator<PGPPublicKey> ring = ((PGPPublicKeyRing) keyRing).getPublicKeys();
+                        while (ring.hasNext()) {
+                            PGPPublicKey key = ring.next();
+                            publicKeys.put( key.getKeyID(), key );
+
+                            @SuppressWarnings("unchecked")
+                            Iterator<String> userIds = key.getUserIDs();
+                            while (userIds.hasNext())
+                                publicKeysByUserIdBuilder.put( userIds.next(), key );
+                        }
+                    }
+                }
+            }
+
+            publicKeysById = Collections.unmodifiableMap( publicKeys );
+            secretKeysById = Collections.unmodifiableMap( secretKeys );
+            publicKeysByUserId = publicKeysByUserIdBuilder.build();
+            secretKeysByUserId = secretKeysByUserIdBuilder.build();
+        }
+    }
+
+
+    private static class CachedPrivateKey {
+
+        final PGPSecretKey  secretKey;
+        final PGPPrivateKey privateKey;
+        final byte[]        passPhraseMac;
+
+        CachedPrivateKey(final PGPSecretKey secretKey, final PGPPrivateKey privateKey, final byte[] passPhraseMac) {
+
+            this.secretKey = secretKey;
+            this.privateKey = privateKey;
+            this.passPhraseMac = passPhraseMac;
+        }
+
+        /**
+         * @return {@code true} if this private key was extracted from the given secret key of the current index, with the given
+         * passphrase.  Comparing the secret key also rejects keys cached from an index that was replaced while they were being
+         * extracted.
+         */
+        boolean isValidFor(final PGPSecretKey currentSecretKey, final byte[] otherPassPhraseMac) {
+
+            return secretKey == currentSecretKey && MessageDigest.isEqual( passPhraseMac, otherPassPhraseMac );
+        }
+    }
+}
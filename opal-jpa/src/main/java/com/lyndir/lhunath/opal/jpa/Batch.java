@@ -0,0 +1,301 @@
+/*
+ *   Copyright 2009, Maarten Billemont
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.lyndir.lhunath.opal.jpa;
+
+import static com.google.common.base.Preconditions.*;
+
+import com.google.common.base.Throwables;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.lyndir.lhunath.opal.system.logging.Logger;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.BiConsumer;
+import javax.annotation.Nullable;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.EntityTransaction;
+import javax.persistence.PersistenceException;
+
+
+/**
+ * <h2>{@link Batch}<br> <sub>A unit of work that writes many entities.</sub></h2>
+ *
+ * <p> The entities are written through an entity manager of their own, which is flushed and cleared every so many entities so that
+ * its persistence context doesn't grow with the amount of entities written.  The entities can also be split into partitions that are
+ * written in parallel, each through its own entity manager and in its own transaction. </p>
+ *
+ * <p> Obtain a batch from {@link Persist#batch()}, configure it and then {@link #persist(Iterable)} or {@link #merge(Iterable)} the
+ * entities. </p>
+ *
+ * <p> JDBC statement batching is a setting of the persistence unit (eg. {@code hibernate.jdbc.batch_size} with {@code
+ * hibernate.order_inserts}, or {@code eclipselink.jdbc.batch-writing}), which providers don't take from the properties of a single
+ * entity manager.  Configure it there, ideally equal to the {@link #flushEvery(int) flush size}. </p>
+ *
+ * @author lhunath
+ */
+public class Batch {
+
+    static final Logger logger = Logger.get( Batch.class );
+
+    /**
+     * The default amount of entities to write between flushing and clearing the entity manager.
+     */
+    public static final int DEFAULT_FLUSH_SIZE = 100;
+
+    /**
+     * The amount of partitions that are written at the same time by default, across all batches.  Each of them holds an entity manager
+     * and a database connection.
+     */
+    public static final int DEFAULT_PARALLELISM = Math.min( 8, Runtime.getRuntime().availableProcessors() );
+
+    /**
+     * Writes partitions by default.  Partitions block on JDBC, so they're kept off the common fork-join pool.  Partitions beyond the
+     * pool's parallelism wait for a thread rather than opening more connections; idle threads expire.
+     */
+    private static final ExecutorService partitionExecutor = createPartitionExecutor();
+
+    private static ExecutorService createPartitionExecutor() {
+
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                DEFAULT_PARALLELISM, DEFAULT_PARALLELISM, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactoryBuilder().setNameFormat( "Batch partition %d" ).setDaemon( true ).build() );
+        executor.allowCoreThreadTimeOut( true );
+
+        return executor;
+    }
+
+    private final EntityManagerFactory emf;
+    @Nullable
+    private final QueryCache           queryCache;
+    private final Map<String, Object> properties = new HashMap<>();
+    private       int                 flushSize  = DEFAULT_FLUSH_SIZE;
+    private       int                 partitions = 1;
+    private       ExecutorService     executor   = partitionExecutor;
+
+    Batch(final EntityManagerFactory emf, @Nullable final QueryCache queryCache) {
+
+        this.emf = emf;
+        this.queryCache = queryCache;
+    }
+
+    /**
+     * @param flushSize The amount of entities to write between flushing and clearing the entity manager.
+     *
+     * @return This batch.
+     */
+    public Batch flushEvery(final int flushSize) {
+
+        checkArgument( flushSize > 0, "Flush size must be positive." );
+        this.flushSize = flushSize;
+
+        return this;
+    }
+
+    /**
+     * @param name  The name of a property to create the batch's entity managers with.
+     * @param value The property's value.
+     *
+     * @return This batch.
+     */
+    public Batch property(final String name, final Object value) {
+
+        properties.put( name, value );
+
+        return this;
+    }
+
+    /**
+     * Split the entities into the given amount of partitions, which are written in parallel, as many at a time as the {@link
+     * #executeOn(ExecutorService) executor} runs.  Each partition is written in its own transaction: when one partition fails, the
+     * others may still have been committed.
+     *
+     * @param partitions The amount of partitions.  {@code 1} writes all entities in a single transaction on the calling thread.
+     *
+     * @return This batch.
+     */
+    public Batch partitions(final int partitions) {
+
+        checkArgument( partitions > 0, "Partitions must be positive." );
+        this.partitions = partitions;
+
+        return this;
+    }
+
+    /**
+     * @param executor The executor to write partitions on.  Its parallelism bounds the amount of entity managers and connections the
+     *                 batch holds at the same time.  By default, a pool of {@link #DEFAULT_PARALLELISM} daemon threads shared by all
+     *                 batches.
+     *
+     * @return This batch.
+     */
+    public Batch executeOn(final ExecutorService executor) {
+
+        this.executor = checkNotNull( executor );
+
+        return this;
+    }
+
+    /**
+     * Persist the given new entities.
+     *
+     * @return The amount of entities written and how long that took.
+     */
+    public <E> Result persist(final Iterable<E> entities) {
+
+        return write( entities, (em, entity) -> em.persist( entity ) );
+    }
+
+    /**
+     * Merge the state of the given entities.
+     *
+     * @return The amount of entities written and how long that took.
+     */
+    public <E> Result merge(final Iterable<E> entities) {
+
+        return write( entities, (em, entity) -> em.merge( entity ) );
+    }
+
+    /**
+     * Write the given entities with a custom operation.
+     *
+     * @param entities  The entities to write.
+     * @param operation The operation that writes an entity through the given entity manager.
+     *
+     * @return The amount of entities written and how long that took.
+     */
+    public <E> Result write(final Iterable<E> entities, final BiConsumer<EntityManager, ? super E> operation) {
+
+        long start = System.nanoTime();
+        long rows;
+        if (partitions == 1)
+            rows = writePartition( entities, operation );
+
+        else {
+            Collection<E> entityCollection = entities instanceof Collection<?>? (Collection<E>) entities: Lists.newArrayList( entities );
+            int partitionSize = Math.max( 1, (entityCollection.size() + partitions - 1) / partitions );
+
+            List<Future<Long>> partitionRows = new LinkedList<>();
+            for (final List<E> partition : Iterables.partition( entityCollection, partitionSize ))
+                partitionRows.add( executor.submit( () -> writePartition( partition, operation ) ) );
+
+            rows = 0;
+            try {
+                for (final Future<Long> partitionRow : partitionRows)
+                    rows += partitionRow.get();
+            }
+            catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new PersistenceException( "Interrupted while writing batch partitions.", e );
+            }
+            catch (final ExecutionException e) {
+                Throwables.throwIfUnchecked( e.getCause() );
+                throw new PersistenceException( "Couldn't write batch partition.", e.getCause() );
+            }
+            finally {
+                for (final Future<Long> partitionRow : partitionRows)
+                    partitionRow.cancel( true );
+            }
+        }
+
+        Result result = new Result( rows, System.nanoTime() - start );
+        logger.dbg( "Batch wrote %d entities in %d partitions: %.0f rows/s", rows, partitions, result.getRowsPerSecond() );
+
+        return result;
+    }
+
+    private <E> long writePartition(final Iterable<E> entities, final BiConsumer<EntityManager, ? super E> operation) {
+
+        EntityManager em = emf.createEntityManager( properties );
+        try {
+            EntityTransaction transaction = em.getTransaction();
+            transaction.begin();
+            try {
+                long rows = 0;
+                Set<Class<?>> types = new HashSet<>();
+                for (final E entity : entities) {
+                    operation.accept( em, entity );
+                    types.add( entity.getClass() );
+
+                    if (++rows % flushSize == 0) {
+                        em.flush();
+                        em.clear();
+                    }
+                }
+
+                transaction.commit();
+                if (queryCache != null)
+                    queryCache.invalidate( types );
+                return rows;
+            }
+            finally {
+                if (transaction.isActive())
+                    transaction.rollback();
+            }
+        }
+        finally {
+            em.close();
+        }
+    }
+
+    /**
+     * The outcome of writing a batch.
+     */
+    public static class Result {
+
+        private final long rows;
+        private final long nanos;
+
+        Result(final long rows, final long nanos) {
+
+            this.rows = rows;
+            this.nanos = nanos;
+        }
+
+        /**
+         * @return The amount of entities written.
+         */
+        public long getRows() {
+
+            return rows;
+        }
+
+        /**
+         * @param unit The unit to express the time in.
+         *
+         * @return How long writing the entities took.
+         */
+        public long getTime(final TimeUnit unit) {
+
+            return unit.convert( nanos, TimeUnit.NANOSECONDS );
+        }
+
+        /**
+         * @return The amount of entities written per second.
+         */
+        public double getRowsPerSecond() {
+
+            return nanos == 0? 0: rows * 1e9 / nanos;
+        }
+
+        @Override
+        public String toString() {
+
+            return String.format( "{batch: rows=%d, rows/s=%.0f}", rows, getRowsPerSecond() );
+        }
+    }
+}
@@ -0,0 +1,248 @@
+/*
+ *   Copyright 2009, Maarten Billemont
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.lyndir.lhunath.opal.jpa;
+
+import static com.google.common.base.Preconditions.*;
+
+import com.google.common.collect.*;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.time.*;
+import java.util.*;
+import javax.annotation.Nullable;
+import javax.persistence.*;
+import javax.persistence.metamodel.EntityType;
+
+
+/**
+ * <h2>{@link CachedQuery}<br> <sub>A read query whose results are remembered in a {@link QueryCache}.</sub></h2>
+ *
+ * <p> Obtain one from {@link Persist#cachedQuery(String, Class)}.  The results are assumed to depend on the result type; declare
+ * other entity types the query reads with {@link #dependsOn(Class[])}. </p>
+ *
+ * <p> For queries of entities with a single identifier attribute, only the identifiers of the results are remembered: a cache hit
+ * loads the entities with one query by identifier into the current thread's entity manager, so that they are managed by it like the
+ * results of any other query.  Such hits only pay off for queries that are more expensive than a lookup by primary key.  Queries for
+ * immutable values (strings, numbers, enums, dates and times) remember the values themselves.  Queries for anything else are not
+ * cached. </p>
+ *
+ * <p> While the current thread's transaction has changed one of the query's dependencies, the query bypasses the cache so that it
+ * sees those changes. </p>
+ *
+ * @author lhunath
+ */
+public class CachedQuery<T> {
+
+    private static final Set<Class<?>> immutableValueTypes = ImmutableSet.<Class<?>>of(
+            String.class, Boolean.class, Character.class, Byte.class, Short.class, Integer.class, Long.class, Float.class, Double.class,
+            BigInteger.class, BigDecimal.class, UUID.class, Instant.class, LocalDate.class, LocalTime.class, LocalDateTime.class,
+            OffsetDateTime.class, ZonedDateTime.class );
+
+    // Loading cached entities binds their identifiers as parameters; many databases limit how many a statement can have.
+    private static final int MAXIMUM_FIND_IDS = 500;
+
+    private final Persist             persist;
+    @Nullable
+    private final QueryCache          cache;
+    private final String              jpql;
+    private final Class<T>            resultClass;
+    private final Set<Class<?>>       dependencies = new HashSet<>();
+    private final Map<Object, Object> parameters   = new LinkedHashMap<>();
+    private       int                 firstResult;
+    private       int                 maxResults   = -1;
+
+    CachedQuery(final Persist persist, @Nullable final QueryCache cache, final String jpql, final Class<T> resultClass) {
+
+        this.persist = persist;
+        this.cache = cache;
+        this.jpql = jpql;
+        this.resultClass = resultClass;
+
+        dependencies.add( resultClass );
+    }
+
+    /**
+     * @param types Entity types, besides the result type, whose changes affect the query's results.
+     *
+     * @return This query.
+     */
+    public CachedQuery<T> dependsOn(final Class<?>... types) {
+
+        Collections.addAll( dependencies, types );
+
+        return this;
+    }
+
+    /**
+     * @return This query.
+     */
+    public CachedQuery<T> setParameter(final String name, final Object value) {
+
+        parameters.put( checkNotNull( name ), value );
+
+        return this;
+    }
+
+    /**
+     * @return This query.
+     */
+    public CachedQuery<T> setParameter(final int position, final Object value) {
+
+        parameters.put( position, value );
+
+        return this;
+    }
+
+    /**
+     * @return This query.
+     */
+    public CachedQuery<T> setFirstResult(final int firstResult) {
+
+        this.firstResult = firstResult;
+
+        return this;
+    }
+
+    /**
+     * @return This query.
+     */
+    public CachedQuery<T> setMaxResults(final int maxResults) {
+
+        this.maxResults = maxResults;
+
+        return this;
+    }
+
+    /**
+     * @return The query's results, from the cache if they are remembered.  The list is unmodifiable.
+     */
+    @SuppressWarnings("unchecked")
+    public List<T> getResultList() {
+
+        if (cache == null || persist.hasChanged( dependencies ))
+            return query();
+
+        String findJPQL = getFindJPQL();
+        boolean entities = findJPQL != null;
+        if (!entities && !resultClass.isEnum() && !immutableValueTypes.contains( resultClass ))
+            return query();
+
+        EntityManager em = persist.getEntityManager();
+
+        QueryCache.Key key = new QueryCache.Key( jpql, resultClass, parameters, firstResult, maxResults );
+        List<?> cached = cache.get( key );
+        if (cached != null) {
+            List<T> results = entities? find( em, findJPQL, cached ): (List<T>) cached;
+            if (results != null)
+                return results;
+
+            // One of the entities was removed without the cache learning of it.
+            cache.remove( key );
+        }
+
+        long stamp = cache.stamp();
+        List<T> results = query();
+
+        // Executing the query may have flushed changes of our own.
+        if (!persist.hasChanged( dependencies )) {
+            List<?> values = entities? identify( em, results ): new ArrayList<>( results );
+            if (values != null)
+                cache.put( key, Collections.unmodifiableList( values ), dependencies, stamp );
+        }
+
+        return results;
+    }
+
+    /**
+     * @return A query for the result entities with the identifiers in the {@code ids} parameter, or {@code null} if the results aren't
+     * entities with a single identifier attribute.
+     */
+    @Nullable
+    private String getFindJPQL() {
+
+        EntityType<?> entityType = persist.getEntityType( resultClass );
+        if (entityType == null || !entityType.hasSingleIdAttribute())
+            return null;
+
+        String idName = entityType.getId( entityType.getIdType().getJavaType() ).getName();
+        return "SELECT e FROM " + entityType.getName() + " e WHERE e." + idName + " IN :ids";
+    }
+
+    /**
+     * @return The identifiers of the given entities, or {@code null} if one of them doesn't have one.
+     */
+    @Nullable
+    private static List<Object> identify(final EntityManager em, final List<?> entities) {
+
+        PersistenceUnitUtil util = em.getEntityManagerFactory().getPersistenceUnitUtil();
+        List<Object> ids = new ArrayList<>( entities.size() );
+        for (final Object entity : entities) {
+            Object id = entity == null? null: util.getIdentifier( entity );
+            if (id == null)
+                return null;
+
+            ids.add( id );
+        }
+
+        return ids;
+    }
+
+    /**
+     * @param findJPQL A query for the entities with the identifiers in its {@code ids} parameter.
+     *
+     * @return The entities with the given identifiers in the same order, managed by the given entity manager, or {@code null} if one of
+     * them doesn't exist anymore.
+     */
+    @Nullable
+    private List<T> find(final EntityManager em, final String findJPQL, final List<?> ids) {
+
+        if (ids.isEmpty())
+            return ImmutableList.of();
+
+        PersistenceUnitUtil util = em.getEntityManagerFactory().getPersistenceUnitUtil();
+        Map<Object, T> entitiesById = new HashMap<>( ids.size() );
+        for (final List<?> partition : Iterables.partition( new LinkedHashSet<>( ids ), MAXIMUM_FIND_IDS ))
+            for (final T entity : em.createQuery( findJPQL, resultClass ).setParameter( "ids", partition ).getResultList())
+                entitiesById.put( util.getIdentifier( entity ), entity );
+
+        List<T> entities = new ArrayList<>( ids.size() );
+        for (final Object id : ids) {
+            T entity = entitiesById.get( id );
+            if (entity == null)
+                return null;
+
+            entities.add( entity );
+        }
+
+        return Collections.unmodifiableList( entities );
+    }
+
+    private List<T> query() {
+
+        TypedQuery<T> query = persist.getEntityManager().createQuery( jpql, resultClass );
+        for (final Map.Entry<Object, Object> parameter : parameters.entrySet())
+            if (parameter.getKey() instanceof Integer)
+                query.setParameter( (Integer) parameter.getKey(), parameter.getValue() );
+            else
+                query.setParameter( (String) parameter.getKey(), parameter.getValue() );
+        if (firstResult > 0)
+            query.setFirstResult( firstResult );
+        if (maxResults >= 0)
+            query.setMaxResults( maxResults );
+
+        return Collections.unmodifiableList( query.getResultList() );
+    }
+}
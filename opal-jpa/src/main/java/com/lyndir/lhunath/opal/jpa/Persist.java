@@ -17,28 +17,52 @@ package com.lyndir.lhunath.opal.jpa;
 
 import static com.google.common.base.Preconditions.*;
 
+import com.lyndir.lhunath.opal.system.logging.Logger;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import javax.persistence.*;
+import javax.persistence.metamodel.EntityType;
 
 
 /**
  * <h2>{@link Persist}<br> <sub>Utility class for getting the entity manager and handling transactions.</sub></h2>
  *
+ * <p> A {@link Persist} can be shared by many threads.  Each thread gets its own entity manager and transaction from the shared
+ * entity manager factory, so that concurrent requests are isolated from each other. </p>
+ *
+ * <p> A transaction begun with {@link #beginLazily(Object, boolean)} only opens an entity manager (and with it, a database
+ * connection) when the entity manager is first used.  The time each entity manager was held open is recorded. </p>
+ *
+ * <p> When constructed with a {@link QueryCache}, read queries can be answered from it with {@link #cachedQuery(String, Class)}.
+ * Committing a transaction invalidates the cached results that depend on the types of the entities it {@link #changed(Class)
+ * changed}. </p>
+ *
  * <p> <i>Nov 10, 2010</i> </p>
  *
  * @author mbillemo
  */
 public class Persist {
 
+    static final Logger logger = Logger.get( Persist.class );
+
     public static final  String               DEFAULT_UNIT = "DefaultDS";
     private static final ThreadLocal<Persist> persistences = new ThreadLocal<>();
 
     private final EntityManagerFactory emf;
     @Nullable
-    private       EntityManager        em;
-    @Nullable
-    private       Object               transactionOwner;
+    private final QueryCache           queryCache;
+    private final ThreadLocal<Context> contexts         = new ThreadLocal<>();
+    private final AtomicLong           openedCount      = new AtomicLong();
+    private final AtomicLong           openedNanos      = new AtomicLong();
+    private final AtomicLong           maximumOpenNanos = new AtomicLong();
+
+    /**
+     * The metamodel's entity type of each class that was looked up, or absent if the class is not an entity.
+     */
+    private final ConcurrentMap<Class<?>, Optional<EntityType<?>>> entityTypes = new ConcurrentHashMap<>();
 
     @Nonnull
     public static Persist persistence() {
@@ -46,6 +70,15 @@ public class Persist {
         return checkNotNull( persistences.get(), "No persistence active." );
     }
 
+    /**
+     * @return The persistence that is active on the current thread, or {@code null} if there is none.
+     */
+    @Nullable
+    static Persist active() {
+
+        return persistences.get();
+    }
+
     @Nonnull
     public static EntityManager entityManager() {
 
@@ -64,24 +97,117 @@ public class Persist {
 
     public Persist(final EntityManagerFactory emf) {
 
+        this( emf, null );
+    }
+
+    /**
+     * @param emf        The factory to create entity managers with.
+     * @param queryCache The cache to remember the results of {@link #cachedQuery(String, Class) cached queries} in, or {@code null} to
+     *                   execute them like any other query.
+     */
+    public Persist(final EntityManagerFactory emf, @Nullable final QueryCache queryCache) {
+
         this.emf = emf;
+        this.queryCache = queryCache;
     }
 
     /**
-     * Obtain the entity manager.  A new one will be created if none is open yet/anymore.
+     * Obtain the current thread's entity manager.  A new one will be created if none is open yet/anymore.  If a transaction was begun
+     * lazily, it is begun now.
      *
-     * @return The current entity manager.
+     * @return The current thread's entity manager.
      */
     public EntityManager getEntityManager() {
 
-        if (em == null || !em.isOpen())
-            em = emf.createEntityManager();
+        Context context = context();
+        if (context.em == null || !context.em.isOpen()) {
+            context.em = emf.createEntityManager();
+            context.openedNanos = System.nanoTime();
+            if (context.readOnly)
+                context.em.setFlushMode( FlushModeType.COMMIT );
+        }
+
+        EntityManager em = checkNotNull( context.em, "Failed to create an entity manager." );
+        if (context.pending) {
+            context.pending = false;
+            em.getTransaction().begin();
+        }
+
+        return em;
+    }
+
+    /**
+     * @return A new batch for writing many entities through entity managers of its own.
+     */
+    public Batch batch() {
+
+        return new Batch( emf, queryCache );
+    }
+
+    /**
+     * @param jpql        The query.
+     * @param resultClass The type of the query's results.
+     *
+     * @return A query whose results are remembered until the entity types it depends on change.  Without a query cache, it is always
+     * executed.
+     */
+    public <T> CachedQuery<T> cachedQuery(final String jpql, final Class<T> resultClass) {
+
+        return new CachedQuery<>( this, queryCache, jpql, resultClass );
+    }
+
+    /**
+     * @return The metamodel's entity type for the given class, or {@code null} if it is not an entity.
+     */
+    @Nullable
+    EntityType<?> getEntityType(final Class<?> type) {
+
+        return entityTypes.computeIfAbsent( type, key -> {
+            for (final EntityType<?> entityType : emf.getMetamodel().getEntities())
+                if (entityType.getJavaType() == key)
+                    return Optional.<EntityType<?>>of( entityType );
+
+            return Optional.empty();
+        } ).orElse( null );
+    }
+
+    @Nullable
+    public QueryCache getQueryCache() {
+
+        return queryCache;
+    }
+
+    /**
+     * Record that the current thread's transaction changed an entity of the given type.  When the transaction is committed, the cached
+     * query results that depend on the type are invalidated.
+     *
+     * @param entityType The type of the changed entity.
+     */
+    public void changed(final Class<?> entityType) {
 
-        return checkNotNull( em, "Failed to create an entity manager." );
+        if (queryCache != null)
+            context().changedTypes.add( entityType );
     }
 
     /**
-     * Begin a new transaction if one is not active yet.
+     * @return {@code true}: The current thread's transaction changed an entity of one of the given types or their subclasses.
+     */
+    boolean hasChanged(final Collection<Class<?>> types) {
+
+        Context context = contexts.get();
+        if (context == null)
+            return false;
+
+        for (final Class<?> changedType : context.changedTypes)
+            for (final Class<?> type : types)
+                if (type.isAssignableFrom( changedType ))
+                    return true;
+
+        return false;
+    }
+
+    /**
+     * Begin a new transaction on the current thread if one is not active yet.
      *
      * @param caller The party responsible for completing the transaction later on with a {@link #complete(Object)} call. Generally, just
      *               {@code this}.
@@ -90,17 +216,90 @@ public class Persist {
      */
     public EntityTransaction begin(final Object caller) {
 
-        if (transactionOwner == null) {
-            getEntityManager().getTransaction().begin();
-            transactionOwner = caller;
+        beginLazily( caller, false );
+
+        return getEntityManager().getTransaction();
+    }
+
+    /**
+     * Begin a new transaction on the current thread if one is not active yet, but defer opening an entity manager and beginning the
+     * transaction until the entity manager is first obtained.
+     *
+     * @param caller   The party responsible for completing the transaction later on with a {@link #complete(Object)} call.  Generally,
+     *                 just {@code this}.
+     * @param readOnly {@code true}: The transaction will not be flushed and will be rolled back instead of committed on completion.
+     *
+     * @return {@code true}  if the caller became the owner of a new transaction.  {@code false}  if a transaction was already begun by
+     * another party, who remains responsible for completing it.
+     */
+    public boolean beginLazily(final Object caller, final boolean readOnly) {
+
+        boolean didBegin = false;
+        Context context = context();
+        if (context.transactionOwner == null) {
+            context.transactionOwner = caller;
+            context.pending = true;
+            setReadOnly( readOnly );
+            didBegin = true;
         }
 
         persistences.set( this );
-        return getEntityManager().getTransaction();
+        return didBegin;
+    }
+
+    /**
+     * Change whether the current thread's transaction is read-only.  The changes of a read-only transaction are not flushed and are
+     * rolled back on completion.
+     *
+     * @param readOnly {@code true}: Don't persist the changes of the current transaction.
+     */
+    public void setReadOnly(final boolean readOnly) {
+
+        Context context = context();
+        context.readOnly = readOnly;
+        if (context.em != null && context.em.isOpen())
+            context.em.setFlushMode( readOnly? FlushModeType.COMMIT: FlushModeType.AUTO );
+    }
+
+    /**
+     * @return {@code true}: The current thread's transaction is read-only.
+     */
+    public boolean isReadOnly() {
+
+        Context context = contexts.get();
+        return context != null && context.readOnly;
+    }
+
+    /**
+     * @return The amount of entity managers that were opened and have since been closed.
+     */
+    public long getOpenedCount() {
+
+        return openedCount.get();
+    }
+
+    /**
+     * @param unit The unit to express the time in.
+     *
+     * @return The total time that entity managers were held open, up to the last time each was closed.
+     */
+    public long getOpenedTime(final TimeUnit unit) {
+
+        return unit.convert( openedNanos.get(), TimeUnit.NANOSECONDS );
+    }
+
+    /**
+     * @param unit The unit to express the time in.
+     *
+     * @return The longest time a single entity manager was held open.
+     */
+    public long getMaximumOpenTime(final TimeUnit unit) {
+
+        return unit.convert( maximumOpenNanos.get(), TimeUnit.NANOSECONDS );
     }
 
     /**
-     * Close and clean up the entity manager if one is open.
+     * Close and clean up the current thread's entity manager if one is open.
      *
      * @return {@code true}  if an entity manager was open and has been closed as a result of this call.  {@code false}  if there
      * was no entity manager or it was not open.
@@ -108,19 +307,29 @@ public class Persist {
     private boolean close() {
 
         boolean didClose = false;
-        if (em != null && em.isOpen()) {
-            em.close();
+        Context context = contexts.get();
+        if (context != null && context.em != null && context.em.isOpen()) {
+            context.em.close();
             didClose = true;
-        }
 
-        em = null;
+            long held = System.nanoTime() - context.openedNanos;
+            openedCount.incrementAndGet();
+            openedNanos.addAndGet( held );
+            for (long maximum; (maximum = maximumOpenNanos.get()) < held; )
+                if (maximumOpenNanos.compareAndSet( maximum, held ))
+                    break;
+
+            logger.dbg( "Entity manager of %s was held for %d ms%s.", context.transactionOwner, TimeUnit.NANOSECONDS.toMillis( held ),
+                        context.readOnly? " (read-only)": "" );
+        }
 
+        contexts.remove();
         persistences.remove();
         return didClose;
     }
 
     /**
-     * Abort the current transaction if one is active.
+     * Abort the current thread's transaction if one is active.
      *
      * @return {@code true}  if an active transaction was rolled back as a result of this call.  {@code false}  if there was no
      * transaction or if it was not active anymore.
@@ -128,40 +337,106 @@ public class Persist {
     public boolean abort() {
 
         boolean didRollBack = false;
-        EntityTransaction transaction = getEntityManager().getTransaction();
-        if (transaction != null && transaction.isActive()) {
-            transaction.rollback();
-            didRollBack = true;
+        EntityTransaction transaction = getTransaction();
+        try {
+            if (transaction != null && transaction.isActive()) {
+                transaction.rollback();
+                didRollBack = true;
+            }
+        }
+        finally {
+            close();
         }
-
-        transactionOwner = null;
-        close();
 
         return didRollBack;
     }
 
     /**
-     * If a transaction is active and owned by the caller, commit it.
+     * If a transaction is active on the current thread and owned by the caller, commit it.  Read-only transactions are rolled back
+     * instead.  The owner's entity manager is closed in any case, even if its transaction is no longer active.
      *
      * @param caller The object that was passed as caller to {@link #begin(Object)}.  Generally, just {@code this} .
      *
-     * @return {@code true}  if a transaction was active and the caller owned it, and the transaction was successfully committed.
-     * {@code false}  otherwise.
+     * @return {@code true}  if the caller owned the transaction and the transaction was successfully completed or, if it was begun lazily,
+     * was never needed.  {@code false}  otherwise.
      */
     public boolean complete(final Object caller) {
 
-        boolean didComplete = false;
-        EntityTransaction transaction = getEntityManager().getTransaction();
-
+        Context context = contexts.get();
         //noinspection ObjectEquality
-        if (transactionOwner == caller && transaction != null && transaction.isActive()) {
-            transaction.commit();
-            didComplete = true;
+        if (context == null || context.transactionOwner != caller)
+            return false;
 
-            transactionOwner = null;
+        if (context.pending) {
+            // The transaction was never needed.
             close();
+            return true;
         }
 
+        boolean didComplete = false;
+        EntityTransaction transaction = getTransaction();
+        if (transaction == null || !transaction.isActive())
+            // Nothing left to complete, but the owner's entity manager must not outlive it.
+            close();
+        else
+            try {
+                if (context.readOnly)
+                    transaction.rollback();
+                else {
+                    transaction.commit();
+                    if (queryCache != null)
+                        queryCache.invalidate( context.changedTypes );
+                }
+                didComplete = true;
+            }
+            finally {
+                // A failed commit must not leave this thread's entity manager open for whatever it runs next.
+                try {
+                    if (!didComplete && transaction.isActive())
+                        transaction.rollback();
+                }
+                finally {
+                    close();
+                }
+            }
+
         return didComplete;
     }
+
+    private Context context() {
+
+        Context context = contexts.get();
+        if (context == null)
+            contexts.set( context = new Context() );
+
+        return context;
+    }
+
+    /**
+     * @return The transaction of the current thread's entity manager, or {@code null} if the thread has no open entity manager.
+     */
+    @Nullable
+    private EntityTransaction getTransaction() {
+
+        Context context = contexts.get();
+        if (context == null || context.em == null || !context.em.isOpen())
+            return null;
+
+        return context.em.getTransaction();
+    }
+
+    /**
+     * The entity manager and transaction state of one thread.
+     */
+    private static class Context {
+
+        final Set<Class<?>> changedTypes = new HashSet<>();
+        @Nullable
+        EntityManager em;
+        @Nullable
+        Object        transactionOwner;
+        boolean       pending;
+        boolean       readOnly;
+        long          openedNanos;
+    }
 }
@@ -1,13 +1,24 @@
 package com.lyndir.lhunath.opal.jpa;
 
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
 import com.google.inject.Singleton;
 import com.lyndir.lhunath.opal.system.logging.Logger;
 import java.io.IOException;
+import java.util.regex.Pattern;
 import javax.servlet.*;
+import javax.servlet.http.HttpServletRequest;
 
 
 /**
- * <h2>{@link PersistFilter}<br> <sub>[in short] (TODO).</sub></h2>
+ * <h2>{@link PersistFilter}<br> <sub>Wraps each request in a transaction of its own.</sub></h2>
+ * <p>
+ * <p> The filter's {@link Persist} is shared by all requests, which each get their own entity manager and transaction on the thread
+ * that serves them.  The transaction is begun lazily, so requests that never use the entity manager don't hold a connection. </p>
+ * <p>
+ * <p> Requests whose path matches one of the read-only patterns get a read-only transaction, which is never flushed or committed.
+ * Patterns can be given to the constructor or as comma-separated regular expressions in the {@value #READ_ONLY_PATHS} init
+ * parameter. </p>
  * <p>
  * <p> <i>11 10, 2010</i> </p>
  *
@@ -18,7 +29,10 @@ public class PersistFilter implements Filter {
 
     static final Logger logger = Logger.get( PersistFilter.class );
 
-    private final Persist persistence;
+    public static final String READ_ONLY_PATHS = "readOnlyPaths";
+
+    private final Persist                persistence;
+    private       ImmutableList<Pattern> readOnlyPaths;
 
     private static Persist createPersistence() {
 
@@ -34,23 +48,36 @@ public class PersistFilter implements Filter {
         this( createPersistence() );
     }
 
-    public PersistFilter(final Persist persistence) {
+    /**
+     * @param persistence   The persistence to begin the transactions of requests with.
+     * @param readOnlyPaths Patterns of the request paths (relative to the context path) that only read from the database.
+     */
+    public PersistFilter(final Persist persistence, final Pattern... readOnlyPaths) {
 
         this.persistence = persistence;
+        this.readOnlyPaths = ImmutableList.copyOf( readOnlyPaths );
     }
 
     @Override
     public void init(final FilterConfig filterConfig)
             throws ServletException {
 
+        String readOnlyPathsParameter = filterConfig.getInitParameter( READ_ONLY_PATHS );
+        if (readOnlyPathsParameter != null) {
+            ImmutableList.Builder<Pattern> patterns = ImmutableList.<Pattern>builder().addAll( readOnlyPaths );
+            for (final String pattern : Splitter.on( ',' ).trimResults().omitEmptyStrings().split( readOnlyPathsParameter ))
+                patterns.add( Pattern.compile( pattern ) );
+            readOnlyPaths = patterns.build();
+        }
     }
 
     @Override
     public void doFilter(final ServletRequest request, final ServletResponse response, final FilterChain chain)
             throws IOException, ServletException {
 
+        boolean owner = false;
         try {
-            persistence.begin( this );
+            owner = persistence.beginLazily( this, isReadOnly( request ) );
 
             chain.doFilter( request, response );
         }
@@ -59,10 +86,35 @@ public class PersistFilter implements Filter {
             persistence.abort();
         }
         finally {
-            persistence.complete( this );
+            // Only the owner completes the transaction; a failure to do so must not leave it open for the next request on this thread.
+            boolean completed = false;
+            try {
+                completed = persistence.complete( this );
+            }
+            finally {
+                if (owner && !completed)
+                    persistence.abort();
+            }
         }
     }
 
+    private boolean isReadOnly(final ServletRequest request) {
+
+        if (readOnlyPaths.isEmpty() || !(request instanceof HttpServletRequest))
+            return false;
+
+        HttpServletRequest httpRequest = (HttpServletRequest) request;
+        String path = httpRequest.getServletPath();
+        if (httpRequest.getPathInfo() != null)
+            path += httpRequest.getPathInfo();
+
+        for (final Pattern readOnlyPath : readOnlyPaths)
+            if (readOnlyPath.matcher( path ).matches())
+                return true;
+
+        return false;
+    }
+
     @Override
     public void destroy() {
 
@@ -0,0 +1,305 @@
+/*
+ *   Copyright 2009, Maarten Billemont
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.lyndir.lhunath.opal.jpa;
+
+import static com.google.common.base.Preconditions.*;
+
+import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableSet;
+import java.util.*;
+import javax.annotation.Nullable;
+
+
+/**
+ * <h2>{@link QueryCache}<br> <sub>Remembers the results of read queries until the entity types they depend on change.</sub></h2>
+ *
+ * <p> Results are keyed by their JPQL, result type, bound parameters and result window.  Each result records the entity types it
+ * depends on.  Committing a change to an entity of one of those types (or of a subclass) forgets the result.  The least recently used
+ * results are forgotten when the cache is full. </p>
+ *
+ * <p> Changes are learned from {@link Persist#changed(Class)}, which {@link QueryCacheListener} calls for entities it is registered
+ * for.  The cache is independent of the persistence provider, but it only sees changes made through this JVM's {@link Persist}. </p>
+ *
+ * <p> Changes made any other way are not tracked: bulk JPQL {@code UPDATE} and {@code DELETE} statements, native SQL and other
+ * applications sharing the database leave the cache stale.  Follow them with {@link #invalidate(Collection)} of the affected types.
+ * </p>
+ *
+ * <p> Only entity identifiers and immutable values are remembered, never entities: cached results are shared by all threads, and
+ * {@link CachedQuery} finds the entities in the entity manager of the thread that asks for them. </p>
+ *
+ * <p> The cache is opt-in: pass one to {@link Persist#Persist(javax.persistence.EntityManagerFactory, QueryCache)}. </p>
+ *
+ * @author lhunath
+ */
+public class QueryCache {
+
+    public static final int DEFAULT_MAXIMUM_SIZE = 1000;
+
+    private final Map<Key, Entry>         entries;
+    private final Map<Class<?>, Set<Key>> keysByType = new HashMap<>();
+
+    /**
+     * Bumped by every invalidation, so that results queried concurrently with a committed change are not cached.
+     */
+    private long generation;
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long invalidations;
+
+    public QueryCache() {
+
+        this( DEFAULT_MAXIMUM_SIZE );
+    }
+
+    /**
+     * @param maximumSize The maximum amount of query results to remember.
+     */
+    public QueryCache(final int maximumSize) {
+
+        checkArgument( maximumSize > 0, "Maximum size must be positive." );
+
+        entries = new LinkedHashMap<Key, Entry>( 16, 0.75f, true ) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<Key, Entry> eldest) {
+
+                if (size() <= maximumSize)
+                    return false;
+
+                unindex( eldest.getKey(), eldest.getValue() );
+                ++evictions;
+                return true;
+            }
+        };
+    }
+
+    /**
+     * @return The results remembered for the given query, or {@code null} if there are none.
+     */
+    @Nullable
+    synchronized List<?> get(final Key key) {
+
+        Entry entry = entries.get( key );
+        if (entry == null) {
+            ++misses;
+            return null;
+        }
+
+        ++hits;
+        return entry.results;
+    }
+
+    /**
+     * Forget the results remembered for the given query.
+     */
+    synchronized void remove(final Key key) {
+
+        Entry entry = entries.remove( key );
+        if (entry != null) {
+            unindex( key, entry );
+            ++invalidations;
+        }
+    }
+
+    /**
+     * @return A stamp to pass to {@link #put(Key, List, Set, long)} once the query has been executed.
+     */
+    synchronized long stamp() {
+
+        return generation;
+    }
+
+    /**
+     * @param key          The query.
+     * @param results      The query's entity identifiers or immutable values.  They must not be modified anymore.
+     * @param dependencies The entity types the results depend on.
+     * @param stamp        The {@link #stamp()} obtained before the query was executed.
+     */
+    synchronized void put(final Key key, final List<?> results, final Set<Class<?>> dependencies, final long stamp) {
+
+        if (stamp != generation)
+            // A change was committed while querying.
+            return;
+
+        Entry entry = new Entry( results, ImmutableSet.copyOf( dependencies ) );
+        Entry oldEntry = entries.put( key, entry );
+        if (oldEntry != null)
+            unindex( key, oldEntry );
+
+        for (final Class<?> dependency : entry.dependencies) {
+            Set<Key> keys = keysByType.get( dependency );
+            if (keys == null)
+                keysByType.put( dependency, keys = new HashSet<>() );
+            keys.add( key );
+        }
+    }
+
+    /**
+     * Forget the results that depend on any of the given entity types or their superclasses.
+     *
+     * @param types The types of entities that were changed.
+     */
+    public synchronized void invalidate(final Collection<Class<?>> types) {
+
+        if (types.isEmpty())
+            return;
+
+        ++generation;
+        for (final Class<?> changedType : types)
+            for (Class<?> type = changedType; type != null; type = type.getSuperclass()) {
+                Set<Key> keys = keysByType.remove( type );
+                if (keys != null)
+                    for (final Key key : keys) {
+                        Entry entry = entries.remove( key );
+                        if (entry != null) {
+                            unindex( key, entry );
+                            ++invalidations;
+                        }
+                    }
+            }
+    }
+
+    /**
+     * Forget all results.
+     */
+    public synchronized void invalidateAll() {
+
+        ++generation;
+        invalidations += entries.size();
+        entries.clear();
+        keysByType.clear();
+    }
+
+    /**
+     * @return The amount of results that are currently remembered.
+     */
+    public synchronized int getSize() {
+
+        return entries.size();
+    }
+
+    /**
+     * @return The amount of queries that were answered from the cache.
+     */
+    public synchronized long getHits() {
+
+        return hits;
+    }
+
+    /**
+     * @return The amount of queries that had to be executed because the cache didn't have their results.
+     */
+    public synchronized long getMisses() {
+
+        return misses;
+    }
+
+    /**
+     * @return The amount of results that were forgotten to make room for others.
+     */
+    public synchronized long getEvictions() {
+
+        return evictions;
+    }
+
+    /**
+     * @return The amount of results that were forgotten because an entity type they depend on changed.
+     */
+    public synchronized long getInvalidations() {
+
+        return invalidations;
+    }
+
+    @Override
+    public synchronized String toString() {
+
+        return String.format( "{queryCache: size=%d, hits=%d, misses=%d, evictions=%d, invalidations=%d}", entries.size(), hits, misses,
+                              evictions, invalidations );
+    }
+
+    private void unindex(final Key key, final Entry entry) {
+
+        for (final Class<?> dependency : entry.dependencies) {
+            Set<Key> keys = keysByType.get( dependency );
+            if (keys != null) {
+                keys.remove( key );
+                if (keys.isEmpty())
+                    keysByType.remove( dependency );
+            }
+        }
+    }
+
+    /**
+     * Identifies a query by everything that determines its results.
+     */
+    static class Key {
+
+        private final String              jpql;
+        private final Class<?>            resultClass;
+        private final Map<Object, Object> parameters;
+        private final int                 firstResult;
+        private final int                 maxResults;
+
+        Key(final String jpql, final Class<?> resultClass, final Map<Object, Object> parameters, final int firstResult,
+            final int maxResults) {
+
+            this.jpql = jpql;
+            this.resultClass = resultClass;
+            // Parameters may be bound to null.
+            this.parameters = Collections.unmodifiableMap( new LinkedHashMap<>( parameters ) );
+            this.firstResult = firstResult;
+            this.maxResults = maxResults;
+        }
+
+        @Override
+        public int hashCode() {
+
+            return Objects.hashCode( jpql, resultClass, parameters, firstResult, maxResults );
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+
+            if (obj == this)
+                return true;
+            if (!(obj instanceof Key))
+                return false;
+
+            Key other = (Key) obj;
+            return jpql.equals( other.jpql ) && resultClass == other.resultClass && parameters.equals( other.parameters )
+                   && firstResult == other.firstResult && maxResults == other.maxResults;
+        }
+
+        @Override
+        public String toString() {
+
+            return String.format( "{query: %s, parameters=%s}", jpql, parameters );
+        }
+    }
+
+
+    private static class Entry {
+
+        final List<?>                results;
+        final ImmutableSet<Class<?>> dependencies;
+
+        Entry(final List<?> results, final ImmutableSet<Class<?>> dependencies) {
+
+            this.results = results;
+            this.dependencies = dependencies;
+        }
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ *   Copyright 2009, Maarten Billemont
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.lyndir.lhunath.opal.jpa;
+
+import javax.persistence.*;
+
+
+/**
+ * <h2>{@link QueryCacheListener}<br> <sub>Tells the active {@link Persist} about changed entities.</sub></h2>
+ *
+ * <p> Register it with {@code @EntityListeners(QueryCacheListener.class)} on entities, or as a default entity listener in {@code
+ * orm.xml}, so that committing changes to those entities invalidates the {@link QueryCache} results that depend on them. </p>
+ *
+ * @author lhunath
+ */
+public class QueryCacheListener {
+
+    @PrePersist
+    @PreUpdate
+    @PreRemove
+    public void changed(final Object entity) {
+
+        Persist persist = Persist.active();
+        if (persist != null)
+            persist.changed( entity.getClass() );
+    }
+}
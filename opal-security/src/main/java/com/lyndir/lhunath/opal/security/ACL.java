@@ -17,16 +17,24 @@ package com.lyndir.lhunath.opal.security;
 
 import static com.google.common.base.Preconditions.*;
 
-import com.google.common.base.Verify;
+import com.google.common.collect.AbstractIterator;
 import com.google.common.collect.ImmutableSet;
 import com.lyndir.lhunath.opal.system.logging.Logger;
 import java.util.*;
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
 
 /**
  * <h2>{@link ACL}<br> <sub>A list of access control grants.</sub></h2>
  *
+ * <p> ACLs are safe for use by multiple threads.  Every change publishes a new immutable snapshot of the grants, so lookups and views
+ * never lock and never observe a change halfway.  Views iterate the snapshot that was current when they were obtained without copying
+ * it. </p>
+ *
+ * <p> Grants are stored compactly: the subjects in an open-addressed table and their permissions as ordinals in a parallel byte
+ * array, so that large ACLs cost a reference and a byte per subject. </p>
+ *
  * <p> <i>Mar 14, 2010</i> </p>
  *
  * @author lhunath
@@ -35,9 +43,9 @@ public class ACL {
 
     static final Logger logger = Logger.get( ACL.class );
 
-    private final Map<Subject, Permission> subjectPermissions = new HashMap<>();
-    @Nonnull
-    private Permission defaultPermission;
+    private static final Permission[] PERMISSIONS = Permission.values();
+
+    private volatile Grants grants;
 
     /**
      * An {@link ACL} that grants subjects the {@link Permission#INHERIT} permission by default.
@@ -52,7 +60,7 @@ public class ACL {
      */
     public ACL(@Nonnull final Permission defaultPermission) {
 
-        this.defaultPermission = defaultPermission;
+        grants = new Grants( checkNotNull( defaultPermission, "Given permission must not be null." ), new Subject[0], new byte[0], 0, 0 );
     }
 
     /**
@@ -62,11 +70,12 @@ public class ACL {
      *
      * @param permission The permission that will be granted to the given subject.
      */
-    public void setDefaultPermission(@Nonnull final Permission permission) {
+    public synchronized void setDefaultPermission(@Nonnull final Permission permission) {
 
         checkNotNull( permission, "Given permission must not be null." );
 
-        defaultPermission = permission;
+        Grants current = grants;
+        grants = new Grants( permission, current.subjects, current.permissions, current.size, current.version + 1 );
     }
 
     /**
@@ -76,12 +85,12 @@ public class ACL {
      * @param subject    The subject that will be granted the given permission.
      * @param permission The permission that will be granted to the given subject.
      */
-    public void setSubjectPermission(final Subject subject, final Permission permission) {
+    public synchronized void setSubjectPermission(final Subject subject, final Permission permission) {
 
         checkNotNull( subject, "Given subject must not be null." );
         checkNotNull( permission, "Given permission must not be null." );
 
-        subjectPermissions.put( subject, permission );
+        grants = grants.with( subject, permission );
     }
 
     /**
@@ -94,11 +103,17 @@ public class ACL {
      *         the
      *         default permissions.
      */
-    public Permission unsetSubjectPermission(final Subject subject) {
+    @Nullable
+    public synchronized Permission unsetSubjectPermission(final Subject subject) {
 
         checkNotNull( subject, "Given subject must not be null." );
 
-        return subjectPermissions.remove( subject );
+        Grants current = grants;
+        Permission permission = current.get( subject );
+        if (permission != null)
+            grants = current.without( subject );
+
+        return permission;
     }
 
     /**
@@ -108,9 +123,7 @@ public class ACL {
      */
     public void revokeSubjectPermission(final Subject subject) {
 
-        checkNotNull( subject, "Given subject must not be null." );
-
-        subjectPermissions.remove( subject );
+        unsetSubjectPermission( subject );
     }
 
     /**
@@ -118,7 +131,7 @@ public class ACL {
      */
     public Permission getDefaultPermission() {
 
-        return checkNotNull( defaultPermission, "Default permission is unset." );
+        return grants.defaultPermission;
     }
 
     /**
@@ -131,12 +144,14 @@ public class ACL {
      *
      * @return The permission granted to the given subject by this access control.
      */
-    public Permission getSubjectPermission(final Subject subject) {
+    public Permission getSubjectPermission(@Nullable final Subject subject) {
 
-        if (isSubjectPermissionDefault( subject ))
-            return getDefaultPermission();
+        Grants current = grants;
+        Permission permission = current.get( subject );
+        if (permission == null)
+            return current.defaultPermission;
 
-        return Verify.verifyNotNull( subjectPermissions.get( subject ), "Permission for %s is unset.", subject );
+        return permission;
     }
 
     /**
@@ -144,22 +159,225 @@ public class ACL {
      *
      * @return {@code true} if the subject's permissions in this ACL are determined by the default ACL.
      */
-    public boolean isSubjectPermissionDefault(final Subject subject) {
+    public boolean isSubjectPermissionDefault(@Nullable final Subject subject) {
 
-        return !subjectPermissions.containsKey( subject );
+        return grants.get( subject ) == null;
     }
 
     /**
-     * @return The subjects that have non-default permissions set in this ACL.
+     * @return The subjects that have non-default permissions set in this ACL, as they were when this method was called.
      */
     public ImmutableSet<Subject> getPermittedSubjects() {
 
-        return ImmutableSet.copyOf( subjectPermissions.keySet() );
+        return ImmutableSet.copyOf( getSubjectPermissions().keySet() );
+    }
+
+    /**
+     * @return The non-default permissions set in this ACL by subject, as they were when this method was called.
+     */
+    public Map<Subject, Permission> getSubjectPermissions() {
+
+        return new GrantsView( grants );
+    }
+
+    /**
+     * @return The amount of subjects that have non-default permissions set in this ACL.
+     */
+    public int countPermittedSubjects() {
+
+        return grants.size;
+    }
+
+    /**
+     * @return A stamp that changes whenever this ACL is modified.  Caches of decisions based on this ACL can compare it to the stamp at
+     *         the time of the decision to find out whether the decision is still current.
+     */
+    public long getVersion() {
+
+        return grants.version;
     }
 
     @Override
     public String toString() {
 
-        return String.format( "{acl: default=%s, subjects=%s}", defaultPermission, subjectPermissions );
+        Grants current = grants;
+        return String.format( "{acl: default=%s, subjects=%s}", current.defaultPermission, new GrantsView( current ) );
+    }
+
+    /**
+     * An immutable snapshot of an ACL's grants.
+     */
+    private static final class Grants {
+
+        final Permission defaultPermission;
+
+        /**
+         * Open-addressed by subject hash; empty slots are {@code null}.  The capacity is zero or a power of two.
+         */
+        final Subject[] subjects;
+
+        /**
+         * The ordinal of the permission granted to the subject in the same slot.
+         */
+        final byte[] permissions;
+        final int    size;
+        final long   version;
+
+        Grants(final Permission defaultPermission, final Subject[] subjects, final byte[] permissions, final int size, final long version) {
+
+            this.defaultPermission = defaultPermission;
+            this.subjects = subjects;
+            this.permissions = permissions;
+            this.size = size;
+            this.version = version;
+        }
+
+        @Nullable
+        Permission get(@Nullable final Subject subject) {
+
+            if (subject == null || size == 0)
+                return null;
+
+            int slot = slot( subjects, subject );
+            if (subjects[slot] == null)
+                return null;
+
+            return PERMISSIONS[permissions[slot]];
+        }
+
+        Grants with(final Subject subject, final Permission permission) {
+
+            Subject[] newSubjects = subjects;
+            byte[] newPermissions = permissions;
+            int newSize = size;
+
+            int slot = size == 0? -1: slot( subjects, subject );
+            if (slot < 0 || subjects[slot] == null) {
+                // Keep the table at most three quarters full.
+                ++newSize;
+                int capacity = Math.max( 4, subjects.length );
+                while (newSize * 4 > capacity * 3)
+                    capacity <<= 1;
+
+                newSubjects = new Subject[capacity];
+                newPermissions = new byte[capacity];
+                copy( this, newSubjects, newPermissions, null );
+                slot = slot( newSubjects, subject );
+            } else {
+                newSubjects = subjects.clone();
+                newPermissions = permissions.clone();
+            }
+
+            newSubjects[slot] = subject;
+            newPermissions[slot] = (byte) permission.ordinal();
+
+            return new Grants( defaultPermission, newSubjects, newPermissions, newSize, version + 1 );
+        }
+
+        Grants without(final Subject subject) {
+
+            Subject[] newSubjects = new Subject[subjects.length];
+            byte[] newPermissions = new byte[permissions.length];
+            copy( this, newSubjects, newPermissions, subject );
+
+            return new Grants( defaultPermission, newSubjects, newPermissions, size - 1, version + 1 );
+        }
+
+        /**
+         * Rehash the grants into the given (empty) table, leaving out the excluded subject.
+         */
+        private static void copy(final Grants grants, final Subject[] subjects, final byte[] permissions,
+                                 @Nullable final Subject excluded) {
+
+            for (int s = 0; s < grants.subjects.length; ++s) {
+                Subject subject = grants.subjects[s];
+                if (subject == null || subject.equals( excluded ))
+                    continue;
+
+                int slot = slot( subjects, subject );
+                subjects[slot] = subject;
+                permissions[slot] = grants.permissions[s];
+            }
+        }
+
+        /**
+         * @return The slot that holds the given subject or the empty slot where it belongs.  The table must have an empty slot.
+         */
+        private static int slot(final Subject[] subjects, final Subject subject) {
+
+            int mask = subjects.length - 1;
+            int hash = subject.hashCode();
+            int slot = (hash ^ hash >>> 16) & mask;
+            while (subjects[slot] != null && !subjects[slot].equals( subject ))
+                slot = slot + 1 & mask;
+
+            return slot;
+        }
+    }
+
+
+    /**
+     * An unmodifiable map over a snapshot of an ACL's grants.
+     */
+    private static final class GrantsView extends AbstractMap<Subject, Permission> {
+
+        private final Grants grants;
+
+        GrantsView(final Grants grants) {
+
+            this.grants = grants;
+        }
+
+        @Override
+        public int size() {
+
+            return grants.size;
+        }
+
+        @Override
+        public boolean containsKey(final Object key) {
+
+            return key instanceof Subject && grants.get( (Subject) key ) != null;
+        }
+
+        @Override
+        public Permission get(final Object key) {
+
+            return key instanceof Subject? grants.get( (Subject) key ): null;
+        }
+
+        @Override
+        public Set<Entry<Subject, Permission>> entrySet() {
+
+            return new AbstractSet<Entry<Subject, Permission>>() {
+                @Override
+                public Iterator<Entry<Subject, Permission>> iterator() {
+
+                    return new AbstractIterator<Entry<Subject, Permission>>() {
+                        private int slot;
+
+                        @Override
+                        protected Entry<Subject, Permission> computeNext() {
+
+                            for (; slot < grants.subjects.length; ++slot)
+                                if (grants.subjects[slot] != null) {
+                                    Entry<Subject, Permission> entry = new SimpleImmutableEntry<>( grants.subjects[slot],
+                                                                                                   PERMISSIONS[grants.permissions[slot]] );
+                                    ++slot;
+                                    return entry;
+                                }
+
+                            return endOfData();
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+
+                    return grants.size;
+                }
+            };
+        }
     }
 }
@@ -0,0 +1,160 @@
+/*
+ *   Copyright 2010, Maarten Billemont
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.lyndir.lhunath.opal.security;
+
+import javax.annotation.Nullable;
+
+
+/**
+ * <h2>{@link AccessDecision}<br> <sub>The outcome of evaluating a security token's permission on a secure object.</sub></h2>
+ *
+ * <p> Decisions are cheap to produce and carry no message or stack trace; they are only turned into a {@link
+ * com.lyndir.lhunath.opal.security.error.PermissionDeniedException} when a caller asserts access. </p>
+ *
+ * @author lhunath
+ */
+public final class AccessDecision {
+
+    private static final AccessDecision NOT_REQUIRED = new AccessDecision( Reason.NOT_REQUIRED, null, null );
+    private static final AccessDecision INTERNAL_USE = new AccessDecision( Reason.INTERNAL_USE, null, null );
+
+    private final Reason             reason;
+    @Nullable
+    private final SecureObject<?, ?> decidingObject;
+    @Nullable
+    private final Permission         tokenPermission;
+
+    private AccessDecision(final Reason reason, @Nullable final SecureObject<?, ?> decidingObject,
+                           @Nullable final Permission tokenPermission) {
+
+        this.reason = reason;
+        this.decidingObject = decidingObject;
+        this.tokenPermission = tokenPermission;
+    }
+
+    /**
+     * @return A decision that grants access because no permission was necessary.
+     */
+    public static AccessDecision notRequired() {
+
+        return NOT_REQUIRED;
+    }
+
+    /**
+     * @return A decision that grants access because the token is for internal use.
+     */
+    public static AccessDecision internalUse() {
+
+        return INTERNAL_USE;
+    }
+
+    /**
+     * @param reason          Why access is granted or denied.
+     * @param decidingObject  The object whose ownership or ACL decided access.  This may be a parent of the requested object.
+     * @param tokenPermission The permission the token has on the deciding object.
+     *
+     * @return A decision for the given reason.
+     */
+    public static AccessDecision of(final Reason reason, final SecureObject<?, ?> decidingObject, final Permission tokenPermission) {
+
+        return new AccessDecision( reason, decidingObject, tokenPermission );
+    }
+
+    /**
+     * @return {@code true}: Access is granted.
+     */
+    public boolean isGranted() {
+
+        return reason.isGranted();
+    }
+
+    /**
+     * @return Why access is granted or denied.
+     */
+    public Reason getReason() {
+
+        return reason;
+    }
+
+    /**
+     * @return The object whose ownership or ACL decided access, or {@code null} if access was decided without consulting one.
+     */
+    @Nullable
+    public SecureObject<?, ?> getDecidingObject() {
+
+        return decidingObject;
+    }
+
+    /**
+     * @return The permission the token has on the deciding object, or {@code null} if access was decided without consulting one.
+     */
+    @Nullable
+    public Permission getTokenPermission() {
+
+        return tokenPermission;
+    }
+
+    @Override
+    public String toString() {
+
+        return String.format( "{decision: %s, permission=%s}", reason, tokenPermission );
+    }
+
+    public enum Reason {
+
+        /**
+         * Granted: No object was given or no permission was required.
+         */
+        NOT_REQUIRED( true ),
+
+        /**
+         * Granted: The token is for internal use.
+         */
+        INTERNAL_USE( true ),
+
+        /**
+         * Granted: The token's actor owns the deciding object.
+         */
+        OWNER( true ),
+
+        /**
+         * Granted: The deciding object's ACL grants the token a sufficient permission.
+         */
+        PERMITTED( true ),
+
+        /**
+         * Denied: The token's permission had to be inherited but the deciding object has no parent.
+         */
+        NO_PARENT( false ),
+
+        /**
+         * Denied: The deciding object's ACL grants the token an insufficient permission.
+         */
+        INSUFFICIENT( false );
+
+        private final boolean granted;
+
+        Reason(final boolean granted) {
+
+            this.granted = granted;
+        }
+
+        public boolean isGranted() {
+
+            return granted;
+        }
+    }
+}
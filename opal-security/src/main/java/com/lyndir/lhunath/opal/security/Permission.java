@@ -62,9 +62,22 @@ public enum Permission implements Localized {
 
     private final ImmutableSet<Permission> provided;
 
+    /**
+     * The bits (by ordinal) of this permission and all permissions it provides, directly or transitively.
+     */
+    private final int providedMask;
+
+    /**
+     * @param provided The permissions this one provides.  These must be declared before this one.
+     */
     Permission(final Permission... provided) {
 
         this.provided = ImmutableSet.copyOf( provided );
+
+        int mask = 1 << ordinal();
+        for (final Permission providedPermission : provided)
+            mask |= providedPermission.providedMask;
+        providedMask = mask;
     }
 
     /**
@@ -75,6 +88,16 @@ public enum Permission implements Localized {
         return provided;
     }
 
+    /**
+     * @param requested The permission that is requested.
+     *
+     * @return {@code true}: This permission is the requested permission or provides it, directly or transitively.
+     */
+    public boolean provides(final Permission requested) {
+
+        return (providedMask & 1 << requested.ordinal()) != 0;
+    }
+
     @Override
     public String getLocalizedType() {
 
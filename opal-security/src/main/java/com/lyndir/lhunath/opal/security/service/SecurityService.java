@@ -15,12 +15,15 @@
  */
 package com.lyndir.lhunath.opal.security.service;
 
+import com.google.common.collect.Iterators;
 import com.lyndir.lhunath.opal.security.*;
 import com.lyndir.lhunath.opal.security.error.PermissionDeniedException;
+import com.lyndir.lhunath.opal.system.collection.Iterators2;
 import com.lyndir.lhunath.opal.system.collection.Pair;
 import com.lyndir.lhunath.opal.system.error.IllegalRequestException;
-import java.util.Iterator;
-import java.util.ListIterator;
+import java.util.*;
+import java.util.stream.IntStream;
+import java.util.stream.StreamSupport;
 
 
 /**
@@ -46,6 +49,18 @@ public interface SecurityService {
     <S extends Subject, O extends SecureObject<S, ?>> O assertAccess(Permission permission, SecurityToken<S> token, O object)
             throws PermissionDeniedException;
 
+    /**
+     * Evaluate whether the given token grants permission to perform an operation on the given object that requires the given
+     * permission, without raising an exception when it doesn't.
+     *
+     * @param permission The permission required on the given object to proceed with the request.
+     * @param token      The token used to authenticate the available permissions on the given object.
+     * @param object     The object that is the target of the request.
+     *
+     * @return The decision, which tells whether and why access is granted or denied.
+     */
+    <S extends Subject, O extends SecureObject<S, ?>> AccessDecision decideAccess(Permission permission, SecurityToken<S> token, O object);
+
     /**
      * Check whether the given token grants permission to perform an operation on the given object that requires the given permission.
      *
@@ -66,7 +81,11 @@ public interface SecurityService {
      *
      * @return An iterator that provides elements from the source on which the given permission is granted for the given token.
      */
-    <S extends Subject, O extends SecureObject<S, ?>> Iterator<O> filterAccess(Permission permission, SecurityToken<S> token, Iterator<O> source);
+    default <S extends Subject, O extends SecureObject<S, ?>> Iterator<O> filterAccess(Permission permission, SecurityToken<S> token,
+                                                                                       Iterator<O> source) {
+
+        return Iterators.filter( source, object -> hasAccess( permission, token, object ) );
+    }
 
     /**
      * Filter an iterator of SecureObjects, only allowing those on which the given token provides the given permission.
@@ -77,7 +96,78 @@ public interface SecurityService {
      *
      * @return An iterator that provides elements from the source on which the given permission is granted for the given token.
      */
-    <S extends Subject, O extends SecureObject<S, ?>> ListIterator<O> filterAccess(Permission permission, SecurityToken<S> token, ListIterator<O> source);
+    default <S extends Subject, O extends SecureObject<S, ?>> ListIterator<O> filterAccess(Permission permission, SecurityToken<S> token,
+                                                                                           ListIterator<O> source) {
+
+        return Iterators2.filter( source, object -> hasAccess( permission, token, object ) );
+    }
+
+    /**
+     * Filter a spliterator of SecureObjects lazily, only allowing those on which the given token provides the given permission.
+     *
+     * <p> By default, each object is checked with {@link #hasAccess(Permission, SecurityToken, SecureObject)}.  Implementations may
+     * evaluate the permissions of a parent shared by several objects only once. </p>
+     *
+     * @param permission The permission required on objects from the given spliterator.
+     * @param token      The token used to authenticate the available permissions on the given object.
+     * @param source     The source of objects to filter.
+     *
+     * @return A spliterator that provides elements from the source on which the given permission is granted for the given token.  It
+     *         can be split for use by a parallel stream if the source can.
+     */
+    default <S extends Subject, O extends SecureObject<S, ?>> Spliterator<O> filterAccess(Permission permission, SecurityToken<S> token,
+                                                                                          Spliterator<O> source) {
+
+        return StreamSupport.stream( source, false ).filter( object -> hasAccess( permission, token, object ) ).spliterator();
+    }
+
+    /**
+     * Check whether the given token grants the given permission on each of the given objects.
+     *
+     * <p> By default, each object is checked with {@link #hasAccess(Permission, SecurityToken, SecureObject)}.  Implementations may
+     * evaluate the permissions of a parent shared by several objects only once. </p>
+     *
+     * @param permission The permission required on the given objects.
+     * @param token      The token used to authenticate the available permissions on the given objects.
+     * @param objects    The objects that are the target of the request.
+     *
+     * @return A bit set with the bit at the index of each object on which the given permission is granted set.
+     */
+    default <S extends Subject, O extends SecureObject<S, ?>> BitSet checkAccess(Permission permission, SecurityToken<S> token,
+                                                                                 List<O> objects) {
+
+        BitSet granted = new BitSet( objects.size() );
+        int index = 0;
+        for (final O object : objects) {
+            if (hasAccess( permission, token, object ))
+                granted.set( index );
+            ++index;
+        }
+
+        return granted;
+    }
+
+    /**
+     * Check whether the given token grants the given permission on each of the given objects, evaluating the objects in parallel on
+     * the common fork-join pool.
+     *
+     * @param permission The permission required on the given objects.
+     * @param token      The token used to authenticate the available permissions on the given objects.
+     * @param objects    The objects that are the target of the request.  Lists without fast random access are copied first.
+     *
+     * @return A bit set with the bit at the index of each object on which the given permission is granted set.
+     *
+     * @see #checkAccess(Permission, SecurityToken, List)
+     */
+    default <S extends Subject, O extends SecureObject<S, ?>> BitSet checkAccessParallel(Permission permission, SecurityToken<S> token,
+                                                                                         List<O> objects) {
+
+        List<O> indexedObjects = objects instanceof RandomAccess? objects: new ArrayList<>( objects );
+
+        return IntStream.range( 0, indexedObjects.size() ).parallel() //
+                .filter( index -> hasAccess( permission, token, indexedObjects.get( index ) ) ) //
+                .collect( BitSet::new, BitSet::set, BitSet::or );
+    }
 
     /**
      * @param token The token used to authenticate the available permissions on the given object.
@@ -0,0 +1,219 @@
+/*
+ *   Copyright 2010, Maarten Billemont
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.lyndir.lhunath.opal.security.service.impl;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.MapMaker;
+import com.lyndir.lhunath.opal.security.*;
+import java.lang.ref.WeakReference;
+import java.util.*;
+import javax.annotation.Nullable;
+
+
+/**
+ * <h2>{@link PermissionCache}<br> <sub>Memoizes how a subject's permission on a secure object resolves through its parents.</sub></h2>
+ *
+ * <p> A resolution is cached for every object on the chain that was walked to find it, since they all resolve the same way.  Each
+ * of those objects also records the objects whose resolution passed through it, so that a change to its ACL invalidates exactly the
+ * resolutions that depended on it. </p>
+ *
+ * <p> Cached resolutions are handed out as they are, without consulting the chain again, so a hit costs a lookup regardless of the
+ * depth of the chain.  Resolutions therefore only change through invalidation: changes to ACLs, owners or parents that aren't
+ * reported with {@link #invalidateAll(SecureObject)} are not seen until the affected objects are evicted. </p>
+ *
+ * <p> Objects are held weakly and compared by identity. </p>
+ *
+ * @author lhunath
+ */
+class PermissionCache {
+
+    private final Cache<SecureObject<?, ?>, Map<Subject, Entry>>     resolutions;
+    private final Cache<SecureObject<?, ?>, Set<SecureObject<?, ?>>> dependents;
+
+    /**
+     * Bumped by every invalidation, so that resolutions computed concurrently with an invalidation are not cached.
+     */
+    private long generation;
+
+    /**
+     * @param maximumObjects The maximum amount of objects to cache resolutions for.
+     */
+    PermissionCache(final long maximumObjects) {
+
+        resolutions = CacheBuilder.newBuilder().weakKeys().maximumSize( maximumObjects ).build();
+        // Dependents must not be evicted while their object can still change, so they're only dropped along with their object.
+        dependents = CacheBuilder.newBuilder().weakKeys().build();
+    }
+
+    /**
+     * @return A stamp to pass to {@link #put(List, Subject, Resolution, long)} once a resolution has been computed.
+     */
+    synchronized long stamp() {
+
+        return generation;
+    }
+
+    /**
+     * @return The cached resolution of the subject's permission on the object, or {@code null} if there is none.
+     */
+    @Nullable
+    Resolution get(final SecureObject<?, ?> object, @Nullable final Subject subject) {
+
+        Map<Subject, Entry> objectResolutions = resolutions.getIfPresent( object );
+        if (objectResolutions == null)
+            return null;
+
+        Entry entry = objectResolutions.get( subject );
+        if (entry == null)
+            return null;
+
+        SecureObject<?, ?> decidingObject = entry.decidingObject.get();
+        if (decidingObject == null)
+            return null;
+
+        return new Resolution( decidingObject, entry.permission, entry.owner );
+    }
+
+    /**
+     * @param chain      The objects that were walked to find the resolution, starting with the requested object.
+     * @param subject    The subject whose permission was resolved.
+     * @param resolution The resolution of the first object on the chain.
+     * @param stamp      The {@link #stamp()} obtained before resolution began.
+     */
+    synchronized void put(final List<? extends SecureObject<?, ?>> chain, @Nullable final Subject subject, final Resolution resolution,
+                          final long stamp) {
+
+        if (stamp != generation)
+            // An ACL changed while resolving.
+            return;
+
+        Entry entry = new Entry( resolution );
+        for (int c = 0; c < chain.size(); ++c) {
+            SecureObject<?, ?> object = chain.get( c );
+            Map<Subject, Entry> objectResolutions = resolutions.getIfPresent( object );
+            if (objectResolutions == null)
+                resolutions.put( object, objectResolutions = Collections.synchronizedMap( new HashMap<Subject, Entry>() ) );
+            objectResolutions.put( subject, entry );
+
+            // The resolution of each object on the chain depends on the ACLs of the objects above it.
+            for (int d = c; d < chain.size(); ++d) {
+                SecureObject<?, ?> dependency = chain.get( d );
+                Set<SecureObject<?, ?>> dependencyDependents = dependents.getIfPresent( dependency );
+                if (dependencyDependents == null)
+                    dependents.put( dependency, dependencyDependents = Collections.newSetFromMap(
+                            new MapMaker().weakKeys().<SecureObject<?, ?>, Boolean>makeMap() ) );
+                dependencyDependents.add( object );
+            }
+        }
+    }
+
+    /**
+     * Forget the resolutions of the subject's permission that depended on the given object's ACL.
+     */
+    synchronized void invalidate(final SecureObject<?, ?> object, @Nullable final Subject subject) {
+
+        ++generation;
+
+        Set<SecureObject<?, ?>> objectDependents = dependents.getIfPresent( object );
+        if (objectDependents != null)
+            for (final SecureObject<?, ?> dependent : objectDependents) {
+                Map<Subject, Entry> dependentResolutions = resolutions.getIfPresent( dependent );
+                if (dependentResolutions != null)
+                    dependentResolutions.remove( subject );
+            }
+    }
+
+    /**
+     * Forget the resolutions of all subjects' permissions that depended on the given object's ACL, owner or parent.
+     */
+    synchronized void invalidateAll(final SecureObject<?, ?> object) {
+
+        ++generation;
+
+        Set<SecureObject<?, ?>> objectDependents = dependents.getIfPresent( object );
+        if (objectDependents != null)
+            for (final SecureObject<?, ?> dependent : objectDependents)
+                resolutions.invalidate( dependent );
+    }
+
+    /**
+     * Forget all resolutions.
+     */
+    synchronized void invalidateAll() {
+
+        ++generation;
+
+        resolutions.invalidateAll();
+        dependents.invalidateAll();
+    }
+
+    /**
+     * A cached resolution.  The deciding object is held weakly, since it is often the object the resolution is cached for.
+     */
+    private static class Entry {
+
+        private final WeakReference<SecureObject<?, ?>> decidingObject;
+        private final Permission                        permission;
+        private final boolean                           owner;
+
+        Entry(final Resolution resolution) {
+
+            decidingObject = new WeakReference<SecureObject<?, ?>>( resolution.getDecidingObject() );
+            permission = resolution.getPermission();
+            owner = resolution.isOwner();
+        }
+    }
+
+
+    /**
+     * The result of resolving a subject's permission on an object.
+     */
+    static class Resolution {
+
+        private final SecureObject<?, ?> decidingObject;
+        private final Permission         permission;
+        private final boolean            owner;
+
+        /**
+         * @param decidingObject The object on the chain whose ownership or ACL decided the permission.
+         * @param permission     The permission the subject has on the deciding object.  {@link Permission#INHERIT} if the chain ended
+         *                       without deciding.
+         * @param owner          {@code true}: The permission was decided by the subject owning the deciding object.
+         */
+        Resolution(final SecureObject<?, ?> decidingObject, final Permission permission, final boolean owner) {
+
+            this.decidingObject = decidingObject;
+            this.permission = permission;
+            this.owner = owner;
+        }
+
+        SecureObject<?, ?> getDecidingObject() {
+
+            return decidingObject;
+        }
+
+        Permission getPermission() {
+
+            return permission;
+        }
+
+        boolean isOwner() {
+
+            return owner;
+        }
+    }
+}
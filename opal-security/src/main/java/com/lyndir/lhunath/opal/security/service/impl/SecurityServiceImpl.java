@@ -23,14 +23,17 @@ import com.google.common.collect.Iterators;
 import com.lyndir.lhunath.opal.security.*;
 import com.lyndir.lhunath.opal.security.error.PermissionDeniedException;
 import com.lyndir.lhunath.opal.security.service.SecurityService;
+import com.lyndir.lhunath.opal.security.service.impl.PermissionCache.Resolution;
 import com.lyndir.lhunath.opal.system.collection.Iterators2;
 import com.lyndir.lhunath.opal.system.collection.Pair;
 import com.lyndir.lhunath.opal.system.error.IllegalRequestException;
 import com.lyndir.lhunath.opal.system.error.InternalInconsistencyException;
 import com.lyndir.lhunath.opal.system.logging.Logger;
 import com.lyndir.lhunath.opal.system.util.ObjectUtils;
-import java.util.Iterator;
-import java.util.ListIterator;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
 import javax.annotation.Nullable;
 
 
@@ -39,24 +42,70 @@ import javax.annotation.Nullable;
  *
  * <p> <i>Mar 14, 2010</i> </p>
  *
+ * <p> Resolved permissions are memoized per object and subject.  ACL changes made through this service invalidate exactly the
+ * resolutions that depended on the changed object.  Changes made to ACLs, owners or parents directly must be followed by a call to
+ * {@link #invalidatePermissions(SecureObject)} or {@link #invalidatePermissions()}. </p>
+ *
  * @author lhunath
  */
 public class SecurityServiceImpl implements SecurityService {
 
     static final Logger logger = Logger.get( SecurityServiceImpl.class );
 
+    private static final long DEFAULT_CACHED_OBJECTS = 10000;
+
+    /**
+     * Resolutions of a token actor's permission, where ownership of an object on the chain grants {@link Permission#ADMINISTER}.
+     */
+    private final PermissionCache accessCache;
+
+    /**
+     * Resolutions of a subject's permission by ACL only.
+     */
+    private final PermissionCache effectiveCache;
+
+    public SecurityServiceImpl() {
+
+        this( DEFAULT_CACHED_OBJECTS );
+    }
+
+    /**
+     * @param cachedObjects The maximum amount of objects to cache resolved permissions for.
+     */
+    public SecurityServiceImpl(final long cachedObjects) {
+
+        accessCache = new PermissionCache( cachedObjects );
+        effectiveCache = new PermissionCache( cachedObjects );
+    }
+
+    /**
+     * Forget all memoized permissions.
+     */
+    public void invalidatePermissions() {
+
+        accessCache.invalidateAll();
+        effectiveCache.invalidateAll();
+    }
+
+    /**
+     * Forget the memoized permissions that depended on the given object, after its ACL, owner or parent was changed directly.
+     *
+     * <p> Objects whose owner is derived from the given object's are not covered unless their permissions were resolved through it;
+     * use {@link #invalidatePermissions()} after transferring such ownership. </p>
+     */
+    public void invalidatePermissions(final SecureObject<?, ?> o) {
+
+        checkNotNull( o, "Given secure object must not be null." );
+
+        accessCache.invalidateAll( o );
+        effectiveCache.invalidateAll( o );
+    }
+
     @Override
     public <S extends Subject, O extends SecureObject<S, ?>> boolean hasAccess(final Permission permission, final SecurityToken<S> token,
                                                                                final O object) {
 
-        try {
-            assertAccess( permission, token, object );
-            return true;
-        }
-
-        catch (final PermissionDeniedException ignored) {
-            return false;
-        }
+        return decideAccess( permission, token, object ).isGranted();
     }
 
     @Override
@@ -64,12 +113,14 @@ public class SecurityServiceImpl implements SecurityService {
                                                                                       final SecurityToken<S> token,
                                                                                       final Iterator<O> source) {
 
+        final BatchAccess access = new BatchAccess( permission, token, new HashMap<SecureObject<?, ?>, Boolean>() );
+
         return Iterators.filter( source, new Predicate<O>() {
 
             @Override
             public boolean apply(final O input) {
 
-                return hasAccess( permission, token, input );
+                return access.isGranted( input );
             }
         } );
     }
@@ -79,12 +130,14 @@ public class SecurityServiceImpl implements SecurityService {
                                                                                           final SecurityToken<S> token,
                                                                                           final ListIterator<O> source) {
 
+        final BatchAccess access = new BatchAccess( permission, token, new HashMap<SecureObject<?, ?>, Boolean>() );
+
         return Iterators2.filter( source, new Predicate<O>() {
 
             @Override
             public boolean apply(final O input) {
 
-                return hasAccess( permission, token, input );
+                return access.isGranted( input );
             }
         } );
     }
@@ -95,54 +148,271 @@ public class SecurityServiceImpl implements SecurityService {
                                                                             @Nullable final O object)
             throws PermissionDeniedException {
 
+        AccessDecision decision = decideAccess( permission, token, object );
+        SecureObject<?, ?> decidingObject = decision.getDecidingObject();
+        switch (decision.getReason()) {
+            case NOT_REQUIRED:
+                logger.dbg( "Permission Granted: No permission necessary for: %s@%s", //
+                            permission, object );
+                return object;
+
+            case INTERNAL_USE:
+                logger.dbg( "Permission Granted: INTERNAL_USE token for: %s@%s", //
+                            permission, object );
+                return object;
+
+            case OWNER:
+            case PERMITTED:
+                logger.dbg( "Permission Granted: Token authorization %s on %s matches for: %s@%s", //
+                            decision.getTokenPermission(), decidingObject, permission, object );
+                return object;
+
+            case NO_PARENT:
+                logger.dbg( "Permission Denied: Can't inherit permissions, no parent set for: %s@%s", //
+                            permission, decidingObject );
+                throw new PermissionDeniedException( permission, decidingObject, "Had to inherit permission but no parent set" );
+
+            case INSUFFICIENT:
+                logger.dbg( "Permission Denied: Token authorizes %s, insufficient for: %s@%s", //
+                            decision.getTokenPermission(), permission, decidingObject );
+                throw new PermissionDeniedException( permission, decidingObject, "Security Token %s grants permissions %s ", token,
+                                                     decision.getTokenPermission() );
+        }
+
+        throw new IllegalArgumentException( "Unsupported decision: " + decision );
+    }
+
+    @Override
+    public <S extends Subject, O extends SecureObject<S, ?>> Spliterator<O> filterAccess(final Permission permission,
+                                                                                         final SecurityToken<S> token,
+                                                                                         final Spliterator<O> source) {
+
+        return new AccessSpliterator<>( new BatchAccess( permission, token, new HashMap<SecureObject<?, ?>, Boolean>() ), source );
+    }
+
+    @Override
+    public <S extends Subject, O extends SecureObject<S, ?>> BitSet checkAccess(final Permission permission, final SecurityToken<S> token,
+                                                                                final List<O> objects) {
+
+        BatchAccess access = new BatchAccess( permission, token, new HashMap<SecureObject<?, ?>, Boolean>() );
+        BitSet granted = new BitSet( objects.size() );
+        int index = 0;
+        for (final O object : objects) {
+            if (access.isGranted( object ))
+                granted.set( index );
+            ++index;
+        }
+
+        return granted;
+    }
+
+    @Override
+    public <S extends Subject, O extends SecureObject<S, ?>> BitSet checkAccessParallel(final Permission permission,
+                                                                                        final SecurityToken<S> token,
+                                                                                        final List<O> objects) {
+
+        BatchAccess access = new BatchAccess( permission, token, new ConcurrentHashMap<SecureObject<?, ?>, Boolean>() );
+        List<O> indexedObjects = objects instanceof RandomAccess? objects: new ArrayList<>( objects );
+
+        return IntStream.range( 0, indexedObjects.size() ).parallel() //
+                .filter( index -> access.isGranted( indexedObjects.get( index ) ) ) //
+                .collect( BitSet::new, BitSet::set, BitSet::or );
+    }
+
+    @Override
+    public <S extends Subject, O extends SecureObject<S, ?>> AccessDecision decideAccess(final Permission permission,
+                                                                                         final SecurityToken<S> token,
+                                                                                         @Nullable final O object) {
+
         checkNotNull( token, "Given security token must not be null." );
 
         // Automatically grant permission when no object is given or required permission is NONE.
-        if (object == null || permission == Permission.NONE) {
-            logger.dbg( "Permission Granted: No permission necessary for: %s@%s", //
-                        permission, object );
-            return object;
-        }
+        if (object == null || permission == Permission.NONE)
+            return AccessDecision.notRequired();
 
         // Automatically grant permission to INTERNAL_USE token.
-        if (token.isInternalUseOnly()) {
-            logger.dbg( "Permission Granted: INTERNAL_USE token for: %s@%s", //
-                        permission, object );
-            return object;
+        if (token.isInternalUseOnly())
+            return AccessDecision.internalUse();
+
+        Resolution resolution = resolve( accessCache, token.getActor(), object, true );
+        Permission tokenPermission = resolution.getPermission();
+        if (resolution.isOwner())
+            return AccessDecision.of( AccessDecision.Reason.OWNER, resolution.getDecidingObject(), tokenPermission );
+        if (tokenPermission == Permission.INHERIT)
+            return AccessDecision.of( AccessDecision.Reason.NO_PARENT, resolution.getDecidingObject(), tokenPermission );
+
+        // Check if granted permission provides required permission.
+        return AccessDecision.of( isPermissionProvided( tokenPermission, permission )? AccessDecision.Reason.PERMITTED
+                                          : AccessDecision.Reason.INSUFFICIENT, resolution.getDecidingObject(), tokenPermission );
+    }
+
+    /**
+     * Decides access for many objects with the same token and permission.  Each object's own ownership and ACL is evaluated directly,
+     * while the decisions for their parents are remembered, so that siblings only have their shared parent evaluated once.
+     */
+    private class BatchAccess {
+
+        private final Permission                        permission;
+        private final SecurityToken<?>                  token;
+        private final Map<SecureObject<?, ?>, Boolean> parentsGranted;
+
+        BatchAccess(final Permission permission, final SecurityToken<?> token, final Map<SecureObject<?, ?>, Boolean> parentsGranted) {
+
+            this.permission = permission;
+            this.token = checkNotNull( token, "Given security token must not be null." );
+            this.parentsGranted = parentsGranted;
         }
 
-        // Determine what permission level to grant on the object for the token.
-        Permission tokenPermission;
-        if (object.getOwner().equals( token.getActor() ))
-            tokenPermission = Permission.ADMINISTER;
-        else
-            tokenPermission = object.getACL().getSubjectPermission( token.getActor() );
+        boolean isGranted(@Nullable final SecureObject<?, ?> object) {
 
-        // If INHERIT, recurse.
-        if (tokenPermission == Permission.INHERIT) {
-            if (object.getParent() == null) {
-                logger.dbg( "Permission Denied: Can't inherit permissions, no parent set for: %s@%s", //
-                            permission, object );
-                throw new PermissionDeniedException( permission, object, "Had to inherit permission but no parent set" );
+            if (object == null || permission == Permission.NONE || token.isInternalUseOnly())
+                return true;
+
+            Subject actor = token.getActor();
+            if (object.getOwner().equals( actor ))
+                return true;
+
+            Permission tokenPermission = object.getACL().getSubjectPermission( actor );
+            if (tokenPermission != Permission.INHERIT)
+                return isPermissionProvided( tokenPermission, permission );
+
+            SecureObject<?, ?> parent = object.getParent();
+            if (parent == null)
+                return false;
+
+            Boolean parentGranted = parentsGranted.get( parent );
+            if (parentGranted == null) {
+                Resolution resolution = resolve( accessCache, actor, parent, true );
+                parentGranted = resolution.isOwner() || resolution.getPermission() != Permission.INHERIT && isPermissionProvided(
+                        resolution.getPermission(), permission );
+                parentsGranted.put( parent, parentGranted );
             }
 
-            logger.dbg( "Inheriting permission for: %s@%s", //
-                        permission, object );
-            assertAccess( permission, token, object.getParent() );
-            return object;
+            return parentGranted;
         }
 
-        // Else, check if granted permission provides required permission.
-        if (!isPermissionProvided( tokenPermission, permission )) {
-            logger.dbg( "Permission Denied: Token authorizes %s (ACL default? %s), insufficient for: %s@%s", //
-                        tokenPermission, object.getACL().isSubjectPermissionDefault( token.getActor() ), permission, object );
-            throw new PermissionDeniedException( permission, object, "Security Token %s grants permissions %s ", token, tokenPermission );
+        /**
+         * @return A batch for the same token and permission that doesn't share remembered decisions with this one.
+         */
+        BatchAccess split() {
+
+            return new BatchAccess( permission, token, new HashMap<SecureObject<?, ?>, Boolean>() );
         }
+    }
+
+
+    /**
+     * Lazily filters a source of objects through a {@link BatchAccess}.
+     */
+    private static class AccessSpliterator<O extends SecureObject<?, ?>> implements Spliterator<O> {
 
-        // No permission denied thrown, grant permission.
-        logger.dbg( "Permission Granted: Token authorization %s matches for: %s@%s", //
-                    tokenPermission, permission, object );
-        return object;
+        private final BatchAccess    access;
+        private final Spliterator<O> source;
+
+        AccessSpliterator(final BatchAccess access, final Spliterator<O> source) {
+
+            this.access = access;
+            this.source = source;
+        }
+
+        @Override
+        public boolean tryAdvance(final Consumer<? super O> action) {
+
+            boolean[] found = { false };
+            while (!found[0] && source.tryAdvance( object -> {
+                if (access.isGranted( object )) {
+                    action.accept( object );
+                    found[0] = true;
+                }
+            } )) {
+                // Skip objects that aren't granted.
+            }
+
+            return found[0];
+        }
+
+        @Override
+        public void forEachRemaining(final Consumer<? super O> action) {
+
+            source.forEachRemaining( object -> {
+                if (access.isGranted( object ))
+                    action.accept( object );
+            } );
+        }
+
+        @Nullable
+        @Override
+        public Spliterator<O> trySplit() {
+
+            Spliterator<O> split = source.trySplit();
+            if (split == null)
+                return null;
+
+            // The split may be consumed by another thread, so it gets its own batch.
+            return new AccessSpliterator<>( access.split(), split );
+        }
+
+        @Override
+        public long estimateSize() {
+
+            return source.estimateSize();
+        }
+
+        @Override
+        public int characteristics() {
+
+            return source.characteristics() & ~(SIZED | SUBSIZED);
+        }
+    }
+
+    /**
+     * Resolve the subject's permission on the object, following {@link Permission#INHERIT} up the object's parents.
+     *
+     * @param cache      The cache of earlier resolutions.
+     * @param subject    The subject whose permission to resolve.
+     * @param object     The object to resolve the subject's permission on.
+     * @param checkOwner {@code true}: Grant the subject {@link Permission#ADMINISTER} on objects that it owns.
+     *
+     * @return The resolution.  Its permission is {@link Permission#INHERIT} if the chain of parents ended without deciding.
+     */
+    private static Resolution resolve(final PermissionCache cache, @Nullable final Subject subject, final SecureObject<?, ?> object,
+                                      final boolean checkOwner) {
+
+        Resolution resolution = cache.get( object, subject );
+        if (resolution != null)
+            return resolution;
+
+        long stamp = cache.stamp();
+        List<SecureObject<?, ?>> chain = new ArrayList<>();
+        SecureObject<?, ?> current = object;
+        boolean owner = false;
+        Permission permission;
+        while (true) {
+            chain.add( current );
+
+            // Determine what permission level to grant on the object for the subject.
+            if (checkOwner && current.getOwner().equals( subject )) {
+                owner = true;
+                permission = Permission.ADMINISTER;
+                break;
+            }
+            permission = current.getACL().getSubjectPermission( subject );
+
+            // If INHERIT, continue with the parent.
+            if (permission == Permission.INHERIT) {
+                SecureObject<?, ?> parent = current.getParent();
+                if (parent != null) {
+                    current = parent;
+                    continue;
+                }
+            }
+
+            break;
+        }
+
+        resolution = new Resolution( current, permission, owner );
+        cache.put( chain, subject, resolution, stamp );
+        return resolution;
     }
 
     private static boolean isPermissionProvided(final Permission givenPermission, final Permission requestedPermission) {
@@ -152,11 +422,7 @@ public class SecurityServiceImpl implements SecurityService {
         if (givenPermission == null || requestedPermission == null)
             return false;
 
-        for (final Permission inheritedGivenPermission : givenPermission.getProvided())
-            if (isPermissionProvided( inheritedGivenPermission, requestedPermission ))
-                return true;
-
-        return false;
+        return givenPermission.provides( requestedPermission );
     }
 
     @Override
@@ -177,14 +443,11 @@ public class SecurityServiceImpl implements SecurityService {
         checkNotNull( o, "Given secure object must not be null." );
         assertAccess( Permission.ADMINISTER, token, o );
 
-        Permission permission = o.getACL().getSubjectPermission( subject );
-        if (permission == Permission.INHERIT) {
-            SecureObject<S, ?> parent = checkNotNull( o.getParent(), "Secure object's default permission is INHERIT but has no parent." );
-
-            return getEffectivePermissions( token, subject, parent );
-        }
+        Resolution resolution = resolve( effectiveCache, subject, o, false );
+        Permission permission = resolution.getPermission();
 
-        return permission;
+        return checkNotNull( permission == Permission.INHERIT? null: permission,
+                             "Secure object's default permission is INHERIT but has no parent: %s", resolution.getDecidingObject() );
     }
 
     @Override
@@ -200,7 +463,8 @@ public class SecurityServiceImpl implements SecurityService {
             private final Iterator<Subject> permittedSubjects;
 
             {
-                permittedSubjects = o.getACL().getPermittedSubjects().iterator();
+                // A snapshot of the grants; iterating its keys doesn't copy them.
+                permittedSubjects = o.getACL().getSubjectPermissions().keySet().iterator();
             }
 
             @Override
@@ -228,7 +492,7 @@ public class SecurityServiceImpl implements SecurityService {
         checkNotNull( o, "Given secure object must not be null." );
 
         assertAccess( Permission.ADMINISTER, token, o );
-        return o.getACL().getPermittedSubjects().size();
+        return o.getACL().countPermittedSubjects();
     }
 
     @Override
@@ -240,6 +504,8 @@ public class SecurityServiceImpl implements SecurityService {
 
         assertAccess( Permission.ADMINISTER, token, o );
         o.getACL().setDefaultPermission( permission );
+        accessCache.invalidateAll( o );
+        effectiveCache.invalidateAll( o );
     }
 
     @Override
@@ -255,5 +521,7 @@ public class SecurityServiceImpl implements SecurityService {
 
         assertAccess( Permission.ADMINISTER, token, o );
         o.getACL().setSubjectPermission( subject, permission );
+        accessCache.invalidate( o, subject );
+        effectiveCache.invalidate( o, subject );
     }
 }
@@ -0,0 +1,107 @@
+package com.lyndir.lhunath.opal.spike;
+
+import com.lyndir.lhunath.opal.crypto.Base64Mode;
+import com.lyndir.lhunath.opal.crypto.CryptUtils;
+import com.lyndir.lhunath.opal.system.logging.Logger;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import org.bouncycastle.util.encoders.Base64;
+
+
+/**
+ * Measures the throughput of {@link CryptUtils}' {@link java.util.Base64} based codec against BouncyCastle's {@link Base64}, for whole
+ * arrays, caller-provided buffers and streams.
+ *
+ * @author lhunath
+ */
+public class Base64Spike {
+
+    static final Logger logger = Logger.get( Base64Spike.class );
+
+    private static final int[] SIZES       = { 64, 4096, 1 << 20 };
+    private static final long  TOTAL_BYTES = 256L << 20;
+
+    public static void main(final String... arguments)
+            throws Exception {
+
+        Random random = new Random( 0 );
+        for (int warmup = 0; warmup < 2; ++warmup) {
+            logger.inf( "--- Round set %d%s", warmup, warmup == 0? " (warm-up)": "" );
+
+            for (final int size : SIZES) {
+                byte[] data = new byte[size];
+                random.nextBytes( data );
+                String b64 = CryptUtils.encodeBase64( data );
+                ByteBuffer plainBuffer = ByteBuffer.allocateDirect( size );
+                ByteBuffer b64Buffer = ByteBuffer.allocateDirect( (int) Base64Mode.BASIC.getEncodedLength( size ) );
+                int rounds = (int) (TOTAL_BYTES / size);
+
+                long start = System.nanoTime();
+                long length = 0;
+                for (int r = 0; r < rounds; ++r)
+                    length += new String( Base64.encode( data ), StandardCharsets.US_ASCII ).length();
+                report( "encode, bouncycastle", size, rounds, start, length );
+
+                start = System.nanoTime();
+                length = 0;
+                for (int r = 0; r < rounds; ++r)
+                    length += CryptUtils.encodeBase64( data ).length();
+                report( "encode, array       ", size, rounds, start, length );
+
+                start = System.nanoTime();
+                length = 0;
+                for (int r = 0; r < rounds; ++r) {
+                    plainBuffer.clear();
+                    b64Buffer.clear();
+                    length += CryptUtils.encodeBase64( plainBuffer, b64Buffer, Base64Mode.BASIC );
+                }
+                report( "encode, buffer      ", size, rounds, start, length );
+
+                start = System.nanoTime();
+                length = 0;
+                ByteArrayOutputStream sink = new ByteArrayOutputStream( b64.length() );
+                for (int r = 0; r < rounds; ++r) {
+                    sink.reset();
+                    try (OutputStream out = CryptUtils.encodingBase64( sink, Base64Mode.BASIC )) {
+                        out.write( data );
+                    }
+                    length += sink.size();
+                }
+                report( "encode, stream      ", size, rounds, start, length );
+
+                start = System.nanoTime();
+                length = 0;
+                for (int r = 0; r < rounds; ++r)
+                    length += Base64.decode( b64 ).length;
+                report( "decode, bouncycastle", size, rounds, start, length );
+
+                start = System.nanoTime();
+                length = 0;
+                for (int r = 0; r < rounds; ++r)
+                    length += CryptUtils.decodeBase64( b64 ).length;
+                report( "decode, array       ", size, rounds, start, length );
+
+                b64Buffer.clear();
+                b64Buffer.put( b64.getBytes( StandardCharsets.US_ASCII ) );
+                start = System.nanoTime();
+                length = 0;
+                for (int r = 0; r < rounds; ++r) {
+                    b64Buffer.flip();
+                    plainBuffer.clear();
+                    length += CryptUtils.decodeBase64( b64Buffer, plainBuffer, Base64Mode.BASIC );
+                    b64Buffer.limit( b64Buffer.capacity() );
+                }
+                report( "decode, buffer      ", size, rounds, start, length );
+            }
+        }
+    }
+
+    private static void report(final String codec, final int size, final int rounds, final long start, final long length) {
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        logger.inf( "%7d bytes, %s: %8.1f MB/s (%d)", size, codec, (double) size * rounds / seconds / (1 << 20), length / rounds );
+    }
+}
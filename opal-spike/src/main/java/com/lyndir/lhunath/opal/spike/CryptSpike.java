@@ -0,0 +1,58 @@
+package com.lyndir.lhunath.opal.spike;
+
+import com.lyndir.lhunath.opal.crypto.AESMode;
+import com.lyndir.lhunath.opal.crypto.CryptUtils;
+import com.lyndir.lhunath.opal.system.logging.Logger;
+
+
+/**
+ * Compares the throughput of the AES block cipher modes offered by {@link CryptUtils}.
+ *
+ * @author lhunath
+ */
+public class CryptSpike {
+
+    static final Logger logger = Logger.get( CryptSpike.class );
+
+    private static final int DATA_SIZE  = 64 * 1024 * 1024;
+    private static final int CHUNK_SIZE = 1024 * 1024;
+    private static final int ROUNDS     = 10;
+
+    public static void main(final String... arguments)
+            throws Exception {
+
+        byte[] data = CryptUtils.newRandomBlock( DATA_SIZE * Byte.SIZE );
+        byte[] key128 = CryptUtils.newRandomBlock( 128 );
+        byte[] key256 = CryptUtils.newRandomBlock( 256 );
+
+        for (int warmup = 0; warmup < 2; ++warmup) {
+            logger.inf( "--- Round set %d%s", warmup, warmup == 0? " (warm-up)": "" );
+
+            long start = System.nanoTime();
+            for (int r = 0; r < ROUNDS; ++r)
+                CryptUtils.decrypt( CryptUtils.encrypt( data, key128, true ), key128, true );
+            report( "CBC-128", start );
+
+            start = System.nanoTime();
+            for (int r = 0; r < ROUNDS; ++r)
+                CryptUtils.decrypt( CryptUtils.encrypt( data, key256, AESMode.GCM ), key256, AESMode.GCM );
+            report( "GCM-256", start );
+
+            start = System.nanoTime();
+            for (int r = 0; r < ROUNDS; ++r)
+                CryptUtils.decryptChunked( CryptUtils.encryptChunked( data, key256, AESMode.GCM, CHUNK_SIZE ), key256, AESMode.GCM );
+            report( "GCM-256, chunked", start );
+
+            start = System.nanoTime();
+            for (int r = 0; r < ROUNDS; ++r)
+                CryptUtils.decryptChunked( CryptUtils.encryptChunked( data, key256, AESMode.CTR, CHUNK_SIZE ), key256, AESMode.CTR );
+            report( "CTR-256, chunked", start );
+        }
+    }
+
+    private static void report(final String name, final long startNanos) {
+
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        logger.inf( "%-20s %8.1f MB/s (encrypt + decrypt)", name, (double) DATA_SIZE * ROUNDS / (1024 * 1024) / seconds );
+    }
+}
@@ -0,0 +1,70 @@
+package com.lyndir.lhunath.opal.spike;
+
+import com.lyndir.lhunath.opal.plain.DiffUtils;
+import com.lyndir.lhunath.opal.system.logging.Logger;
+import java.util.Random;
+import jlibdiff.Diff;
+import jlibdiff.Hunk;
+
+
+/**
+ * Measures {@link DiffUtils#getDiff(String, String)} against diffing with jlibdiff and rendering its hunks, for documents of various
+ * sizes with a few percent of their lines changed.
+ *
+ * @author lhunath
+ */
+public class DiffSpike {
+
+    static final Logger logger = Logger.get( DiffSpike.class );
+
+    private static final int[] LINES          = { 1000, 10000, 50000 };
+    private static final int   CHANGE_PERCENT = 5;
+    private static final int   ROUNDS         = 5;
+
+    public static void main(final String... arguments)
+            throws Exception {
+
+        Random random = new Random( 0 );
+        for (int warmup = 0; warmup < 2; ++warmup) {
+            logger.inf( "--- Round set %d%s", warmup, warmup == 0? " (warm-up)": "" );
+
+            for (final int lines : LINES) {
+                StringBuilder from = new StringBuilder(), to = new StringBuilder();
+                for (int l = 0; l < lines; ++l) {
+                    String line = String.format( "line %d: %08x", l, random.nextInt() );
+                    from.append( line ).append( '\n' );
+                    if (random.nextInt( 100 ) < CHANGE_PERCENT) {
+                        if (random.nextBoolean())
+                            to.append( "changed " ).append( line ).append( '\n' );
+                    } else
+                        to.append( line ).append( '\n' );
+                }
+                String fromText = from.toString(), toText = to.toString();
+
+                long start = System.nanoTime();
+                int length = 0;
+                for (int r = 0; r < ROUNDS; ++r) {
+                    Diff diff = new Diff();
+                    diff.diffString( fromText, toText );
+                    @SuppressWarnings({ "cast", "unchecked" })
+                    Iterable<Hunk> hunks = diff.getHunks();
+                    for (final Hunk hunk : hunks)
+                        length += hunk.convert().length();
+                }
+                report( "jlibdiff", lines, start, length );
+
+                start = System.nanoTime();
+                length = 0;
+                for (int r = 0; r < ROUNDS; ++r)
+                    length += DiffUtils.getDiff( fromText, toText ).length();
+                report( "myers   ", lines, start, length );
+            }
+        }
+    }
+
+    private static void report(final String engine, final int lines, final long start, final int length) {
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        logger.inf( "%6d lines, %s: %8.2f ms per diff (%d characters)", lines, engine, seconds * 1000 / ROUNDS, length / ROUNDS );
+    }
+}
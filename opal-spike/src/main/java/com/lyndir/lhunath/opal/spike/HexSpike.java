@@ -0,0 +1,87 @@
+package com.lyndir.lhunath.opal.spike;
+
+import com.lyndir.lhunath.opal.system.CodeUtils;
+import com.lyndir.lhunath.opal.system.logging.Logger;
+import java.util.Formatter;
+import java.util.Random;
+
+
+/**
+ * Measures {@link CodeUtils#encodeHex(byte[])} and {@link CodeUtils#decodeHex(String)} against the {@link Formatter} and {@link
+ * Integer#valueOf(String, int)} based codec they replace, for digest-sized and larger inputs.
+ *
+ * @author lhunath
+ */
+public class HexSpike {
+
+    static final Logger logger = Logger.get( HexSpike.class );
+
+    private static final int[] SIZES  = { 20, 32, 1024 };
+    private static final int   ROUNDS = 200000;
+
+    public static void main(final String... arguments)
+            throws Exception {
+
+        Random random = new Random( 0 );
+        for (int warmup = 0; warmup < 2; ++warmup) {
+            logger.inf( "--- Round set %d%s", warmup, warmup == 0? " (warm-up)": "" );
+
+            for (final int size : SIZES) {
+                byte[] data = new byte[size];
+                random.nextBytes( data );
+                String hex = CodeUtils.encodeHex( data );
+                int rounds = ROUNDS * SIZES[0] / size;
+
+                long start = System.nanoTime();
+                int length = 0;
+                for (int r = 0; r < rounds; ++r)
+                    length += formatterEncode( data ).length();
+                report( "encode, formatter", size, rounds, start, length );
+
+                start = System.nanoTime();
+                length = 0;
+                for (int r = 0; r < rounds; ++r)
+                    length += CodeUtils.encodeHex( data ).length();
+                report( "encode, table    ", size, rounds, start, length );
+
+                start = System.nanoTime();
+                length = 0;
+                for (int r = 0; r < rounds; ++r)
+                    length += integerDecode( hex ).length;
+                report( "decode, integer  ", size, rounds, start, length );
+
+                start = System.nanoTime();
+                length = 0;
+                for (int r = 0; r < rounds; ++r)
+                    length += CodeUtils.decodeHex( hex ).length;
+                report( "decode, table    ", size, rounds, start, length );
+            }
+        }
+    }
+
+    private static void report(final String codec, final int size, final int rounds, final long start, final int length) {
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        logger.inf( "%5d bytes, %s: %10.0f ns per call (%d)", size, codec, seconds * 1e9 / rounds, length / rounds );
+    }
+
+    private static String formatterEncode(final byte[] data) {
+
+        StringBuilder bytes = new StringBuilder( data.length * 2 );
+        try (Formatter formatter = new Formatter( bytes )) {
+            for (final byte b : data)
+                formatter.format( "%02X", b );
+        }
+
+        return bytes.toString();
+    }
+
+    private static byte[] integerDecode(final String hexString) {
+
+        byte[] bytes = new byte[hexString.length() / 2];
+        for (int i = 0; i < hexString.length(); i += 2)
+            bytes[i / 2] = Integer.valueOf( hexString.substring( i, i + 2 ), 16 ).byteValue();
+
+        return bytes;
+    }
+}
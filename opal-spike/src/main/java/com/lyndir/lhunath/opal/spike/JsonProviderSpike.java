@@ -0,0 +1,102 @@
+package com.lyndir.lhunath.opal.spike;
+
+import com.google.common.io.ByteStreams;
+import com.lyndir.lhunath.opal.json.GsonJsonProvider;
+import com.lyndir.lhunath.opal.json.JSONResult;
+import com.lyndir.lhunath.opal.system.logging.Logger;
+import java.io.*;
+import java.lang.annotation.Annotation;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import javax.ws.rs.core.MediaType;
+
+
+/**
+ * Measures the throughput and allocation of {@link GsonJsonProvider#writeTo} for large result lists, against serializing the entity to a
+ * string and encoding that to bytes first.
+ *
+ * <p> Allocation is read from the HotSpot {@code ThreadMXBean}; it reports {@code -1} on JVMs that don't provide it. </p>
+ *
+ * @author lhunath
+ */
+public class JsonProviderSpike {
+
+    static final Logger logger = Logger.get( JsonProviderSpike.class );
+
+    private static final int[]        RESULTS     = { 100, 10000, 100000 };
+    private static final int          ROUNDS      = 20;
+    private static final Annotation[] ANNOTATIONS = new Annotation[0];
+
+    public static void main(final String... arguments)
+            throws Exception {
+
+        GsonJsonProvider provider = new GsonJsonProvider();
+        OutputStream out = ByteStreams.nullOutputStream();
+
+        for (int warmup = 0; warmup < 2; ++warmup) {
+            logger.inf( "--- Round set %d%s", warmup, warmup == 0? " (warm-up)": "" );
+
+            for (final int results : RESULTS) {
+                List<Row> rows = new ArrayList<>( results );
+                for (int r = 0; r < results; ++r)
+                    rows.add( new Row( r ) );
+                JSONResult entity = JSONResult.success( rows );
+
+                long allocated = allocatedBytes();
+                long start = System.nanoTime();
+                for (int r = 0; r < ROUNDS; ++r)
+                    out.write( GsonJsonProvider.getGson().toJson( entity ).getBytes( StandardCharsets.UTF_8 ) );
+                report( "string", results, start, allocated );
+
+                allocated = allocatedBytes();
+                start = System.nanoTime();
+                for (int r = 0; r < ROUNDS; ++r)
+                    provider.writeTo( entity, JSONResult.class, JSONResult.class, ANNOTATIONS, MediaType.APPLICATION_JSON_TYPE, null, out );
+                report( "stream", results, start, allocated );
+            }
+        }
+    }
+
+    private static void report(final String method, final int results, final long start, final long allocated) {
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        long allocatedPerRound = allocated < 0? -1: (allocatedBytes() - allocated) / ROUNDS;
+
+        logger.inf( "%6d results, %s: %10.0f results/s, %12d bytes allocated per response", //
+                    results, method, results * ROUNDS / seconds, allocatedPerRound );
+    }
+
+    private static long allocatedBytes() {
+
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean)
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes( Thread.currentThread().getId() );
+
+        return -1;
+    }
+
+    private static class Row {
+
+        final int    id;
+        final String name;
+        final double score;
+        final State  state;
+
+        Row(final int id) {
+
+            this.id = id;
+            name = "row-" + id;
+            score = id / 7d;
+            state = State.values()[id % State.values().length];
+        }
+    }
+
+
+    private enum State {
+        NEW,
+        ACTIVE,
+        RETIRED
+    }
+}
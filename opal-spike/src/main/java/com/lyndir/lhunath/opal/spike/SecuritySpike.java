@@ -0,0 +1,146 @@
+package com.lyndir.lhunath.opal.spike;
+
+import com.google.common.collect.Iterators;
+import com.lyndir.lhunath.opal.security.*;
+import com.lyndir.lhunath.opal.security.service.SecurityService;
+import com.lyndir.lhunath.opal.security.service.impl.SecurityServiceImpl;
+import com.lyndir.lhunath.opal.system.logging.Logger;
+import java.util.ArrayList;
+import java.util.List;
+import javax.annotation.Nullable;
+
+
+/**
+ * Measures {@link SecurityService#filterAccess(Permission, SecurityToken, java.util.Iterator)} and bulk {@link
+ * SecurityService#checkAccess(Permission, SecurityToken, List)} throughput over a listing of objects at various ratios of objects that
+ * are hidden from the token.
+ *
+ * @author lhunath
+ */
+public class SecuritySpike {
+
+    static final Logger logger = Logger.get( SecuritySpike.class );
+
+    private static final int   OBJECTS = 10000;
+    private static final int   ROUNDS  = 200;
+    private static final int[] DENY_PERCENTAGES = { 0, 50, 90, 100 };
+
+    public static void main(final String... arguments)
+            throws Exception {
+
+        SecurityService securityService = new SecurityServiceImpl();
+        SpikeSubject owner = new SpikeSubject( "owner" );
+        SpikeSubject viewer = new SpikeSubject( "viewer" );
+        SecurityToken<SpikeSubject> token = new SecurityToken<>( viewer );
+
+        for (int warmup = 0; warmup < 2; ++warmup) {
+            logger.inf( "--- Round set %d%s", warmup, warmup == 0? " (warm-up)": "" );
+
+            for (final int denyPercentage : DENY_PERCENTAGES) {
+                SpikeObject folder = new SpikeObject( owner, null );
+                folder.getACL().setSubjectPermission( viewer, Permission.VIEW );
+
+                List<SpikeObject> listing = new ArrayList<>( OBJECTS );
+                for (int o = 0; o < OBJECTS; ++o) {
+                    SpikeObject object = new SpikeObject( owner, folder );
+                    if (o * 100 < denyPercentage * OBJECTS)
+                        object.getACL().setSubjectPermission( viewer, Permission.NONE );
+                    listing.add( object );
+                }
+
+                long start = System.nanoTime();
+                int visible = 0;
+                for (int r = 0; r < ROUNDS; ++r)
+                    visible += Iterators.size( securityService.filterAccess( Permission.VIEW, token, listing.iterator() ) );
+                double seconds = (System.nanoTime() - start) / 1e9;
+
+                logger.inf( "%3d%% denied, filterAccess:        %10.0f checks/s (%d visible)", //
+                            denyPercentage, OBJECTS * ROUNDS / seconds, visible / ROUNDS );
+
+                start = System.nanoTime();
+                visible = 0;
+                for (int r = 0; r < ROUNDS; ++r)
+                    visible += securityService.checkAccess( Permission.VIEW, token, listing ).cardinality();
+                seconds = (System.nanoTime() - start) / 1e9;
+                logger.inf( "%3d%% denied, checkAccess:         %10.0f checks/s (%d visible)", //
+                            denyPercentage, OBJECTS * ROUNDS / seconds, visible / ROUNDS );
+
+                start = System.nanoTime();
+                visible = 0;
+                for (int r = 0; r < ROUNDS; ++r)
+                    visible += securityService.checkAccessParallel( Permission.VIEW, token, listing ).cardinality();
+                seconds = (System.nanoTime() - start) / 1e9;
+                logger.inf( "%3d%% denied, checkAccessParallel: %10.0f checks/s (%d visible)", //
+                            denyPercentage, OBJECTS * ROUNDS / seconds, visible / ROUNDS );
+            }
+        }
+    }
+
+    private static class SpikeSubject implements Subject {
+
+        private final String name;
+
+        SpikeSubject(final String name) {
+
+            this.name = name;
+        }
+
+        @Override
+        public String getLocalizedType() {
+
+            return "subject";
+        }
+
+        @Override
+        public String getLocalizedInstance() {
+
+            return name;
+        }
+    }
+
+
+    private static class SpikeObject implements SecureObject<SpikeSubject, SpikeObject> {
+
+        private final SpikeSubject owner;
+        @Nullable
+        private final SpikeObject  parent;
+        private final ACL          acl = new ACL();
+
+        SpikeObject(final SpikeSubject owner, @Nullable final SpikeObject parent) {
+
+            this.owner = owner;
+            this.parent = parent;
+        }
+
+        @Nullable
+        @Override
+        public SpikeObject getParent() {
+
+            return parent;
+        }
+
+        @Override
+        public SpikeSubject getOwner() {
+
+            return owner;
+        }
+
+        @Override
+        public ACL getACL() {
+
+            return acl;
+        }
+
+        @Override
+        public String getLocalizedType() {
+
+            return "object";
+        }
+
+        @Override
+        public String getLocalizedInstance() {
+
+            return "object";
+        }
+    }
+}
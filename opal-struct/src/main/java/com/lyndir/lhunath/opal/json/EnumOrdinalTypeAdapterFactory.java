@@ -0,0 +1,102 @@
+package com.lyndir.lhunath.opal.json;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.gson.*;
+import com.google.gson.annotations.SerializedName;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.*;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import javax.annotation.Nullable;
+
+
+/**
+ * Writes enum constants as their ordinal.  Reading accepts either the ordinal or the constant's name, which is its {@link
+ * SerializedName} when it has one.
+ *
+ * @author lhunath
+ */
+public class EnumOrdinalTypeAdapterFactory implements TypeAdapterFactory {
+
+    @Nullable
+    @Override
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public <T> TypeAdapter<T> create(final Gson gson, final TypeToken<T> type) {
+
+        Class<? super T> rawType = type.getRawType();
+        if (!Enum.class.isAssignableFrom( rawType ) || rawType == Enum.class)
+            return null;
+
+        // Constants with a body are anonymous subclasses of their enum.
+        if (!rawType.isEnum())
+            rawType = rawType.getSuperclass();
+
+        return (TypeAdapter<T>) new EnumOrdinalTypeAdapter( rawType );
+    }
+
+    private static class EnumOrdinalTypeAdapter<E extends Enum<E>> extends TypeAdapter<E> {
+
+        private final Class<E> enumType;
+        private final E[]                     constants;
+        private final ImmutableMap<String, E> namedConstants;
+
+        EnumOrdinalTypeAdapter(final Class<E> enumType) {
+
+            this.enumType = enumType;
+            constants = enumType.getEnumConstants();
+
+            Map<String, E> names = new HashMap<>();
+            for (final E constant : constants) {
+                SerializedName serializedName;
+                try {
+                    serializedName = enumType.getField( constant.name() ).getAnnotation( SerializedName.class );
+                }
+                catch (final NoSuchFieldException e) {
+                    throw new IllegalStateException( e );
+                }
+
+                if (serializedName == null)
+                    names.put( constant.name(), constant );
+                else {
+                    names.put( serializedName.value(), constant );
+                    for (final String alternate : serializedName.alternate())
+                        names.put( alternate, constant );
+                }
+            }
+            namedConstants = ImmutableMap.copyOf( names );
+        }
+
+        @Override
+        public void write(final JsonWriter out, @Nullable final E value)
+                throws IOException {
+
+            if (value == null)
+                out.nullValue();
+            else
+                out.value( value.ordinal() );
+        }
+
+        @Nullable
+        @Override
+        public E read(final JsonReader in)
+                throws IOException {
+
+            switch (in.peek()) {
+                case NULL:
+                    in.nextNull();
+                    return null;
+
+                case NUMBER:
+                    int ordinal = in.nextInt();
+                    if (ordinal < 0 || ordinal >= constants.length)
+                        throw new JsonSyntaxException( "No " + enumType.getSimpleName() + " with ordinal: " + ordinal );
+                    return constants[ordinal];
+
+                default:
+                    // Gson reads unknown names as null.
+                    return namedConstants.get( in.nextString() );
+            }
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package com.lyndir.lhunath.opal.json;
+
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.gson.*;
+import com.google.gson.annotations.JsonAdapter;
+import com.google.gson.annotations.SerializedName;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import com.lyndir.lhunath.opal.system.logging.Logger;
+import java.io.IOException;
+import java.lang.invoke.*;
+import java.lang.reflect.*;
+import java.util.ArrayList;
+import java.util.List;
+import javax.annotation.Nullable;
+
+
+/**
+ * Writes objects of the given types, such as {@link JSONResult}, through precompiled field accessors instead of Gson's reflective
+ * adapter.
+ *
+ * <p> The fields of a type are resolved once, into method handles and the type adapters of their declared types.  Fields are selected
+ * by Gson's own exclusion rules and named by {@link SerializedName} or Gson's naming strategy.  Values are written with the adapter of
+ * their runtime type, unless an adapter was registered for the field's declared type.  The output is the same as that of the
+ * reflective adapter, except when adapters are registered for both a field's declared type and the runtime type of its value, where
+ * Gson would use the latter.  Reading is left to the adapter Gson would otherwise use. </p>
+ *
+ * <p> Only the exact types given are handled, not their subclasses.  Types with fields that carry a {@link JsonAdapter} are left to
+ * Gson. </p>
+ *
+ * @author lhunath
+ */
+public class ExposedTypeAdapterFactory implements TypeAdapterFactory {
+
+    static final Logger logger = Logger.get( ExposedTypeAdapterFactory.class );
+
+    /**
+     * Has only Gson's built-in adapters, to tell them apart from adapters registered with the Gson in use.
+     */
+    private static final Gson defaultGson = new Gson();
+
+    private final ImmutableSet<Class<?>> types;
+
+    /**
+     * Handle {@link JSONResult}.
+     */
+    public ExposedTypeAdapterFactory() {
+
+        this( JSONResult.class );
+    }
+
+    /**
+     * @param types The types to handle.
+     */
+    public ExposedTypeAdapterFactory(final Class<?>... types) {
+
+        this.types = ImmutableSet.copyOf( types );
+    }
+
+    @Nullable
+    @Override
+    public <T> TypeAdapter<T> create(final Gson gson, final TypeToken<T> type) {
+
+        Class<? super T> rawType = type.getRawType();
+        if (!types.contains( rawType ) || gson.excluder().excludeClass( rawType, true ))
+            return null;
+
+        List<Field> fields = new ArrayList<>();
+        for (Class<?> declaringType = rawType; declaringType != null && declaringType != Object.class;
+             declaringType = declaringType.getSuperclass())
+            for (final Field field : declaringType.getDeclaredFields()) {
+                if (gson.excluder().excludeField( field, true ))
+                    continue;
+                if (field.getAnnotation( JsonAdapter.class ) != null)
+                    return null;
+
+                fields.add( field );
+            }
+
+        ImmutableList.Builder<BoundField> boundFields = ImmutableList.builder();
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        for (final Field field : fields)
+            try {
+                field.setAccessible( true );
+                boundFields.add( new BoundField( gson, field, lookup.unreflectGetter( field )
+                                                                    .asType( MethodType.methodType( Object.class, Object.class ) ) ) );
+            }
+            catch (final IllegalAccessException | RuntimeException e) {
+                logger.dbg( e, "Field not accessible, leaving %s to Gson: %s", rawType, field );
+                return null;
+            }
+
+        return new ExposedTypeAdapter<>( gson.getDelegateAdapter( this, type ), boundFields.build() );
+    }
+
+    private static class ExposedTypeAdapter<T> extends TypeAdapter<T> {
+
+        private final TypeAdapter<T>            delegate;
+        private final ImmutableList<BoundField> boundFields;
+
+        ExposedTypeAdapter(final TypeAdapter<T> delegate, final ImmutableList<BoundField> boundFields) {
+
+            this.delegate = delegate;
+            this.boundFields = boundFields;
+        }
+
+        @Override
+        public void write(final JsonWriter out, @Nullable final T value)
+                throws IOException {
+
+            if (value == null) {
+                out.nullValue();
+                return;
+            }
+
+            out.beginObject();
+            for (final BoundField boundField : boundFields)
+                boundField.write( out, value );
+            out.endObject();
+        }
+
+        @Override
+        public T read(final JsonReader in)
+                throws IOException {
+
+            return delegate.read( in );
+        }
+    }
+
+
+    private static class BoundField {
+
+        private final Gson         gson;
+        private final String       name;
+        private final MethodHandle getter;
+        @Nullable
+        private final TypeAdapter<Object> declaredAdapter;
+        @Nullable
+        private final Class<?>            dispatchingType;
+
+        @SuppressWarnings("unchecked")
+        BoundField(final Gson gson, final Field field, final MethodHandle getter) {
+
+            this.gson = gson;
+            this.getter = getter;
+
+            SerializedName serializedName = field.getAnnotation( SerializedName.class );
+            name = serializedName == null? gson.fieldNamingStrategy().translateName( field ): serializedName.value();
+
+            Type fieldType = field.getGenericType();
+            if (fieldType == Object.class || fieldType instanceof TypeVariable) {
+                // Always written with the adapter of the value's runtime type.
+                declaredAdapter = null;
+                dispatchingType = null;
+            } else {
+                TypeToken<?> fieldTypeToken = TypeToken.get( fieldType );
+                declaredAdapter = (TypeAdapter<Object>) gson.getAdapter( fieldTypeToken );
+                // Like Gson, values of plain class types are written as their runtime type, unless an adapter was registered for the
+                // declared type.  Only non-final classes can have values of other types.
+                dispatchingType = fieldType instanceof Class && !Modifier.isFinal( ((Class<?>) fieldType).getModifiers() )
+                                  && !isRegistered( fieldTypeToken, declaredAdapter )? (Class<?>) fieldType: null;
+            }
+        }
+
+        /**
+         * @return {@code true} if the adapter is not the one Gson has built in for the type.
+         */
+        private static boolean isRegistered(final TypeToken<?> type, final TypeAdapter<?> adapter) {
+
+            try {
+                return adapter.getClass() != defaultGson.getAdapter( type ).getClass();
+            }
+            catch (final RuntimeException ignored) {
+                // Gson has no adapter of its own for the type.
+                return true;
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        void write(final JsonWriter out, final Object instance)
+                throws IOException {
+
+            Object value;
+            try {
+                value = getter.invokeExact( instance );
+            }
+            catch (final Throwable t) {
+                Throwables.throwIfUnchecked( t );
+                throw new IllegalStateException( t );
+            }
+
+            out.name( name );
+            if (value == null) {
+                if (declaredAdapter == null)
+                    out.nullValue();
+                else
+                    declaredAdapter.write( out, null );
+                return;
+            }
+
+            TypeAdapter<Object> adapter = declaredAdapter;
+            if (adapter == null || dispatchingType != null && value.getClass() != dispatchingType)
+                adapter = (TypeAdapter<Object>) gson.getAdapter( value.getClass() );
+            adapter.write( out, value );
+        }
+    }
+}
@@ -2,19 +2,29 @@ package com.lyndir.lhunath.opal.json;
 
 import static com.lyndir.lhunath.opal.system.util.ObjectUtils.*;
 
+import com.google.common.base.Throwables;
 import com.google.gson.*;
+import com.google.gson.stream.JsonWriter;
 import com.google.inject.Singleton;
 import java.io.*;
 import java.lang.annotation.Annotation;
 import java.lang.reflect.Type;
-import java.nio.charset.StandardCharsets;
+import java.nio.charset.*;
+import java.util.HashMap;
+import java.util.Map;
+import javax.annotation.Nullable;
 import javax.ws.rs.*;
-import javax.ws.rs.core.MediaType;
-import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.core.*;
 import javax.ws.rs.ext.*;
 
 
 /**
+ * Reads and writes JSON entities with {@link Gson}.  Entities are streamed from and to the entity stream in the charset of the media
+ * type, or UTF-8 if it has none.  Requests in an unsupported charset are rejected with 415; responses fall back to UTF-8.
+ *
+ * <p> Output is compact, unless the media type has a {@code pretty=true} parameter or the resource method is annotated with {@link
+ * PrettyJSON}. </p>
+ *
  * @author lhunath, 2013-10-19
  */
 @Provider
@@ -23,16 +33,18 @@ import javax.ws.rs.ext.*;
 @Produces({ MediaType.APPLICATION_JSON })
 public class GsonJsonProvider implements MessageBodyReader<Object>, MessageBodyWriter<Object> {
 
+    /**
+     * The media type parameter that enables pretty printing when {@code true}.
+     */
+    public static final String PRETTY_PARAMETER  = "pretty";
+    private static final String CHARSET_PARAMETER = "charset";
+    private static final String PRETTY_INDENT     = "  ";
+    private static final int    BUFFER_SIZE       = 8192;
+
     private static final Gson gson = new GsonBuilder().serializeNulls()
-                                                      .setPrettyPrinting()
                                                       .disableHtmlEscaping()
-                                                      .registerTypeHierarchyAdapter( Enum.class, new JsonSerializer<Enum<?>>() {
-                                                          @Override
-                                                          public JsonElement serialize(final Enum<?> src, final Type typeOfSrc,
-                                                                                       final JsonSerializationContext context) {
-                                                              return new JsonPrimitive( src.ordinal() );
-                                                          }
-                                                      } )
+                                                      .registerTypeAdapterFactory( new EnumOrdinalTypeAdapterFactory() )
+                                                      .registerTypeAdapterFactory( new ExposedTypeAdapterFactory() )
                                                       .create();
 
     public static Gson getGson() {
@@ -48,8 +60,27 @@ public class GsonJsonProvider implements MessageBodyReader<Object>, MessageBodyW
     public Object readFrom(final Class<Object> type, final Type genericType, final Annotation[] annotations, final MediaType mediaType,
                            final MultivaluedMap<String, String> httpHeaders, final InputStream entityStream)
             throws IOException, WebApplicationException {
-        // TODO: Get charset from mediaType
-        return gson.fromJson( new InputStreamReader( entityStream, StandardCharsets.UTF_8 ), ifNotNullElse( genericType, type ) );
+        Charset charset;
+        try {
+            charset = getCharset( mediaType );
+        }
+        catch (final IllegalArgumentException e) {
+            // The request's charset is not supported.
+            throw new WebApplicationException( e, 415 );
+        }
+
+        try {
+            return gson.fromJson( new InputStreamReader( entityStream, charset ), ifNotNullElse( genericType, type ) );
+        }
+        catch (final JsonIOException e) {
+            // Reading the entity failed, not parsing it: that's not the client's fault.
+            Throwables.throwIfInstanceOf( e.getCause(), IOException.class );
+            throw e;
+        }
+        catch (final JsonParseException e) {
+            // Syntax errors and entities the type adapters refuse.
+            throw new WebApplicationException( e, 400 );
+        }
     }
 
     @Override
@@ -67,7 +98,58 @@ public class GsonJsonProvider implements MessageBodyReader<Object>, MessageBodyW
     public void writeTo(final Object o, final Class<?> type, final Type genericType, final Annotation[] annotations,
                         final MediaType mediaType, final MultivaluedMap<String, Object> httpHeaders, final OutputStream entityStream)
             throws IOException, WebApplicationException {
-        // TODO: Get charset from mediaType
-        entityStream.write( gson.toJson( o, ifNotNullElse( genericType, type ) ).getBytes( StandardCharsets.UTF_8 ) );
+        Charset charset;
+        try {
+            charset = getCharset( mediaType );
+        }
+        catch (final IllegalArgumentException ignored) {
+            // The response's charset is not supported: fall back to UTF-8 and say so.
+            charset = StandardCharsets.UTF_8;
+            if (httpHeaders != null) {
+                Map<String, String> parameters = new HashMap<>( mediaType.getParameters() );
+                parameters.put( CHARSET_PARAMETER, charset.name() );
+                httpHeaders.putSingle( HttpHeaders.CONTENT_TYPE, new MediaType( mediaType.getType(), mediaType.getSubtype(), parameters ) );
+            }
+        }
+
+        Writer writer = new BufferedWriter( new OutputStreamWriter( entityStream, charset ), BUFFER_SIZE );
+        JsonWriter jsonWriter = new JsonWriter( writer );
+        if (isPretty( annotations, mediaType ))
+            jsonWriter.setIndent( PRETTY_INDENT );
+
+        try {
+            gson.toJson( o, ifNotNullElse( genericType, type ), jsonWriter );
+        }
+        catch (final JsonIOException e) {
+            Throwables.throwIfInstanceOf( e.getCause(), IOException.class );
+            throw e;
+        }
+
+        // Don't close the entity stream, it belongs to the container.
+        jsonWriter.flush();
+    }
+
+    /**
+     * @throws IllegalArgumentException The media type names a charset that is not supported.
+     */
+    private static Charset getCharset(@Nullable final MediaType mediaType) {
+
+        String charset = mediaType == null? null: mediaType.getParameters().get( CHARSET_PARAMETER );
+        if (charset == null)
+            return StandardCharsets.UTF_8;
+
+        return Charset.forName( charset );
+    }
+
+    private static boolean isPretty(final Annotation[] annotations, @Nullable final MediaType mediaType) {
+
+        if (mediaType != null && Boolean.parseBoolean( mediaType.getParameters().get( PRETTY_PARAMETER ) ))
+            return true;
+
+        for (final Annotation annotation : annotations)
+            if (annotation instanceof PrettyJSON)
+                return true;
+
+        return false;
     }
 }
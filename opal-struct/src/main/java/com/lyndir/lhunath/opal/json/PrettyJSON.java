@@ -0,0 +1,18 @@
+package com.lyndir.lhunath.opal.json;
+
+import java.lang.annotation.*;
+
+
+/**
+ * Pretty print the JSON entities that {@link GsonJsonProvider} writes for the annotated resource method.
+ *
+ * <p> JAX-RS only passes the resource method's annotations to the provider, so resource classes can't be annotated. </p>
+ *
+ * @author lhunath
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface PrettyJSON {
+
+}
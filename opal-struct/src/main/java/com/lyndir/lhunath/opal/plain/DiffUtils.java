@@ -18,26 +18,24 @@
  */
 package com.lyndir.lhunath.opal.plain;
 
+import com.google.common.base.Splitter;
+import com.google.common.io.CharStreams;
 import java.io.*;
 import java.nio.charset.Charset;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
-import jlibdiff.Diff;
-import jlibdiff.Hunk;
 
 
 /**
- * TODO: Needs cleanup.
+ * Computes the line-by-line difference between texts, see {@link LineDiff}.
  *
  * @author lhunath
  */
 public abstract class DiffUtils {
 
     @SuppressWarnings("HardcodedLineSeparator")
-    private static final Pattern LINE          = Pattern.compile( ".*[\r\n]+" );
-    private static final Pattern NOT_ADD_CHUNK = Pattern.compile( "(?m)^[^>].*" );
-    private static final Pattern NOT_REM_CHUNK = Pattern.compile( "(?m)^[^<].*" );
-    private static final Pattern ADD_CHUNK     = Pattern.compile( "(?m)^>" );
-    private static final Pattern REM_CHUNK     = Pattern.compile( "(?m)^<" );
+    private static final Splitter LINES = Splitter.on( Pattern.compile( "\r\n?|\n" ) );
 
     /**
      * Get the contextual difference between the data from two streams.
@@ -47,7 +45,7 @@ public abstract class DiffUtils {
      *
      * @return The diff string.
      *
-     * @throws IOException jlibdiff fails.
+     * @throws IOException The streams could not be read.
      */
     public static String getDiff(final InputStream from, final InputStream to, final Charset charset)
             throws IOException {
@@ -66,15 +64,12 @@ public abstract class DiffUtils {
      *
      * @return The diff string.
      *
-     * @throws IOException jlibdiff fails.
+     * @throws IOException The readers could not be read.
      */
     public static String getDiff(final BufferedReader from, final BufferedReader to)
             throws IOException {
 
-        Diff diff = new Diff();
-        diff.diffBuffer( from, to );
-
-        return renderDiff( diff );
+        return renderDiff( diff( from, to ) );
     }
 
     /**
@@ -85,42 +80,100 @@ public abstract class DiffUtils {
      *
      * @return The diff string.
      *
-     * @throws IOException jlibdiff fails.
+     * @throws IOException Not thrown anymore; declared for compatibility.
      */
     public static String getDiff(final String from, final String to)
             throws IOException {
 
-        Diff diff = new Diff();
-        diff.diffString( from, to );
+        return renderDiff( diff( from, to ) );
+    }
+
+    /**
+     * Get the difference between two texts as a unified diff.
+     *
+     * @param from    The original text.
+     * @param to      The modified text.
+     * @param context The amount of unchanged lines to show around changes.
+     *
+     * @return The unified diff, without file headers.  It is empty if the texts have the same lines.
+     */
+    public static String getUnifiedDiff(final String from, final String to, final int context) {
+
+        StringBuilder out = new StringBuilder();
+        try {
+            diff( from, to ).renderUnified( out, null, null, context );
+        }
+        catch (final IOException e) {
+            throw new IllegalStateException( e );
+        }
 
-        return renderDiff( diff );
+        return out.toString();
     }
 
     /**
-     * Render the difference as configured in the given diff object.
+     * @return The difference between the lines read from the given readers.
+     *
+     * @throws IOException The readers could not be read.
+     */
+    public static LineDiff diff(final Reader from, final Reader to)
+            throws IOException {
+
+        return diff( CharStreams.readLines( from ), CharStreams.readLines( to ) );
+    }
+
+    /**
+     * @return The difference between the lines of the given strings.
+     */
+    public static LineDiff diff(final String from, final String to) {
+
+        return diff( lines( from ), lines( to ) );
+    }
+
+    /**
+     * @return The minimal difference between the given lines.  This takes O((N+M)D) time for N and M lines with D differences; use
+     *         {@link #diff(List, List, long, TimeUnit)} to bound it for large texts that differ a lot.
+     */
+    public static LineDiff diff(final List<String> fromLines, final List<String> toLines) {
+
+        return new LineDiff( fromLines, toLines, null );
+    }
+
+    /**
+     * @param timeout How long to look for a minimal difference.  When it expires, the regions that weren't resolved yet are reported as
+     *                replaced entirely, so the result then depends on how fast the machine is.
+     *
+     * @return The difference between the given lines, see {@link LineDiff#isMinimal()}.
+     */
+    public static LineDiff diff(final List<String> fromLines, final List<String> toLines, final long timeout, final TimeUnit timeUnit) {
+
+        return new LineDiff( fromLines, toLines, System.nanoTime() + timeUnit.toNanos( timeout ) );
+    }
+
+    private static List<String> lines(final String text) {
+
+        List<String> lines = LINES.splitToList( text );
+
+        // A trailing line terminator doesn't start another line.
+        return text.isEmpty() || lines.get( lines.size() - 1 ).isEmpty()? lines.subList( 0, lines.size() - 1 ): lines;
+    }
+
+    /**
+     * Render the difference as HTML.
      *
      * @param diff The diff that should be rendered.
      *
      * @return A HTML-formatted representation of the given diff.
      */
-    private static String renderDiff(final Diff diff) {
-
-        @SuppressWarnings({ "cast", "unchecked" })
-        Iterable<Hunk> hunks = diff.getHunks();
-        StringBuilder out = new StringBuilder( "<pre>" );
-
-        for (final Hunk hunk : hunks) {
-            String chunk = LINE.matcher( hunk.convert().trim() ).replaceFirst( "" );
-            String chunkAdd = ADD_CHUNK.matcher( NOT_ADD_CHUNK.matcher( chunk ).replaceAll( "" ).trim() ).replaceAll( "+" );
-            String chunkDel = REM_CHUNK.matcher( NOT_REM_CHUNK.matcher( chunk ).replaceAll( "" ).trim() ).replaceAll( "-" );
-
-            String diffFormat = "<span style='color: %s'>%s</span>";
-            if (!chunkDel.isEmpty())
-                out.append( String.format( diffFormat, "#993333", chunkDel ) ).append( System.lineSeparator() );
-            if (!chunkAdd.isEmpty())
-                out.append( String.format( diffFormat, "#339933", chunkAdd ) ).append( System.lineSeparator() );
+    private static String renderDiff(final LineDiff diff) {
+
+        StringBuilder out = new StringBuilder();
+        try {
+            diff.renderHTML( out );
+        }
+        catch (final IOException e) {
+            throw new IllegalStateException( e );
         }
 
-        return out.append( "</pre>" ).toString();
+        return out.toString();
     }
 }
@@ -0,0 +1,448 @@
+/*
+ *     -= NetherPanel - Upload World of Warcraft data to web rosters =-
+ *
+ *   Copyright (C) 2007 Maarten Billemont
+ *
+ *   This program is free software; you can redistribute it and/or modify it under the terms of the
+ *   GNU General Public License as published by the Free Software Foundation; either version 2 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ *   even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *   General Public License for more details.
+ *
+ *   You may not use this file except in compliance with the License. You may obtain a copy of the
+ *   License at
+ *
+ *       http://www.gnu.org/licenses/gpl.html
+ */
+package com.lyndir.lhunath.opal.plain;
+
+import com.google.common.collect.ImmutableList;
+import java.io.IOException;
+import java.util.*;
+import javax.annotation.Nullable;
+
+
+/**
+ * The line-by-line difference between two texts, as a list of {@link Hunk}s of changed lines.
+ *
+ * <p> The difference is computed with Myers' O(ND) algorithm, in its linear space variant that recursively bisects the edit graph at the
+ * middle snake.  Lines are compared by an integer id that is assigned per distinct line.  When computing the difference takes longer
+ * than the allowed time, the remaining unresolved regions are reported as replaced entirely: the result is then still a correct
+ * difference, but not necessarily a minimal one (see {@link #isMinimal()}).  Without a time limit, the
+ * difference is always minimal. </p>
+ *
+ * @author lhunath
+ */
+public class LineDiff {
+
+    private static final String HTML_DELETED  = "<span style='color: #993333'>";
+    private static final String HTML_INSERTED = "<span style='color: #339933'>";
+
+    private final List<String>        fromLines;
+    private final List<String>        toLines;
+    private final ImmutableList<Hunk> hunks;
+    private final boolean             minimal;
+
+    /**
+     * @param fromLines The lines of the original text.
+     * @param toLines   The lines of the modified text.
+     * @param deadline  The {@link System#nanoTime()} after which to stop looking for a minimal difference, or {@code null} to always
+     *                  compute a minimal difference.
+     */
+    LineDiff(final List<String> fromLines, final List<String> toLines, @Nullable final Long deadline) {
+
+        this.fromLines = fromLines;
+        this.toLines = toLines;
+
+        // Identify lines by an id per distinct line, so that comparing them is cheap.
+        Map<String, Integer> ids = new HashMap<>();
+        int[] from = new int[fromLines.size()], to = new int[toLines.size()];
+        for (int l = 0; l < from.length; ++l)
+            from[l] = id( ids, fromLines.get( l ) );
+        for (int l = 0; l < to.length; ++l)
+            to[l] = id( ids, toLines.get( l ) );
+
+        Bisection bisection = new Bisection( from, to, deadline );
+        bisection.compare( 0, from.length, 0, to.length );
+        minimal = !bisection.expired;
+
+        ImmutableList.Builder<Hunk> hunksBuilder = ImmutableList.builder();
+        for (int f = 0, t = 0; f < from.length || t < to.length; )
+            if (f < from.length && t < to.length && !bisection.deleted[f] && !bisection.inserted[t]) {
+                ++f;
+                ++t;
+            } else {
+                int fromStart = f, toStart = t;
+                while (f < from.length && bisection.deleted[f] || t < to.length && bisection.inserted[t]) {
+                    while (f < from.length && bisection.deleted[f])
+                        ++f;
+                    while (t < to.length && bisection.inserted[t])
+                        ++t;
+                }
+                hunksBuilder.add( new Hunk( fromStart, f, toStart, t ) );
+            }
+        hunks = hunksBuilder.build();
+    }
+
+    private static int id(final Map<String, Integer> ids, final String line) {
+
+        Integer id = ids.get( line );
+        if (id == null)
+            ids.put( line, id = ids.size() );
+
+        return id;
+    }
+
+    /**
+     * @return The regions of lines that differ, in order.
+     */
+    public ImmutableList<Hunk> getHunks() {
+
+        return hunks;
+    }
+
+    /**
+     * @return {@code true}: The hunks change as few lines as possible.  {@code false}: The difference could not be computed in the allowed
+     *         time and some hunks replace more lines than necessary.
+     */
+    public boolean isMinimal() {
+
+        return minimal;
+    }
+
+    /**
+     * @return The lines of the original text.
+     */
+    public List<String> getFromLines() {
+
+        return Collections.unmodifiableList( fromLines );
+    }
+
+    /**
+     * @return The lines of the modified text.
+     */
+    public List<String> getToLines() {
+
+        return Collections.unmodifiableList( toLines );
+    }
+
+    /**
+     * Render the hunks as HTML: a {@code <pre>} with, per hunk, the deleted lines prefixed by {@code -} and the inserted lines prefixed
+     * by {@code +}, each in a colored span.
+     *
+     * @param out Receives the HTML.
+     */
+    public void renderHTML(final Appendable out)
+            throws IOException {
+
+        out.append( "<pre>" );
+        for (final Hunk hunk : hunks) {
+            renderHTML( out, HTML_DELETED, "- ", fromLines, hunk.fromStart, hunk.fromEnd );
+            renderHTML( out, HTML_INSERTED, "+ ", toLines, hunk.toStart, hunk.toEnd );
+        }
+        out.append( "</pre>" );
+    }
+
+    private static void renderHTML(final Appendable out, final String span, final String prefix, final List<String> lines, final int start,
+                                   final int end)
+            throws IOException {
+
+        if (start == end)
+            return;
+
+        out.append( span );
+        for (int l = start; l < end; ++l) {
+            if (l > start)
+                out.append( '\n' );
+            out.append( prefix );
+            escapeHTML( out, lines.get( l ) );
+        }
+        out.append( "</span>" ).append( System.lineSeparator() );
+    }
+
+    private static void escapeHTML(final Appendable out, final CharSequence text)
+            throws IOException {
+
+        for (int c = 0; c < text.length(); ++c) {
+            char character = text.charAt( c );
+            switch (character) {
+                case '<':
+                    out.append( "&lt;" );
+                    break;
+                case '>':
+                    out.append( "&gt;" );
+                    break;
+                case '&':
+                    out.append( "&amp;" );
+                    break;
+                case '\'':
+                    out.append( "&#39;" );
+                    break;
+                case '"':
+                    out.append( "&quot;" );
+                    break;
+                default:
+                    out.append( character );
+            }
+        }
+    }
+
+    /**
+     * Render the hunks in the unified diff format.
+     *
+     * @param out      Receives the unified diff.
+     * @param fromName The name of the original text for the {@code ---} header, or {@code null} to omit the file headers.
+     * @param toName   The name of the modified text for the {@code +++} header.
+     * @param context  The amount of unchanged lines to show around changes.  Changes that are closer together than twice this amount
+     *                 share a hunk.
+     */
+    public void renderUnified(final Appendable out, @Nullable final String fromName, @Nullable final String toName, final int context)
+            throws IOException {
+
+        if (hunks.isEmpty())
+            return;
+
+        if (fromName != null) {
+            out.append( "--- " ).append( fromName ).append( '\n' );
+            out.append( "+++ " ).append( toName == null? fromName: toName ).append( '\n' );
+        }
+
+        for (int h = 0; h < hunks.size(); ) {
+            // Group the hunks whose context overlaps.
+            int last = h;
+            while (last + 1 < hunks.size() && hunks.get( last + 1 ).fromStart - hunks.get( last ).fromEnd <= 2 * context)
+                ++last;
+
+            Hunk first = hunks.get( h );
+            int leading = Math.min( context, first.fromStart );
+            int fromStart = first.fromStart - leading, toStart = first.toStart - leading;
+            int trailing = Math.min( context, fromLines.size() - hunks.get( last ).fromEnd );
+            int fromEnd = hunks.get( last ).fromEnd + trailing, toEnd = hunks.get( last ).toEnd + trailing;
+
+            out.append( "@@ -" );
+            renderRange( out, fromStart, fromEnd - fromStart );
+            out.append( " +" );
+            renderRange( out, toStart, toEnd - toStart );
+            out.append( " @@\n" );
+
+            int f = fromStart;
+            for (int g = h; g <= last; ++g) {
+                Hunk hunk = hunks.get( g );
+                for (; f < hunk.fromStart; ++f)
+                    out.append( ' ' ).append( fromLines.get( f ) ).append( '\n' );
+                for (; f < hunk.fromEnd; ++f)
+                    out.append( '-' ).append( fromLines.get( f ) ).append( '\n' );
+                for (int t = hunk.toStart; t < hunk.toEnd; ++t)
+                    out.append( '+' ).append( toLines.get( t ) ).append( '\n' );
+            }
+            for (; f < fromEnd; ++f)
+                out.append( ' ' ).append( fromLines.get( f ) ).append( '\n' );
+
+            h = last + 1;
+        }
+    }
+
+    private static void renderRange(final Appendable out, final int start, final int count)
+            throws IOException {
+
+        // An empty range is identified by the line before it.
+        out.append( Integer.toString( count == 0? start: start + 1 ) );
+        if (count != 1)
+            out.append( ',' ).append( Integer.toString( count ) );
+    }
+
+    @Override
+    public String toString() {
+
+        StringBuilder out = new StringBuilder();
+        try {
+            renderUnified( out, null, null, 0 );
+        }
+        catch (final IOException e) {
+            throw new IllegalStateException( e );
+        }
+
+        return out.toString();
+    }
+
+    /**
+     * A region of consecutive lines that were deleted from the original text and/or inserted into the modified text.  Positions are
+     * zero-based line indexes; ends are exclusive.
+     */
+    public static class Hunk {
+
+        private final int fromStart;
+        private final int fromEnd;
+        private final int toStart;
+        private final int toEnd;
+
+        Hunk(final int fromStart, final int fromEnd, final int toStart, final int toEnd) {
+
+            this.fromStart = fromStart;
+            this.fromEnd = fromEnd;
+            this.toStart = toStart;
+            this.toEnd = toEnd;
+        }
+
+        public int getFromStart() {
+
+            return fromStart;
+        }
+
+        public int getFromEnd() {
+
+            return fromEnd;
+        }
+
+        public int getToStart() {
+
+            return toStart;
+        }
+
+        public int getToEnd() {
+
+            return toEnd;
+        }
+
+        @Override
+        public String toString() {
+
+            return String.format( "{hunk: from=[%d, %d), to=[%d, %d)}", fromStart, fromEnd, toStart, toEnd );
+        }
+    }
+
+
+    /**
+     * Marks the lines that were deleted from {@code from} and inserted into {@code to}.
+     */
+    private static class Bisection {
+
+        final int[]     from;
+        final int[]     to;
+        final Long      deadline;
+        final boolean[] deleted;
+        final boolean[] inserted;
+        boolean expired;
+
+        Bisection(final int[] from, final int[] to, @Nullable final Long deadline) {
+
+            this.from = from;
+            this.to = to;
+            this.deadline = deadline;
+            deleted = new boolean[from.length];
+            inserted = new boolean[to.length];
+        }
+
+        /**
+         * Compare the region {@code [fromLow, fromHigh)} of {@code from} with the region {@code [toLow, toHigh)} of {@code to}.
+         */
+        void compare(int fromLow, int fromHigh, int toLow, int toHigh) {
+
+            // Skip the common prefix and suffix.
+            while (fromLow < fromHigh && toLow < toHigh && from[fromLow] == to[toLow]) {
+                ++fromLow;
+                ++toLow;
+            }
+            while (fromLow < fromHigh && toLow < toHigh && from[fromHigh - 1] == to[toHigh - 1]) {
+                --fromHigh;
+                --toHigh;
+            }
+
+            if (fromLow < fromHigh && toLow < toHigh && !expired) {
+                long split = middleSnake( fromLow, fromHigh, toLow, toHigh );
+                if (split >= 0) {
+                    int fromSplit = (int) (split >>> 32), toSplit = (int) split;
+                    compare( fromLow, fromSplit, toLow, toSplit );
+                    compare( fromSplit, fromHigh, toSplit, toHigh );
+                    return;
+                }
+            }
+
+            // Nothing in common (or no more time to find it).
+            Arrays.fill( deleted, fromLow, fromHigh, true );
+            Arrays.fill( inserted, toLow, toHigh, true );
+        }
+
+        /**
+         * Find the middle snake of the shortest edit path through the region, by extending paths from both of its corners at once.
+         *
+         * @return The absolute point where the path can be split, as {@code fromSplit << 32 | toSplit}, or {@code -1} if the regions have
+         *         nothing in common or the deadline has passed.
+         */
+        private long middleSnake(final int fromLow, final int fromHigh, final int toLow, final int toHigh) {
+
+            int n = fromHigh - fromLow, m = toHigh - toLow;
+            int maxD = (n + m + 1) / 2;
+            int offset = maxD, length = 2 * maxD + 2;
+
+            // The furthest x reached on each diagonal k = x - y, going forward and going backward.
+            int[] forward = new int[length], backward = new int[length];
+            Arrays.fill( forward, -1 );
+            Arrays.fill( backward, -1 );
+            forward[offset + 1] = 0;
+            backward[offset + 1] = 0;
+
+            int delta = n - m;
+            // The paths meet going forward when delta is odd, and going backward when it is even.
+            boolean odd = delta % 2 != 0;
+            int forwardStart = 0, forwardEnd = 0, backwardStart = 0, backwardEnd = 0;
+            for (int d = 0; d < maxD; ++d) {
+                if (deadline != null && System.nanoTime() - deadline > 0) {
+                    expired = true;
+                    return -1;
+                }
+
+                for (int k = -d + forwardStart; k <= d - forwardEnd; k += 2) {
+                    int x = k == -d || k != d && forward[offset + k - 1] < forward[offset + k + 1]? forward[offset + k + 1]
+                            : forward[offset + k - 1] + 1;
+                    int y = x - k;
+                    while (x < n && y < m && from[fromLow + x] == to[toLow + y]) {
+                        ++x;
+                        ++y;
+                    }
+                    forward[offset + k] = x;
+
+                    if (x > n)
+                        // Ran off the right of the graph.
+                        forwardEnd += 2;
+                    else if (y > m)
+                        // Ran off the bottom of the graph.
+                        forwardStart += 2;
+                    else if (odd) {
+                        int backwardK = offset + delta - k;
+                        if (backwardK >= 0 && backwardK < length && backward[backwardK] != -1 && x >= n - backward[backwardK])
+                            return (long) (fromLow + x) << 32 | toLow + y;
+                    }
+                }
+
+                for (int k = -d + backwardStart; k <= d - backwardEnd; k += 2) {
+                    int x = k == -d || k != d && backward[offset + k - 1] < backward[offset + k + 1]? backward[offset + k + 1]
+                            : backward[offset + k - 1] + 1;
+                    int y = x - k;
+                    while (x < n && y < m && from[fromHigh - x - 1] == to[toHigh - y - 1]) {
+                        ++x;
+                        ++y;
+                    }
+                    backward[offset + k] = x;
+
+                    if (x > n)
+                        backwardEnd += 2;
+                    else if (y > m)
+                        backwardStart += 2;
+                    else if (!odd) {
+                        int forwardK = offset + delta - k;
+                        if (forwardK >= 0 && forwardK < length && forward[forwardK] != -1) {
+                            int forwardX = forward[forwardK];
+                            if (forwardX >= n - x)
+                                return (long) (fromLow + forwardX) << 32 | toLow + forwardX - (forwardK - offset);
+                        }
+                    }
+                }
+            }
+
+            return -1;
+        }
+    }
+}
@@ -24,6 +24,9 @@ import java.lang.annotation.*;
  * <p> Types with this annotation can be passed to {@link Structure#load(Class)}. This will cause the resource specified in this annotation
  * to be deserialized into the annotated object's fields. </p>
  *
+ * <p> {@link Structure#iterateAll(Class)} loads the resource's records one at a time instead, which evaluates expressions that leave a
+ * record, and resources with DTDs, differently; see there. </p>
+ *
  * <p> <i>Dec 15, 2008</i> </p>
  *
  * @author lhunath
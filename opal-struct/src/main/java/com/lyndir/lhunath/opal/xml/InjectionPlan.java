@@ -0,0 +1,340 @@
+/*
+ *   Copyright 2005-2007 Maarten Billemont
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.lyndir.lhunath.opal.xml;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.lyndir.lhunath.opal.system.logging.Logger;
+import java.lang.invoke.*;
+import java.lang.reflect.*;
+import java.util.List;
+import java.util.function.Function;
+import javax.annotation.Nullable;
+import javax.xml.namespace.QName;
+import javax.xml.xpath.*;
+import org.w3c.dom.Node;
+
+
+/**
+ * <h2>{@link InjectionPlan}<br> <sub>How XML data is injected into the objects of a {@link FromXML} type.</sub></h2>
+ *
+ * <p> A plan is built once per type: it finds the type's {@link XInject} and {@link XInjectTag} fields and its {@link XAfterInject}
+ * methods and resolves method handles for them.  The XPath expressions are compiled once per thread that uses the plan, since compiled
+ * expressions are not safe for use by multiple threads. </p>
+ *
+ * @author lhunath
+ */
+final class InjectionPlan<T> {
+
+    static final Logger logger = Logger.get( InjectionPlan.class );
+
+    private static final ClassValue<InjectionPlan<?>> plans = new ClassValue<InjectionPlan<?>>() {
+        @Override
+        protected InjectionPlan<?> computeValue(final Class<?> type) {
+
+            return new InjectionPlan<>( type );
+        }
+    };
+
+    private final Class<T>                          type;
+    @Nullable
+    private final MethodHandle                      constructor;
+    @Nullable
+    private final ReflectiveOperationException      constructorError;
+    private final ImmutableList<FieldInjection>     fieldInjections;
+    private final ImmutableList<MethodHandle>       tagSetters;
+    private final ImmutableList<MethodHandle>       afterInjects;
+    private final boolean                           streamable;
+    private final ThreadLocal<List<XPathExpression>> expressions = new ThreadLocal<>();
+
+    /**
+     * @return The plan for injecting XML data into objects of the given type.
+     */
+    @SuppressWarnings("unchecked")
+    static <T> InjectionPlan<T> of(final Class<T> type) {
+
+        return (InjectionPlan<T>) plans.get( type );
+    }
+
+    private InjectionPlan(final Class<T> type) {
+
+        this.type = type;
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+
+        MethodHandle typeConstructor = null;
+        ReflectiveOperationException typeConstructorError = null;
+        try {
+            Constructor<T> reflectedConstructor = type.getConstructor();
+            reflectedConstructor.setAccessible( true );
+            typeConstructor = lookup.unreflectConstructor( reflectedConstructor ).asType( MethodType.methodType( Object.class ) );
+        }
+        catch (final NoSuchMethodException | IllegalAccessException e) {
+            typeConstructorError = e;
+        }
+        constructor = typeConstructor;
+        constructorError = typeConstructorError;
+
+        ImmutableList.Builder<FieldInjection> fieldInjectionsBuilder = ImmutableList.builder();
+        ImmutableList.Builder<MethodHandle> tagSettersBuilder = ImmutableList.builder();
+        for (final Field field : type.getDeclaredFields()) {
+            XInject annotation = field.getAnnotation( XInject.class );
+            boolean tag = field.isAnnotationPresent( XInjectTag.class );
+            if (annotation == null && !tag)
+                continue;
+
+            MethodHandle setter;
+            try {
+                field.setAccessible( true );
+                setter = lookup.unreflectSetter( field ).asType( MethodType.methodType( void.class, Object.class, Object.class ) );
+            }
+            catch (final IllegalAccessException e) {
+                logger.err( e, "Field not accessible: %s", field );
+                continue;
+            }
+
+            if (annotation != null)
+                fieldInjectionsBuilder.add( new FieldInjection( field, annotation.value(), setter ) );
+            if (tag)
+                tagSettersBuilder.add( setter );
+        }
+        fieldInjections = fieldInjectionsBuilder.build();
+        boolean allStreamable = true;
+        for (final FieldInjection fieldInjection : fieldInjections)
+            allStreamable &= fieldInjection.streamPath != null;
+        streamable = allStreamable;
+        tagSetters = tagSettersBuilder.build();
+
+        ImmutableList.Builder<MethodHandle> afterInjectsBuilder = ImmutableList.builder();
+        for (final Method method : type.getDeclaredMethods())
+            if (method.getAnnotation( XAfterInject.class ) != null)
+                try {
+                    method.setAccessible( true );
+                    afterInjectsBuilder.add( lookup.unreflect( method ).asType( MethodType.methodType( void.class, Object.class ) ) );
+                }
+                catch (final IllegalAccessException e) {
+                    logger.err( e, "XAfterInject method must be accessible." );
+                }
+                catch (final WrongMethodTypeException e) {
+                    logger.err( e, "XAfterInject method shouldn't take any arguments." );
+                }
+        afterInjects = afterInjectsBuilder.build();
+    }
+
+    /**
+     * @return A new, empty object of the plan's type.
+     */
+    T newInstance() {
+
+        if (constructor == null)
+            throw logger.bug( constructorError );
+
+        try {
+            return type.cast( constructor.invokeExact() );
+        }
+        catch (final Throwable t) {
+            Throwables.throwIfUnchecked( t );
+            throw new IllegalStateException( t );
+        }
+    }
+
+    /**
+     * Set the {@link XInjectTag} fields of the structure to the given tag name.
+     */
+    void injectTag(final T structure, final String tagName) {
+
+        for (final MethodHandle tagSetter : tagSetters)
+            try {
+                tagSetter.invokeExact( (Object) structure, (Object) tagName );
+            }
+            catch (final ClassCastException e) {
+                logger.err( e, "XInjectTag field of the wrong type." );
+            }
+            catch (final Throwable t) {
+                Throwables.throwIfUnchecked( t );
+                throw new IllegalStateException( t );
+            }
+    }
+
+    /**
+     * Inject the XML data under the given root into the {@link XInject} fields of the structure, then invoke its {@link XAfterInject}
+     * methods.
+     *
+     * @throws XPathExpressionException If a field's XPath expression failed to evaluate on the given root.
+     */
+    void inject(final Node root, final T structure)
+            throws XPathExpressionException {
+
+        List<XPathExpression> threadExpressions = expressions();
+        for (int f = 0; f < fieldInjections.size(); ++f)
+            set( structure, fieldInjections.get( f ), threadExpressions.get( f ).evaluate( root, fieldInjections.get( f ).result ) );
+
+        afterInject( structure );
+    }
+
+    /**
+     * Inject values that were read while streaming the XML data into the {@link XInject} fields of the structure, then invoke its {@link
+     * XAfterInject} methods.
+     *
+     * @param structure      The structure to inject the values into.
+     * @param streamedValues For each field with a {@link #getStreamPath(int) stream path}, the string-value of the first node the path
+     *                       selected or {@code null} if it selected none.
+     * @param record         The record as a DOM node, to evaluate the XPath expressions of the other fields on.  May be {@code null}
+     *                       if the plan {@link #isStreamable() is streamable}.
+     *
+     * @throws XPathExpressionException If a field's XPath expression failed to evaluate on the given record.
+     */
+    void inject(final T structure, final String[] streamedValues, @Nullable final Node record)
+            throws XPathExpressionException {
+
+        List<XPathExpression> threadExpressions = streamable? null: expressions();
+        for (int f = 0; f < fieldInjections.size(); ++f) {
+            FieldInjection fieldInjection = fieldInjections.get( f );
+            Object value;
+            if (fieldInjection.streamPath != null) {
+                String streamedValue = streamedValues[f];
+                if (fieldInjection.result == XPathConstants.BOOLEAN)
+                    value = streamedValue != null;
+                else if (fieldInjection.result == XPathConstants.NUMBER)
+                    value = StreamingLoader.toNumber( streamedValue );
+                else
+                    value = streamedValue == null? "": streamedValue;
+            } else
+                value = threadExpressions.get( f ).evaluate( Preconditions.checkNotNull( record, "Missing record for XPath." ),
+                                                             fieldInjection.result );
+
+            set( structure, fieldInjection, value );
+        }
+
+        afterInject( structure );
+    }
+
+    /**
+     * @return {@code true}: The expressions of all fields have stream paths, so injection doesn't need the records as DOM nodes.
+     */
+    boolean isStreamable() {
+
+        return streamable;
+    }
+
+    int getFieldCount() {
+
+        return fieldInjections.size();
+    }
+
+    /**
+     * @return The path that the field's expression selects, or {@code null} if the expression needs to be evaluated as XPath.
+     */
+    @Nullable
+    StreamingLoader.StreamPath getStreamPath(final int field) {
+
+        return fieldInjections.get( field ).streamPath;
+    }
+
+    private static void set(final Object structure, final FieldInjection fieldInjection, final Object result) {
+
+        Object value = fieldInjection.convert.apply( result );
+        logger.dbg( "Setting (%s) '%s' to '%s' (xpath: %s)", fieldInjection.valueType.getSimpleName(), fieldInjection.name, value,
+                    fieldInjection.expression );
+
+        try {
+            fieldInjection.setter.invokeExact( structure, value );
+        }
+        catch (final ClassCastException e) {
+            logger.err( e, "Unexpected data type." );
+        }
+        catch (final Throwable t) {
+            Throwables.throwIfUnchecked( t );
+            throw new IllegalStateException( t );
+        }
+    }
+
+    private void afterInject(final T structure) {
+
+        for (final MethodHandle afterInject : afterInjects)
+            try {
+                afterInject.invokeExact( (Object) structure );
+            }
+            catch (final Throwable t) {
+                logger.err( t, "XAfterInject method throw an exception." );
+            }
+    }
+
+    /**
+     * @return The plan's XPath expressions, compiled for the current thread.
+     */
+    private List<XPathExpression> expressions()
+            throws XPathExpressionException {
+
+        List<XPathExpression> threadExpressions = expressions.get();
+        if (threadExpressions == null) {
+            XPath xpath = XPathFactory.newInstance().newXPath();
+            ImmutableList.Builder<XPathExpression> compiled = ImmutableList.builder();
+            for (final FieldInjection fieldInjection : fieldInjections)
+                compiled.add( xpath.compile( fieldInjection.expression ) );
+            expressions.set( threadExpressions = compiled.build() );
+        }
+
+        return threadExpressions;
+    }
+
+    private static class FieldInjection {
+
+        final String                   name;
+        final Class<?>                 valueType;
+        final String                   expression;
+        final MethodHandle             setter;
+        final QName                    result;
+        final Function<Object, Object> convert;
+        @Nullable
+        final StreamingLoader.StreamPath streamPath;
+
+        FieldInjection(final Field field, final String expression, final MethodHandle setter) {
+
+            name = field.getName();
+            valueType = field.getType();
+            this.expression = expression;
+            this.setter = setter;
+            streamPath = StreamingLoader.StreamPath.parse( expression );
+
+            if (valueType == Byte.class || valueType == Byte.TYPE) {
+                result = XPathConstants.NUMBER;
+                convert = value -> ((Number) value).byteValue();
+            } else if (valueType == Double.class || valueType == Double.TYPE) {
+                result = XPathConstants.NUMBER;
+                convert = value -> ((Number) value).doubleValue();
+            } else if (valueType == Float.class || valueType == Float.TYPE) {
+                result = XPathConstants.NUMBER;
+                convert = value -> ((Number) value).floatValue();
+            } else if (valueType == Integer.class || valueType == Integer.TYPE) {
+                result = XPathConstants.NUMBER;
+                convert = value -> ((Number) value).intValue();
+            } else if (valueType == Long.class || valueType == Long.TYPE) {
+                result = XPathConstants.NUMBER;
+                convert = value -> ((Number) value).longValue();
+            } else if (valueType == Short.class || valueType == Short.TYPE) {
+                result = XPathConstants.NUMBER;
+                convert = value -> ((Number) value).shortValue();
+            } else if (valueType == Boolean.class || valueType == Boolean.TYPE) {
+                result = XPathConstants.BOOLEAN;
+                convert = Function.identity();
+            } else {
+                result = XPathConstants.STRING;
+                convert = Function.identity();
+            }
+        }
+    }
+}
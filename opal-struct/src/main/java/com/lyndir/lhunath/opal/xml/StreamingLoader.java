@@ -0,0 +1,324 @@
+/*
+ *   Copyright 2005-2007 Maarten Billemont
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.lyndir.lhunath.opal.xml;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.Closeables;
+import com.lyndir.lhunath.opal.system.logging.Logger;
+import java.io.*;
+import java.util.*;
+import java.util.regex.Pattern;
+import javax.annotation.Nullable;
+import javax.xml.stream.*;
+import javax.xml.xpath.XPathExpressionException;
+import org.w3c.dom.*;
+
+
+/**
+ * <h2>{@link StreamingLoader}<br> <sub>Loads the records of a {@link FromXML} resource one at a time.</sub></h2>
+ *
+ * <p> The resource is read with a StAX parser.  Each child of the document element is a record.  Fields whose {@link XInject}
+ * expressions are simple child or attribute paths (see {@link StreamPath}) are filled in while the record streams by.  Only when some
+ * field's expression needs XPath is the record built into a DOM of its own, on which those expressions are then evaluated.  Either way,
+ * memory use is bounded by the size of a record rather than that of the resource.  Because the record's DOM is detached from the rest
+ * of the document, expressions that leave the record (absolute paths, {@code ..}, {@code ancestor::}) don't see what they would in a
+ * DOM of the whole document. </p>
+ *
+ * <p> DTDs are not processed, which keeps external entities out: documents that use entities declared in their DTD fail to parse
+ * here, though they load with {@link Structure#loadAll(Class)}. </p>
+ *
+ * @author lhunath
+ */
+class StreamingLoader<T> extends AbstractIterator<T> implements Closeable {
+
+    static final Logger logger = Logger.get( StreamingLoader.class );
+
+    private static final Pattern XPATH_NUMBER = Pattern.compile( "\\s*-?(\\d+(\\.\\d*)?|\\.\\d+)\\s*" );
+
+    private static final XMLInputFactory inputFactory = XMLInputFactory.newInstance();
+
+    static {
+        inputFactory.setProperty( XMLInputFactory.IS_REPLACING_ENTITY_REFERENCES, true );
+        inputFactory.setProperty( XMLInputFactory.IS_NAMESPACE_AWARE, false );
+        inputFactory.setProperty( XMLInputFactory.SUPPORT_DTD, false );
+    }
+
+    private final InjectionPlan<T> plan;
+    private final InputStream      stream;
+    private final XMLStreamReader  reader;
+    @Nullable
+    private final Document         document;
+
+    /**
+     * @param plan   The plan for injecting records into objects.
+     * @param stream The XML data.  It is closed when the loader is closed or runs out of records.
+     */
+    StreamingLoader(final InjectionPlan<T> plan, final InputStream stream)
+            throws XMLStreamException {
+
+        this.plan = plan;
+        this.stream = stream;
+
+        XMLStreamReader streamReader = null;
+        try {
+            streamReader = inputFactory.createXMLStreamReader( stream );
+            document = plan.isStreamable()? null: Structure.getThreadXMLBuilder().newDocument();
+
+            // Move to the document element.
+            while (streamReader.hasNext() && streamReader.next() != XMLStreamConstants.START_ELEMENT) {
+                // Skip the prolog.
+            }
+        }
+        catch (final XMLStreamException | RuntimeException e) {
+            // Nobody will be able to close us.
+            try {
+                if (streamReader != null)
+                    streamReader.close();
+            }
+            catch (final XMLStreamException closeException) {
+                e.addSuppressed( closeException );
+            }
+            finally {
+                Closeables.closeQuietly( stream );
+            }
+            throw e;
+        }
+        reader = streamReader;
+    }
+
+    @Override
+    protected T computeNext() {
+
+        try {
+            // Move to the next record, or to the end of the document element.
+            int event;
+            do
+                event = reader.next();
+            while (event != XMLStreamConstants.START_ELEMENT && event != XMLStreamConstants.END_ELEMENT
+                   && event != XMLStreamConstants.END_DOCUMENT);
+            if (event != XMLStreamConstants.START_ELEMENT) {
+                close();
+                return endOfData();
+            }
+
+            T structure = plan.newInstance();
+            plan.injectTag( structure, qualifiedName() );
+
+            String[] values = new String[plan.getFieldCount()];
+            Element record = readRecord( values );
+            plan.inject( structure, values, record );
+
+            return structure;
+        }
+        catch (final XMLStreamException | XPathExpressionException e) {
+            close();
+            throw new IllegalStateException( "Couldn't read the next record.", e );
+        }
+    }
+
+    /**
+     * Read the record the reader is at, up to and including its end tag.
+     *
+     * @param values Receives the string-values selected by the plan's stream paths.
+     *
+     * @return The record as a DOM element if the plan needs one, otherwise {@code null}.
+     */
+    @Nullable
+    private Element readRecord(final String[] values)
+            throws XMLStreamException {
+
+        int fields = plan.getFieldCount();
+        List<String> path = new ArrayList<>();
+        StringBuilder[] texts = new StringBuilder[fields];
+        int[] textDepths = new int[fields];
+
+        Element record = null;
+        Node parent = null;
+        boolean atRecord = true;
+        for (int event = XMLStreamConstants.START_ELEMENT; ; event = reader.next())
+            switch (event) {
+                case XMLStreamConstants.START_ELEMENT: {
+                    // The record's own start tag is at an empty path.
+                    if (atRecord)
+                        atRecord = false;
+                    else
+                        path.add( qualifiedName() );
+
+                    for (int f = 0; f < fields; ++f) {
+                        StreamPath streamPath = plan.getStreamPath( f );
+                        if (streamPath == null || values[f] != null || texts[f] != null || !streamPath.selects( path ))
+                            continue;
+
+                        if (streamPath.attribute == null) {
+                            texts[f] = new StringBuilder();
+                            textDepths[f] = path.size();
+                        } else
+                            values[f] = reader.getAttributeValue( null, streamPath.attribute );
+                    }
+
+                    if (document != null) {
+                        Element element = document.createElement( qualifiedName() );
+                        for (int a = 0; a < reader.getAttributeCount(); ++a) {
+                            String prefix = reader.getAttributePrefix( a );
+                            String name = reader.getAttributeLocalName( a );
+                            element.setAttribute( prefix == null || prefix.isEmpty()? name: prefix + ':' + name,
+                                                  reader.getAttributeValue( a ) );
+                        }
+                        if (record == null)
+                            record = element;
+                        else
+                            parent.appendChild( element );
+                        parent = element;
+                    }
+                    break;
+                }
+
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.CDATA:
+                case XMLStreamConstants.SPACE: {
+                    for (final StringBuilder text : texts)
+                        if (text != null)
+                            text.append( reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength() );
+
+                    if (document != null)
+                        parent.appendChild( event == XMLStreamConstants.CDATA? document.createCDATASection( reader.getText() )
+                                                    : document.createTextNode( reader.getText() ) );
+                    break;
+                }
+
+                case XMLStreamConstants.COMMENT:
+                    if (document != null)
+                        parent.appendChild( document.createComment( reader.getText() ) );
+                    break;
+
+                case XMLStreamConstants.END_ELEMENT: {
+                    for (int f = 0; f < fields; ++f)
+                        if (texts[f] != null && textDepths[f] == path.size()) {
+                            values[f] = texts[f].toString();
+                            texts[f] = null;
+                        }
+
+                    if (path.isEmpty())
+                        return record;
+
+                    path.remove( path.size() - 1 );
+                    if (document != null)
+                        parent = parent.getParentNode();
+                    break;
+                }
+            }
+    }
+
+    private String qualifiedName() {
+
+        String prefix = reader.getPrefix();
+        return prefix == null || prefix.isEmpty()? reader.getLocalName(): prefix + ':' + reader.getLocalName();
+    }
+
+    @Override
+    public void close() {
+
+        try {
+            reader.close();
+        }
+        catch (final XMLStreamException e) {
+            logger.wrn( e, "While closing XML reader." );
+        }
+        finally {
+            try {
+                stream.close();
+            }
+            catch (final IOException e) {
+                logger.wrn( e, "While closing XML stream." );
+            }
+        }
+    }
+
+    /**
+     * Convert a string-value to a number the way XPath's {@code number()} function does.
+     */
+    static double toNumber(@Nullable final String value) {
+
+        if (value == null || !XPATH_NUMBER.matcher( value ).matches())
+            return Double.NaN;
+
+        return Double.parseDouble( value.trim() );
+    }
+
+    /**
+     * <h2>{@link StreamPath}<br> <sub>The subset of XPath that can be evaluated while streaming.</sub></h2>
+     *
+     * <p> A stream path is a relative path of child element names, such as {@code name} or {@code address/city}, optionally ending in an
+     * attribute, such as {@code @id} or {@code address/@country}.  The path {@code .} selects the record itself. </p>
+     */
+    static class StreamPath {
+
+        private static final Pattern NAME = Pattern.compile( "[A-Za-z_][\\w.\\-]*" );
+
+        final ImmutableList<String> elements;
+        @Nullable
+        final String                attribute;
+
+        private StreamPath(final ImmutableList<String> elements, @Nullable final String attribute) {
+
+            this.elements = elements;
+            this.attribute = attribute;
+        }
+
+        /**
+         * @return The stream path that selects the same nodes as the given expression, or {@code null} if the expression is not in the
+         *         streamable subset.
+         */
+        @Nullable
+        static StreamPath parse(final String expression) {
+
+            String trimmed = expression.trim();
+            if (".".equals( trimmed ))
+                return new StreamPath( ImmutableList.<String>of(), null );
+            if (trimmed.isEmpty() || trimmed.startsWith( "/" ) || trimmed.endsWith( "/" ))
+                return null;
+
+            List<String> steps = Splitter.on( '/' ).splitToList( trimmed );
+            ImmutableList.Builder<String> elements = ImmutableList.builder();
+            String attribute = null;
+            for (int s = 0; s < steps.size(); ++s) {
+                String step = steps.get( s );
+                if (step.startsWith( "@" ) && s == steps.size() - 1) {
+                    attribute = step.substring( 1 );
+                    if (!NAME.matcher( attribute ).matches())
+                        return null;
+                } else if (NAME.matcher( step ).matches())
+                    elements.add( step );
+                else
+                    return null;
+            }
+
+            return new StreamPath( elements.build(), attribute );
+        }
+
+        /**
+         * @param path The names of the elements from the record down to the current element.
+         *
+         * @return {@code true}: The current element is (the owner of) a node selected by this path.
+         */
+        boolean selects(final List<String> path) {
+
+            return elements.equals( path );
+        }
+    }
+}
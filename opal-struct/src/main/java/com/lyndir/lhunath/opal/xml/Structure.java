@@ -15,16 +15,24 @@
  */
 package com.lyndir.lhunath.opal.xml;
 
-import com.google.common.base.Throwables;
+import com.google.common.base.Objects;
+import com.google.common.cache.*;
 import com.lyndir.lhunath.opal.system.logging.Logger;
 import java.io.IOException;
 import java.lang.reflect.*;
-import java.util.ArrayList;
-import java.util.List;
+import java.net.URL;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 import javax.annotation.Nullable;
+import javax.xml.XMLConstants;
 import javax.xml.parsers.*;
+import javax.xml.stream.XMLStreamException;
 import javax.xml.validation.Schema;
+import javax.xml.validation.SchemaFactory;
 import javax.xml.xpath.XPathExpressionException;
 import org.w3c.dom.*;
 import org.w3c.tidy.Tidy;
@@ -50,78 +58,17 @@ public abstract class Structure {
     @SuppressWarnings("HardcodedLineSeparator")
     private static final Pattern LINE     = Pattern.compile( "[\n\r]$" );
 
-    private static <T> void inject(final Node root, final T structure)
-            throws XPathExpressionException {
+    private static final int            MAXIMUM_FACTORIES = 32;
+    private static final BuilderOptions DEFAULT_OPTIONS   = new BuilderOptions( false, true, false, false, false, false, false, null );
 
-        // Inject the XML data into the XInject fields.
-        for (final Field field : structure.getClass().getDeclaredFields()) {
-            XInject annotation = field.getAnnotation( XInject.class );
-            if (annotation == null)
-                continue;
-
-            try {
-                Class<?> valueType = field.getType();
-                field.setAccessible( true );
-
-                logger.dbg( "Setting (%s) '%s' to '%s' (xpath: %s)", valueType.getSimpleName(), field.getName(),
-                            xmlpath.getString( root, annotation.value() ), annotation.value() );
+    private static final LoadingCache<BuilderOptions, DocumentBuilderFactory> factories = CacheBuilder.newBuilder()
+                                                                                                    .maximumSize( MAXIMUM_FACTORIES )
+                                                                                                    .build( CacheLoader.from(
+                                                                                                            BuilderOptions::newFactory ) );
 
-                Object value;
-                if (Byte.class.isAssignableFrom( valueType ) || Byte.TYPE.isAssignableFrom( valueType ))
-                    value = xmlpath.getNumber( root, annotation.value() ).byteValue();
+    private static final ThreadLocal<DocumentBuilder> threadBuilders = new ThreadLocal<>();
 
-                else if (Double.class.isAssignableFrom( valueType ) || Double.TYPE.isAssignableFrom( valueType ))
-                    // noinspection UnnecessaryUnboxing
-                    value = xmlpath.getNumber( root, annotation.value() ).doubleValue();
-
-                else if (Float.class.isAssignableFrom( valueType ) || Float.TYPE.isAssignableFrom( valueType ))
-                    value = xmlpath.getNumber( root, annotation.value() ).floatValue();
-
-                else if (Integer.class.isAssignableFrom( valueType ) || Integer.TYPE.isAssignableFrom( valueType ))
-                    value = xmlpath.getNumber( root, annotation.value() ).intValue();
-
-                else if (Long.class.isAssignableFrom( valueType ) || Long.TYPE.isAssignableFrom( valueType ))
-                    value = xmlpath.getNumber( root, annotation.value() ).longValue();
-
-                else if (Short.class.isAssignableFrom( valueType ) || Short.TYPE.isAssignableFrom( valueType ))
-                    value = xmlpath.getNumber( root, annotation.value() ).shortValue();
-
-                else if (Boolean.class.isAssignableFrom( valueType ) || Boolean.TYPE.isAssignableFrom( valueType ))
-                    value = xmlpath.getBoolean( root, annotation.value() );
-
-                else
-                    value = xmlpath.getString( root, annotation.value() );
-
-                field.set( structure, value );
-            }
-
-            // In case data to the field goes wrong (shouldn't).
-            catch (final IllegalArgumentException e) {
-                logger.err( e, "Unexpected data type." );
-            }
-            catch (final IllegalAccessException e) {
-                logger.err( e, "Field not accessible." );
-            }
-        }
-
-        // Look for XAfterInject methods.
-        for (final Method method : structure.getClass().getDeclaredMethods())
-            if (method.getAnnotation( XAfterInject.class ) != null)
-                try {
-                    method.setAccessible( true );
-                    method.invoke( structure );
-                }
-
-                catch (final IllegalArgumentException e) {
-                    logger.err( e, "XAfterInject method shouldn't take any arguments." );
-                }
-                catch (final IllegalAccessException e) {
-                    logger.err( e, "XAfterInject method must be accessible." );
-                }
-                catch (final InvocationTargetException e) {
-                    logger.err( e, "XAfterInject method throw an exception." );
-                }
-    }
+    private static final ConcurrentMap<String, Schema> schemas = new ConcurrentHashMap<>();
 
     /**
      * Load XML data into an object that has the {@link FromXML} annotation on it.
@@ -143,25 +90,17 @@ public abstract class Structure {
             throw new IllegalArgumentException( "Object passed must have the FromXML annotation." );
 
         // Create an empty object of the specified type.
-        T structure;
-        try {
-            structure = type.getConstructor().newInstance();
-        }
-        catch (final InstantiationException | NoSuchMethodException | IllegalAccessException e) {
-            throw logger.bug( e );
-        }
-        catch (final InvocationTargetException e) {
-            throw Throwables.propagate( e );
-        }
+        InjectionPlan<T> plan = InjectionPlan.of( type );
+        T structure = plan.newInstance();
 
         // Set up our XML parser.
-        DocumentBuilder builder = getXMLBuilder();
+        DocumentBuilder builder = getThreadXMLBuilder();
         String resourceName = type.getAnnotation( FromXML.class ).value();
 
         // Parse in our XML data.
         Element root = builder.parse( ClassLoader.getSystemResourceAsStream( resourceName ) ).getDocumentElement();
 
-        inject( root, structure );
+        plan.inject( root, structure );
 
         return structure;
     }
@@ -186,53 +125,92 @@ public abstract class Structure {
             throw new IllegalArgumentException( "Object passed must have the FromXML annotation." );
 
         // Set up our XML parser.
-        DocumentBuilder builder = getXMLBuilder();
+        DocumentBuilder builder = getThreadXMLBuilder();
         String resourceName = type.getAnnotation( FromXML.class ).value();
 
         // Parse in our XML data.
         Element root = builder.parse( ClassLoader.getSystemResourceAsStream( resourceName ) ).getDocumentElement();
 
-        // Create an empty object of the specified type.
+        // Create an object of the specified type for each child.
+        InjectionPlan<T> plan = InjectionPlan.of( type );
         List<Node> children = xmlpath.getNodes( root, "/*/*" );
         List<T> structures = new ArrayList<>( children.size() );
         for (final Node child : children) {
-            T structure;
-            try {
-                structure = type.getConstructor().newInstance();
-            }
-            catch (final InstantiationException | NoSuchMethodException | IllegalAccessException e) {
-                throw logger.bug( e );
-            }
-            catch (final InvocationTargetException e) {
-                throw Throwables.propagate( e );
-            }
+            T structure = plan.newInstance();
 
             // If an XInjectTag is defined; set it to the name of the child tag.
-            for (final Field field : structure.getClass().getDeclaredFields())
-                if (field.isAnnotationPresent( XInjectTag.class ))
-                    try {
-                        logger.dbg( "Setting (%s) '%s' to tagname '%s'", field.getType().getSimpleName(), field.getName(),
-                                    child.getNodeName() );
-
-                        field.setAccessible( true );
-                        field.set( structure, child.getNodeName() );
-                    }
-
-                    catch (final IllegalArgumentException e) {
-                        logger.err( e, "XInjectTag field of the wrong type." );
-                    }
-                    catch (final IllegalAccessException e) {
-                        logger.err( e, "XInjectTag field not accessible." );
-                    }
+            plan.injectTag( structure, child.getNodeName() );
 
             // Inject the child tag's data into our new structure object.
-            inject( child, structure );
+            plan.inject( child, structure );
             structures.add( structure );
         }
 
         return structures;
     }
 
+    /**
+     * Load XML data into objects that have the {@link FromXML} annotation on it, one child of the document element at a time.
+     *
+     * <p> Unlike {@link #loadAll(Class)}, the resource is never held in memory as a whole.  {@link XInject} expressions that are simple
+     * relative paths of child elements, optionally ending in an attribute (eg. {@code name}, {@code address/city}, {@code @id}, {@code
+     * .}), are resolved while parsing.  If the type has any other expressions, each child is built into a DOM of its own on which they
+     * are evaluated with the child as context node.  Unlike with {@link #loadAll(Class)}, those expressions don't see the rest of the
+     * document: absolute expressions ({@code /...}, {@code //...}) and expressions that step out of the child ({@code ..}, {@code
+     * ancestor::}, {@code preceding::}, {@code following::}, ...) give different results. </p>
+     *
+     * <p> Unlike {@link #loadAll(Class)}, DTDs are not processed, so that documents can't pull in external entities: a resource that
+     * uses entities declared in its DTD fails to parse.  Use {@link #loadAll(Class)} for such resources. </p>
+     *
+     * <p> The resource is closed when the iterator runs out of objects.  Parse errors are thrown as unchecked exceptions while
+     * iterating. </p>
+     *
+     * @param <T>  The type of the class instance to inject XML data into.
+     * @param type The annotated class to create a objects for.
+     *
+     * @return An iterator over objects of the given type with XML data injected.
+     *
+     * @throws XMLStreamException If the resource could not be opened for parsing.
+     */
+    public static <T> Iterator<T> iterateAll(final Class<T> type)
+            throws XMLStreamException {
+
+        return newStreamingLoader( type );
+    }
+
+    /**
+     * Load XML data into a stream of objects that have the {@link FromXML} annotation on it.  Close the stream if it is not consumed
+     * entirely.
+     *
+     * @param <T>  The type of the class instance to inject XML data into.
+     * @param type The annotated class to create a objects for.
+     *
+     * @return A sequential stream of objects of the given type with XML data injected.
+     *
+     * @throws XMLStreamException If the resource could not be opened for parsing.
+     * @see #iterateAll(Class)
+     */
+    public static <T> Stream<T> streamAll(final Class<T> type)
+            throws XMLStreamException {
+
+        StreamingLoader<T> loader = newStreamingLoader( type );
+
+        return StreamSupport.stream( Spliterators.spliteratorUnknownSize( loader, Spliterator.ORDERED | Spliterator.NONNULL ), false )
+                            .onClose( loader::close );
+    }
+
+    private static <T> StreamingLoader<T> newStreamingLoader(final Class<T> type)
+            throws XMLStreamException {
+
+        // Test whether the given type actually has a FromXML annotation on it.
+        if (type.getAnnotation( FromXML.class ) == null)
+            throw new IllegalArgumentException( "Object passed must have the FromXML annotation." );
+
+        String resourceName = type.getAnnotation( FromXML.class ).value();
+
+        return new StreamingLoader<>( InjectionPlan.of( type ), ClassLoader.getSystemResourceAsStream( resourceName ) );
+    }
+
     /**
      * Convert an object that has the {@link FromXML} annotation to an XML structured string.
      *
@@ -299,7 +277,7 @@ public abstract class Structure {
      */
     public static DocumentBuilder getXMLBuilder() {
 
-        return getXMLBuilder( false, true, false, false, false, false, false, null );
+        return newXMLBuilder( DEFAULT_OPTIONS );
     }
 
     /**
@@ -332,25 +310,65 @@ public abstract class Structure {
                                                 final boolean whitespace, final boolean awareness, final boolean xIncludes,
                                                 final boolean validating, @Nullable final Schema schema) {
 
-        try {
-            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-            factory.setCoalescing( coalescing );
-            factory.setExpandEntityReferences( expandEntityRef );
-            factory.setIgnoringComments( ignoreComments );
-            factory.setIgnoringElementContentWhitespace( whitespace );
-            factory.setNamespaceAware( awareness );
-            factory.setXIncludeAware( xIncludes );
-            factory.setValidating( validating );
-            factory.setSchema( schema );
+        return newXMLBuilder( new BuilderOptions( coalescing, expandEntityRef, ignoreComments, whitespace, awareness, xIncludes,
+                                                  validating, schema ) );
+    }
 
-            return factory.newDocumentBuilder();
-        }
+    /**
+     * Like {@link #getXMLBuilder()}, but the builder is confined to the calling thread: each thread reuses one builder, which is {@link
+     * DocumentBuilder#reset() reset} before it is returned.  Use it before calling this method again, don't configure it and don't pass
+     * it on to other threads.
+     *
+     * @return the calling thread's builder that parses XML data according to the defaults of {@link #getXMLBuilder()}.
+     */
+    static DocumentBuilder getThreadXMLBuilder() {
 
+        DocumentBuilder builder = threadBuilders.get();
+        if (builder == null)
+            threadBuilders.set( builder = newXMLBuilder( DEFAULT_OPTIONS ) );
+        else
+            builder.reset();
+
+        return builder;
+    }
+
+    private static DocumentBuilder newXMLBuilder(final BuilderOptions options) {
+
+        DocumentBuilderFactory factory = factories.getUnchecked( options );
+        try {
+            // Factories are not thread-safe.
+            synchronized (factory) {
+                return factory.newDocumentBuilder();
+            }
+        }
         catch (final ParserConfigurationException e) {
             throw logger.bug( e, "Document Builder has not been configured correctly!" );
         }
     }
 
+    /**
+     * @param schemaLocation The location of a W3C XML Schema document.
+     *
+     * @return The schema at the given location.  It is compiled only the first time it is requested.
+     *
+     * @throws SAXException If the schema could not be read or compiled.
+     */
+    public static Schema getSchema(final URL schemaLocation)
+            throws SAXException {
+
+        String key = schemaLocation.toExternalForm();
+        Schema schema = schemas.get( key );
+        if (schema == null) {
+            SchemaFactory schemaFactory = SchemaFactory.newInstance( XMLConstants.W3C_XML_SCHEMA_NS_URI );
+            Schema newSchema = schemaFactory.newSchema( schemaLocation );
+            schema = schemas.putIfAbsent( key, newSchema );
+            if (schema == null)
+                schema = newSchema;
+        }
+
+        return schema;
+    }
+
     /**
      * This method trims text node data.
      *
@@ -429,4 +447,69 @@ public abstract class Structure {
 
         return String.format( "%" + indent * TAB_SIZE + 's', "" );
     }
+
+    /**
+     * The configuration of a {@link DocumentBuilderFactory}.  Schemas are compared by identity.
+     */
+    private static class BuilderOptions {
+
+        private final boolean coalescing;
+        private final boolean expandEntityRef;
+        private final boolean ignoreComments;
+        private final boolean whitespace;
+        private final boolean awareness;
+        private final boolean xIncludes;
+        private final boolean validating;
+        @Nullable
+        private final Schema  schema;
+
+        BuilderOptions(final boolean coalescing, final boolean expandEntityRef, final boolean ignoreComments, final boolean whitespace,
+                       final boolean awareness, final boolean xIncludes, final boolean validating, @Nullable final Schema schema) {
+
+            this.coalescing = coalescing;
+            this.expandEntityRef = expandEntityRef;
+            this.ignoreComments = ignoreComments;
+            this.whitespace = whitespace;
+            this.awareness = awareness;
+            this.xIncludes = xIncludes;
+            this.validating = validating;
+            this.schema = schema;
+        }
+
+        DocumentBuilderFactory newFactory() {
+
+            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+            factory.setCoalescing( coalescing );
+            factory.setExpandEntityReferences( expandEntityRef );
+            factory.setIgnoringComments( ignoreComments );
+            factory.setIgnoringElementContentWhitespace( whitespace );
+            factory.setNamespaceAware( awareness );
+            factory.setXIncludeAware( xIncludes );
+            factory.setValidating( validating );
+            factory.setSchema( schema );
+
+            return factory;
+        }
+
+        @Override
+        public int hashCode() {
+
+            return Objects.hashCode( coalescing, expandEntityRef, ignoreComments, whitespace, awareness, xIncludes, validating,
+                                     System.identityHashCode( schema ) );
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+
+            if (obj == this)
+                return true;
+            if (!(obj instanceof BuilderOptions))
+                return false;
+
+            BuilderOptions other = (BuilderOptions) obj;
+            return coalescing == other.coalescing && expandEntityRef == other.expandEntityRef && ignoreComments == other.ignoreComments
+                   && whitespace == other.whitespace && awareness == other.awareness && xIncludes == other.xIncludes
+                   && validating == other.validating && schema == other.schema;
+        }
+    }
 }
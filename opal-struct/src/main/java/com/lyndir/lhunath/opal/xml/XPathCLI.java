@@ -131,7 +131,7 @@ public class XPathCLI {
         if (tidy)
             document = Structure.getTidyBuilder().parseDOM( in, null );
         else
-            document = Structure.getXMLBuilder().parse( in );
+            document = Structure.getThreadXMLBuilder().parse( in );
 
         /* Execute the XPath expression. */
         String result;
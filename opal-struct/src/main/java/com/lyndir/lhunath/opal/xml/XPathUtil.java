@@ -1,5 +1,7 @@
 package com.lyndir.lhunath.opal.xml;
 
+import static com.google.common.base.Preconditions.*;
+
 import java.util.*;
 import javax.annotation.Nullable;
 import javax.xml.XMLConstants;
@@ -14,11 +16,27 @@ import org.xml.sax.InputSource;
 /**
  * Utilities for evaluating XPath on XHTML.
  *
+ * <p> Instances are safe for use by multiple threads.  Expressions are compiled once per thread and remembered, up to a bounded amount
+ * per thread. </p>
+ *
  * @author mbillemo
  */
 public class XPathUtil {
 
-    private final XPath xpath;
+    /**
+     * The default amount of compiled expressions each thread remembers.
+     */
+    public static final int DEFAULT_CACHED_EXPRESSIONS = 256;
+
+    private final boolean                 isXHTML;
+    private final int                     cachedExpressions;
+    private final ThreadLocal<ThreadXPath> threadXPaths = new ThreadLocal<ThreadXPath>() {
+        @Override
+        protected ThreadXPath initialValue() {
+
+            return new ThreadXPath();
+        }
+    };
 
     /**
      * Create a new XPathUtil instance.
@@ -27,10 +45,40 @@ public class XPathUtil {
      */
     public XPathUtil(final boolean isXHTML) {
 
-        xpath = XPathFactory.newInstance().newXPath();
+        this( isXHTML, DEFAULT_CACHED_EXPRESSIONS );
+    }
+
+    /**
+     * Create a new XPathUtil instance.  It is safe for use by multiple threads: each thread evaluates expressions with an {@link XPath}
+     * of its own and remembers the expressions it compiled.
+     *
+     * @param isXHTML           {@code true}: Indicate that the document uses the XHTML namespace context and set it as the default
+     *                          context.
+     * @param cachedExpressions The amount of compiled expressions each thread remembers.  The least recently used expressions are
+     *                          forgotten first.  Must be positive.
+     */
+    public XPathUtil(final boolean isXHTML, final int cachedExpressions) {
+
+        checkArgument( cachedExpressions > 0, "Amount of cached expressions must be positive: %s", cachedExpressions );
+
+        this.isXHTML = isXHTML;
+        this.cachedExpressions = cachedExpressions;
+    }
+
+    /**
+     * Compile an {@link XPath} expression, or obtain it from the current thread's compiled expressions.  Variables in the expression
+     * are resolved from the variables given to the evaluation methods that take them.
+     *
+     * @param expression The XPath expression.
+     *
+     * @return The compiled expression.  It may only be used by the current thread.
+     *
+     * @throws XPathExpressionException The given expression was not valid.
+     */
+    public XPathExpression compile(final String expression)
+            throws XPathExpressionException {
 
-        if (isXHTML)
-            xpath.setNamespaceContext( new XHTMLContext() );
+        return threadXPaths.get().compile( expression );
     }
 
     /**
@@ -40,7 +88,7 @@ public class XPathUtil {
      * @param expressionFormat The XPath expression format. See {@link String#format(String, Object...)}.
      * @param arguments        The data used to satisfy the format parameters in the expressionFormat.
      *
-     * @return The text from the selected nodes
+     * @return The result of the expression as a boolean, as by XPath's {@code boolean()} function: eg. whether it selects any nodes.
      *
      * @throws XPathExpressionException The given expression was not valid in the given context.
      */
@@ -57,7 +105,7 @@ public class XPathUtil {
      * @param expressionFormat The XPath expression format. See {@link String#format(String, Object...)}.
      * @param arguments        The data used to satisfy the format parameters in the expressionFormat.
      *
-     * @return The first of the selected nodes.
+     * @return The first of the selected nodes in document order, or {@code null} if the expression selects no nodes.
      *
      * @throws XPathExpressionException The given expression was not valid in the given context.
      */
@@ -81,13 +129,7 @@ public class XPathUtil {
     public List<Node> getNodes(final Object context, final String expressionFormat, final Object... arguments)
             throws XPathExpressionException {
 
-        List<Node> nodeList = new ArrayList<>();
-        NodeList annoyingNodeList = (NodeList) getObject( context, expressionFormat, XPathConstants.NODESET, arguments );
-
-        for (int node = 0; node < annoyingNodeList.getLength(); ++node)
-            nodeList.add( annoyingNodeList.item( node ) );
-
-        return nodeList;
+        return toList( (NodeList) getObject( context, expressionFormat, XPathConstants.NODESET, arguments ) );
     }
 
     /**
@@ -97,7 +139,7 @@ public class XPathUtil {
      * @param expressionFormat The XPath expression format. See {@link String#format(String, Object...)}.
      * @param arguments        The data used to satisfy the format parameters in the expressionFormat.
      *
-     * @return The text from the selected nodes.
+     * @return The result of the expression as a number, as by XPath's {@code number()} function: {@code NaN} if it isn't numeric.
      *
      * @throws XPathExpressionException The given expression was not valid in the given context.
      */
@@ -114,7 +156,8 @@ public class XPathUtil {
      * @param expressionFormat The XPath expression format. See {@link String#format(String, Object...)}.
      * @param arguments        The data used to satisfy the format parameters in the expressionFormat.
      *
-     * @return The text from the selected nodes.
+     * @return The result of the expression as a string, as by XPath's {@code string()} function: eg. the text of the first of the
+     *         selected nodes.
      *
      * @throws XPathExpressionException The given expression was not valid in the given context.
      */
@@ -124,6 +167,92 @@ public class XPathUtil {
         return (String) getObject( context, expressionFormat, XPathConstants.STRING, arguments );
     }
 
+    /**
+     * Evaluate an {@link XPath} expression that refers to variables.
+     *
+     * @param context    The context to evaluate the XPath expression under.
+     * @param variables  The values of the variables referenced by the expression, by name.
+     * @param expression The XPath expression.
+     *
+     * @return The result of the expression as a boolean, as by XPath's {@code boolean()} function: eg. whether it selects any nodes.
+     *
+     * @throws XPathExpressionException The given expression was not valid in the given context.
+     */
+    public Boolean getBoolean(final Object context, final Map<String, ?> variables, final String expression)
+            throws XPathExpressionException {
+
+        return (Boolean) evaluate( context, variables, expression, XPathConstants.BOOLEAN );
+    }
+
+    /**
+     * Evaluate an {@link XPath} expression that refers to variables.
+     *
+     * @param context    The context to evaluate the XPath expression under.
+     * @param variables  The values of the variables referenced by the expression, by name.
+     * @param expression The XPath expression.
+     *
+     * @return The first of the selected nodes in document order, or {@code null} if the expression selects no nodes.
+     *
+     * @throws XPathExpressionException The given expression was not valid in the given context.
+     */
+    public Node getNode(final Object context, final Map<String, ?> variables, final String expression)
+            throws XPathExpressionException {
+
+        return (Node) evaluate( context, variables, expression, XPathConstants.NODE );
+    }
+
+    /**
+     * Evaluate an {@link XPath} expression that refers to variables.
+     *
+     * @param context    The context to evaluate the XPath expression under.
+     * @param variables  The values of the variables referenced by the expression, by name.
+     * @param expression The XPath expression.
+     *
+     * @return The result of the expression as a number, as by XPath's {@code number()} function: {@code NaN} if it isn't numeric.
+     *
+     * @throws XPathExpressionException The given expression was not valid in the given context.
+     */
+    public Number getNumber(final Object context, final Map<String, ?> variables, final String expression)
+            throws XPathExpressionException {
+
+        return (Number) evaluate( context, variables, expression, XPathConstants.NUMBER );
+    }
+
+    /**
+     * Evaluate an {@link XPath} expression that refers to variables.
+     *
+     * @param context    The context to evaluate the XPath expression under.
+     * @param variables  The values of the variables referenced by the expression, by name.
+     * @param expression The XPath expression.
+     *
+     * @return The result of the expression as a string, as by XPath's {@code string()} function: eg. the text of the first of the
+     *         selected nodes.
+     *
+     * @throws XPathExpressionException The given expression was not valid in the given context.
+     */
+    public String getString(final Object context, final Map<String, ?> variables, final String expression)
+            throws XPathExpressionException {
+
+        return (String) evaluate( context, variables, expression, XPathConstants.STRING );
+    }
+
+    /**
+     * Evaluate an {@link XPath} expression that refers to variables.
+     *
+     * @param context    The context to evaluate the XPath expression under.
+     * @param variables  The values of the variables referenced by the expression, by name.
+     * @param expression The XPath expression.
+     *
+     * @return A list of the selected nodes.
+     *
+     * @throws XPathExpressionException The given expression was not valid in the given context.
+     */
+    public List<Node> getNodes(final Object context, final Map<String, ?> variables, final String expression)
+            throws XPathExpressionException {
+
+        return toList( (NodeList) evaluate( context, variables, expression, XPathConstants.NODESET ) );
+    }
+
     /**
      * Evaluate an {@link XPath} expression.
      *
@@ -139,12 +268,88 @@ public class XPathUtil {
     private Object getObject(final Object context, final String expressionFormat, final QName result, final Object... arguments)
             throws XPathExpressionException {
 
-        String expression = String.format( expressionFormat, arguments );
+        return evaluate( context, Collections.<String, Object>emptyMap(), String.format( expressionFormat, arguments ), result );
+    }
+
+    /**
+     * Evaluate an {@link XPath} expression through the current thread's compiled expressions.
+     *
+     * @param context    The context to evaluate the XPath expression under.
+     * @param variables  The values of the variables referenced by the expression, by name.
+     * @param expression The XPath expression.
+     * @param result     The type of result to return the selected nodes as.
+     *
+     * @return The selected nodes as the given result type.
+     *
+     * @throws XPathExpressionException The given expression was not valid in the given context.
+     */
+    private Object evaluate(final Object context, final Map<String, ?> variables, final String expression, final QName result)
+            throws XPathExpressionException {
+
+        ThreadXPath threadXPath = threadXPaths.get();
+        XPathExpression compiledExpression = threadXPath.compile( expression );
+
+        // Evaluations may nest, eg. through extension functions.
+        Map<String, ?> previousVariables = threadXPath.variables;
+        threadXPath.variables = variables;
+        try {
+            if (context instanceof InputSource)
+                return compiledExpression.evaluate( (InputSource) context, result );
+
+            return compiledExpression.evaluate( context, result );
+        }
+        finally {
+            threadXPath.variables = previousVariables;
+        }
+    }
 
-        if (context instanceof InputSource)
-            return xpath.evaluate( expression, (InputSource) context, result );
+    private static List<Node> toList(final NodeList annoyingNodeList) {
 
-        return xpath.evaluate( expression, context, result );
+        List<Node> nodeList = new ArrayList<>( annoyingNodeList.getLength() );
+        for (int node = 0; node < annoyingNodeList.getLength(); ++node)
+            nodeList.add( annoyingNodeList.item( node ) );
+
+        return nodeList;
+    }
+
+    /**
+     * <h2>{@link ThreadXPath}<br> <sub>A thread's XPath and the expressions it compiled.</sub></h2>
+     */
+    private class ThreadXPath implements XPathVariableResolver {
+
+        private final XPath                        xpath       = XPathFactory.newInstance().newXPath();
+        private final Map<String, XPathExpression> expressions = new LinkedHashMap<String, XPathExpression>( 16, 0.75f, true ) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, XPathExpression> eldest) {
+
+                return size() > cachedExpressions;
+            }
+        };
+        private Map<String, ?> variables = Collections.emptyMap();
+
+        ThreadXPath() {
+
+            xpath.setXPathVariableResolver( this );
+            if (isXHTML)
+                xpath.setNamespaceContext( new XHTMLContext() );
+        }
+
+        XPathExpression compile(final String expression)
+                throws XPathExpressionException {
+
+            XPathExpression compiledExpression = expressions.get( expression );
+            if (compiledExpression == null)
+                expressions.put( expression, compiledExpression = xpath.compile( expression ) );
+
+            return compiledExpression;
+        }
+
+        @Nullable
+        @Override
+        public Object resolveVariable(final QName variableName) {
+
+            return variables.get( variableName.getLocalPart() );
+        }
     }
 
     /**
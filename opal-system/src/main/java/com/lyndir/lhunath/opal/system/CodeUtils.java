@@ -2,12 +2,14 @@ package com.lyndir.lhunath.opal.system;
 
 import com.google.common.base.Preconditions;
 import com.lyndir.lhunath.opal.system.logging.Logger;
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.net.*;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
-import java.util.Formatter;
+import java.util.Arrays;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
@@ -21,6 +23,18 @@ public abstract class CodeUtils {
 
     static final Logger logger = Logger.get( CodeUtils.class );
 
+    private static final char   HEX_SEPARATOR = ':';
+    private static final char[] HEX_DIGITS    = "0123456789ABCDEF".toCharArray();
+    private static final byte[] HEX_VALUES    = new byte['f' + 1];
+
+    static {
+        Arrays.fill( HEX_VALUES, (byte) -1 );
+        for (int value = 0; value < 16; ++value) {
+            HEX_VALUES[Character.forDigit( value, 16 )] = (byte) value;
+            HEX_VALUES[Character.toUpperCase( Character.forDigit( value, 16 ) )] = (byte) value;
+        }
+    }
+
     @Nullable
     public static byte[] digest(final MessageDigests digest, @Nullable final String input, final Charset charset) {
 
@@ -51,36 +65,148 @@ public abstract class CodeUtils {
         return encodeHex( data, false );
     }
 
+    /**
+     * @param pretty {@code true} to separate the bytes with a colon, eg. {@code 0A:1B:2C}.
+     *
+     * @return The bytes as upper-case hexadecimal digits.
+     */
     @Nullable
     public static String encodeHex(@Nullable final byte[] data, final boolean pretty) {
 
         if (data == null)
             return null;
 
-        StringBuilder bytes = new StringBuilder( (data.length + (pretty? 1: 0)) * 2 );
-        try (Formatter formatter = new Formatter( bytes )) {
-            String format = String.format( "%%02X%s", pretty? ":": "" );
+        return appendHex( new StringBuilder( hexLength( data.length, pretty ) ), data, 0, data.length, pretty ).toString();
+    }
+
+    /**
+     * @param data The bytes from the buffer's position to its limit are encoded.  The buffer's position is not changed.
+     *
+     * @return The bytes as upper-case hexadecimal digits.
+     */
+    public static String encodeHex(final ByteBuffer data, final boolean pretty) {
+
+        StringBuilder hex = new StringBuilder( hexLength( data.remaining(), pretty ) );
+        for (int b = data.position(); b < data.limit(); ++b) {
+            if (pretty && b > data.position())
+                hex.append( HEX_SEPARATOR );
+            hex.append( HEX_DIGITS[data.get( b ) >> 4 & 0xF] ).append( HEX_DIGITS[data.get( b ) & 0xF] );
+        }
+
+        return hex.toString();
+    }
+
+    /**
+     * Append bytes as upper-case hexadecimal digits.
+     *
+     * @param out    The builder to append to.
+     * @param data   The bytes to encode.
+     * @param offset The index of the first byte to encode.
+     * @param length The amount of bytes to encode.
+     * @param pretty {@code true} to separate the bytes with a colon.
+     *
+     * @return The given builder.
+     */
+    public static StringBuilder appendHex(final StringBuilder out, final byte[] data, final int offset, final int length,
+                                          final boolean pretty) {
+
+        Preconditions.checkPositionIndexes( offset, offset + length, data.length );
+
+        int start = out.length();
+        out.setLength( start + hexLength( length, pretty ) );
+        for (int b = offset, c = start; b < offset + length; ++b) {
+            if (pretty && b > offset)
+                out.setCharAt( c++, HEX_SEPARATOR );
+            out.setCharAt( c++, HEX_DIGITS[data[b] >> 4 & 0xF] );
+            out.setCharAt( c++, HEX_DIGITS[data[b] & 0xF] );
+        }
+
+        return out;
+    }
+
+    /**
+     * Append bytes as upper-case hexadecimal digits.
+     *
+     * @param out    The destination to append to.
+     * @param data   The bytes from the buffer's position to its limit are encoded.  The buffer's position is not changed.
+     * @param pretty {@code true} to separate the bytes with a colon.
+     *
+     * @return The given destination.
+     *
+     * @throws IOException The destination could not be appended to.
+     */
+    public static <A extends Appendable> A appendHex(final A out, final ByteBuffer data, final boolean pretty)
+            throws IOException {
 
-                for (final byte b : data)
-                    formatter.format( format, b );
+        for (int b = data.position(); b < data.limit(); ++b) {
+            if (pretty && b > data.position())
+                out.append( HEX_SEPARATOR );
+            out.append( HEX_DIGITS[data.get( b ) >> 4 & 0xF] ).append( HEX_DIGITS[data.get( b ) & 0xF] );
         }
-        if (pretty && (bytes.length() > 0))
-            bytes.deleteCharAt( bytes.length() - 1 );
 
-        return bytes.toString();
+        return out;
     }
 
     @Nullable
     public static byte[] decodeHex(@Nullable final String hexString) {
 
-        if (hexString == null)
-            return null;
+        return hexString == null? null: decodeHex( (CharSequence) hexString );
+    }
+
+    /**
+     * @param hex Hexadecimal digits of either case, optionally separated per byte by colons.
+     *
+     * @return The bytes the digits encode.
+     *
+     * @throws NumberFormatException The string has characters that aren't hexadecimal digits or an odd amount of digits.
+     */
+    public static byte[] decodeHex(final CharSequence hex) {
+
+        int digits = hex.length();
+        for (int c = 0; c < hex.length(); ++c)
+            if (hex.charAt( c ) == HEX_SEPARATOR)
+                --digits;
+
+        ByteBuffer bytes = ByteBuffer.allocate( digits / 2 );
+        decodeHex( hex, bytes );
+
+        return bytes.array();
+    }
+
+    /**
+     * Decode hexadecimal digits into the buffer, from its position on.  The buffer's position is advanced past the decoded bytes.
+     *
+     * @param hex Hexadecimal digits of either case, optionally separated per byte by colons.
+     * @param out The buffer to decode into.
+     *
+     * @throws NumberFormatException The string has characters that aren't hexadecimal digits or an odd amount of digits.
+     * @throws java.nio.BufferOverflowException The buffer doesn't have room for the bytes.
+     */
+    public static void decodeHex(final CharSequence hex, final ByteBuffer out) {
+
+        for (int c = 0; c < hex.length(); ) {
+            char high = hex.charAt( c++ );
+            if (high == HEX_SEPARATOR)
+                continue;
+            if (c == hex.length())
+                throw new NumberFormatException( "Odd amount of hexadecimal digits in: " + hex );
+
+            out.put( (byte) (hexValue( hex, high ) << 4 | hexValue( hex, hex.charAt( c++ ) )) );
+        }
+    }
+
+    private static int hexValue(final CharSequence hex, final char digit) {
+
+        int value = digit < HEX_VALUES.length? HEX_VALUES[digit]: -1;
+        if (value < 0)
+            throw new NumberFormatException( "Not a hexadecimal digit: '" + digit + "', in: " + hex );
+
+        return value;
+    }
 
-        byte[] deviceToken = new byte[hexString.length() / 2];
-        for (int i = 0; i < hexString.length(); i += 2)
-            deviceToken[i / 2] = Integer.valueOf( hexString.substring( i, i + 2 ), 16 ).byteValue();
+    private static int hexLength(final int bytes, final boolean pretty) {
 
-        return deviceToken;
+        return bytes == 0? 0: bytes * 2 + (pretty? bytes - 1: 0);
     }
 
     /**
@@ -1,12 +1,16 @@
 package com.lyndir.lhunath.opal.system;
 
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.io.*;
 import com.lyndir.lhunath.opal.system.logging.Logger;
-import com.lyndir.lhunath.opal.system.util.IOUtils;
-import java.io.IOException;
-import java.io.InputStream;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.*;
 
 
 /**
@@ -24,13 +28,30 @@ public enum MessageDigests {
 
     static final Logger logger = Logger.get( MessageDigests.class );
 
-    private final String jcaName;
+    private static final int BUFFER_SIZE = 8192;
+
+    /**
+     * Files beyond this size are digested through memory-mapped regions of at most this size.
+     */
+    private static final long MAPPED_REGION_SIZE = 64 * 1024 * 1024;
+
+    private final String               jcaName;
+    private final ThreadLocal<Scratch> threadScratch = new ThreadLocal<Scratch>() {
+        @Override
+        protected Scratch initialValue() {
+
+            return new Scratch( MessageDigests.this.get() );
+        }
+    };
 
     MessageDigests(final String jcaName) {
 
         this.jcaName = jcaName;
     }
 
+    /**
+     * @return A new digest for this algorithm, owned by the caller.
+     */
     public MessageDigest get() {
 
         try {
@@ -48,26 +69,202 @@ public enum MessageDigests {
 
     public byte[] of(final byte[] bytes) {
 
-        return of( IOUtils.supply( bytes ) );
+        Scratch scratch = acquire();
+        try {
+            return scratch.digest.digest( bytes );
+        }
+        finally {
+            scratch.release();
+        }
     }
 
     public byte[] of(final ByteSource supplier) {
 
-        try {
-            return get().digest( supplier.read() );
+        try (InputStream stream = supplier.openStream()) {
+            return of( stream );
         }
         catch (final IOException e) {
             throw logger.bug( e );
         }
     }
 
+    /**
+     * Digest the data in the stream, reading it through a fixed-size buffer.  The stream is read until exhausted but not closed.
+     */
     public byte[] of(final InputStream stream) {
 
+        Scratch scratch = acquire();
         try {
-            return get().digest( ByteStreams.toByteArray( stream ) );
+            for (int read; (read = stream.read( scratch.buffer )) != -1; )
+                scratch.digest.update( scratch.buffer, 0, read );
+
+            return scratch.digest.digest();
         }
         catch (final IOException e) {
             throw logger.bug( e );
         }
+        finally {
+            scratch.release();
+        }
+    }
+
+    /**
+     * Digest the remaining data in the buffer.
+     */
+    public byte[] of(final ByteBuffer buffer) {
+
+        Scratch scratch = acquire();
+        try {
+            scratch.digest.update( buffer );
+
+            return scratch.digest.digest();
+        }
+        finally {
+            scratch.release();
+        }
+    }
+
+    public byte[] of(final File file)
+            throws IOException {
+
+        try (FileInputStream fileStream = new FileInputStream( file )) {
+            return of( fileStream.getChannel() );
+        }
+    }
+
+    /**
+     * Digest the data in the channel from its current position up to its end.  Like reading it, this leaves the channel positioned at
+     * its end.
+     *
+     * <p> Large files are memory-mapped region by region, which lets the digest read them without copying them onto the heap. </p>
+     */
+    public byte[] of(final FileChannel channel)
+            throws IOException {
+
+        Scratch scratch = acquire();
+        try {
+            MessageDigest digest = scratch.digest;
+            long position = channel.position(), size = channel.size();
+            if (size - position < MAPPED_REGION_SIZE) {
+                ByteBuffer buffer = ByteBuffer.wrap( scratch.buffer );
+                while (channel.read( buffer ) != -1) {
+                    buffer.flip();
+                    digest.update( buffer );
+                    buffer.clear();
+                }
+            } else {
+                for (; position < size; position += MAPPED_REGION_SIZE)
+                    digest.update(
+                            channel.map( FileChannel.MapMode.READ_ONLY, position, Math.min( MAPPED_REGION_SIZE, size - position ) ) );
+                // Mapping doesn't move the channel; leave it where reading it would have.
+                channel.position( size );
+            }
+
+            return digest.digest();
+        }
+        finally {
+            scratch.release();
+        }
+    }
+
+    /**
+     * Digest many files in parallel on the given pool.  Reading files blocks, so the pool should be one meant for IO rather than a
+     * fork-join pool.
+     *
+     * @return The digest of each file, in the order of the given files.
+     */
+    public ImmutableMap<File, byte[]> ofFiles(final Collection<File> files, final ExecutorService pool)
+            throws IOException {
+
+        Map<File, Future<byte[]>> digests = new LinkedHashMap<>( files.size() );
+        for (final File file : files)
+            digests.put( file, pool.submit( () -> of( file ) ) );
+
+        return collect( digests );
+    }
+
+    /**
+     * Digest many blobs in parallel on the given pool.  Reading sources may block, so the pool should be one meant for IO rather than a
+     * fork-join pool.
+     *
+     * @return The digest of each source, in the order of the given sources.
+     */
+    public <S extends ByteSource> ImmutableMap<S, byte[]> ofSources(final Collection<S> sources, final ExecutorService pool)
+            throws IOException {
+
+        Map<S, Future<byte[]>> digests = new LinkedHashMap<>( sources.size() );
+        for (final S source : sources)
+            digests.put( source, pool.submit( () -> {
+                try (InputStream stream = source.openStream()) {
+                    return of( stream );
+                }
+            } ) );
+
+        return collect( digests );
+    }
+
+    /**
+     * @return This thread's digest and buffer for this algorithm, reset and ready for use, or new ones if this thread's are already in
+     * use further up its stack (eg. by a stream that digests its own data).  {@link Scratch#release() Release} it when done.
+     */
+    private Scratch acquire() {
+
+        Scratch scratch = threadScratch.get();
+        if (scratch.inUse)
+            scratch = new Scratch( get() );
+
+        scratch.inUse = true;
+        scratch.digest.reset();
+        return scratch;
+    }
+
+    private static <K> ImmutableMap<K, byte[]> collect(final Map<K, Future<byte[]>> digests)
+            throws IOException {
+
+        ImmutableMap.Builder<K, byte[]> results = ImmutableMap.builder();
+        try {
+            for (final Map.Entry<K, Future<byte[]>> digest : digests.entrySet())
+                results.put( digest.getKey(), digest.getValue().get() );
+        }
+        catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException( "Interrupted while digesting." );
+        }
+        catch (final ExecutionException e) {
+            // Fork-join pools wrap checked exceptions thrown by tasks.
+            for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause())
+                if (cause instanceof IOException)
+                    throw (IOException) cause;
+
+            Throwables.throwIfUnchecked( e.getCause() );
+            throw new IllegalStateException( e.getCause() );
+        }
+        finally {
+            for (final Future<byte[]> digest : digests.values())
+                digest.cancel( true );
+        }
+
+        return results.build();
+    }
+
+
+    /**
+     * A digest and a buffer for use by one thread at a time.
+     */
+    private static class Scratch {
+
+        final MessageDigest digest;
+        final byte[]        buffer = new byte[BUFFER_SIZE];
+        boolean             inUse;
+
+        Scratch(final MessageDigest digest) {
+
+            this.digest = digest;
+        }
+
+        void release() {
+
+            inUse = false;
+        }
     }
 }
@@ -16,27 +16,51 @@
 package com.lyndir.lhunath.opal.system;
 
 import com.google.common.io.ByteStreams;
-import com.google.common.io.CharStreams;
-import com.lyndir.lhunath.opal.system.dummy.NullOutputStream;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.lyndir.lhunath.opal.system.logging.Logger;
 import java.io.*;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
-import java.util.Arrays;
-import java.util.LinkedList;
+import java.util.*;
+import java.util.concurrent.*;
 import javax.annotation.Nullable;
 
 
 /**
  * <i>Shell - A convenience class to execute processes for different purposes.</i><br> <br>
  *
+ * <p> Processes are started with a {@link ProcessBuilder}.  Each of their output streams is either redirected by the operating system
+ * (see {@link Output#inherit()}, {@link Output#toFile(File)} and {@link Output#discard()}) or pumped into a stream or a bounded capture
+ * buffer by a thread from a shared pool.  Every process run by {@link #execAsync(Output, Output, long, TimeUnit, File, String...)}
+ * also occupies a pool thread that waits for it to exit, for as long as the process runs.  Pool threads are reused across processes,
+ * so running many short-lived processes does not start new threads for each of them. </p>
+ *
  * @author lhunath
  */
 @SuppressWarnings("UseOfSystemOutOrSystemErr")
 public final class Shell {
 
-    private static final Logger logger      = Logger.get( Shell.class );
-    private static final int    BUFFER_SIZE = 4096;
+    private static final Logger logger                = Logger.get( Shell.class );
+    private static final int    BUFFER_SIZE           = 4096;
+    private static final int    SHEBANG_LIMIT         = 256;
+    private static final int    DEFAULT_CAPTURE_LIMIT = 1 << 20;
+    private static final File   NULL_FILE             = new File(
+            System.getProperty( "os.name" ).startsWith( "Windows" )? "NUL": "/dev/null" );
+
+    // Unbounded, so that a pump never waits on a pool thread that is blocked on another process; idle threads expire.
+    private static final ExecutorService          pumpExecutor    = new ThreadPoolExecutor(
+            0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+            new ThreadFactoryBuilder().setNameFormat( "Shell pump %d" ).setDaemon( true ).build() );
+    private static final ScheduledExecutorService timeoutExecutor = createTimeoutExecutor();
+
+    private static ScheduledExecutorService createTimeoutExecutor() {
+
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(
+                1, new ThreadFactoryBuilder().setNameFormat( "Shell timeout %d" ).setDaemon( true ).build() );
+        executor.setRemoveOnCancelPolicy( true );
+
+        return executor;
+    }
 
     /**
      * Run an application or shell script and redirect its stdout and stderr to our stdout and stderr.
@@ -84,8 +108,8 @@ public final class Shell {
     /**
      * Run an application or shell script and redirect its stdout and stderr to the given output streams. The call will not block.
      *
-     * @param out     The stream to write the process' standard output into.
-     * @param err     The stream to write the process' standard error into.
+     * @param out     The stream to write the process' standard output into.  It is not closed.
+     * @param err     The stream to write the process' standard error into.  It is not closed.
      * @param currDir The current directory for the child process.
      * @param cmd     The command to invoke for running the new process.
      *
@@ -94,97 +118,429 @@ public final class Shell {
     @Nullable
     public static Process exec(final OutputStream out, final OutputStream err, final File currDir, final String... cmd) {
 
-        int      bytesRead;
-        char[]   buffer  = new char[100];
-        String[] execCmd = cmd;
+        try {
+            Process process = start( Output.to( out ), Output.to( err ), currDir, cmd );
+            pump( process, out, err ).whenComplete( (result, failure) -> {
+                if (failure != null)
+                    logger.err( failure, "Couldn't read from process %s or write its output!", cmd[0] );
+            } );
 
-        try (Reader reader = new InputStreamReader( new FileInputStream( new File( currDir, cmd[0] ) ), StandardCharsets.US_ASCII )) {
-            bytesRead = reader.read( buffer );
+            return process;
         }
         catch (final IOException e) {
-            logger.err( e, "Failed to open the file to execute!" );
+            logger.err( e, "Could not start process %s!", cmd[0] );
             return null;
         }
+    }
 
-        /* Check whether this is a shell script and if so, what interpreter to use. */
-        // FIXME: Hashbang can contain one argument
-        String head = new String( buffer, 0, bytesRead );
-        int    eol  = head.indexOf( System.lineSeparator() );
-        if (eol > 0) {
-            head = head.substring( 0, eol );
-            if ("#!".equals( head.substring( 0, 2 ) )) {
-                String             shell   = head.substring( 2 );
-                LinkedList<String> cmdList = new LinkedList<>( Arrays.asList( cmd ) );
-                cmdList.addFirst( shell.trim() );
-                execCmd = cmdList.toArray( cmd );
+    /**
+     * Run an application or shell script and read all of its standard output into a string.  Its standard error is discarded.
+     *
+     * @param charset The character set to decode the process' output with.
+     * @param currDir The current directory for the child process.
+     * @param cmd     The command to invoke for running the new process.
+     *
+     * @return The standard output of the process, or {@code null} if it couldn't be started or read.
+     */
+    @Nullable
+    public static String execRead(final Charset charset, final File currDir, final String... cmd) {
+
+        try {
+            // Not limited to the default capture size: this has always returned all of the output.
+            Result result = execAsync( Output.capture( Integer.MAX_VALUE ), Output.discard(), currDir, cmd ).get();
+            if (result.isOutTruncated()) {
+                logger.err( "Output of %s exceeded %d bytes, too large to be read into a string.", cmd[0], Integer.MAX_VALUE );
+                return null;
             }
+
+            return result.getOut( charset );
+        }
+        catch (final InterruptedException e) {
+            logger.err( e, "Interrupted while reading from the process!" );
+            Thread.currentThread().interrupt();
         }
+        catch (final ExecutionException e) {
+            logger.err( e.getCause(), "Failed to run or read from the process!" );
+        }
+
+        return null;
+    }
+
+    /**
+     * Run an application or shell script without a time limit.
+     *
+     * @see #execAsync(Output, Output, long, TimeUnit, File, String...)
+     */
+    public static CompletableFuture<Result> execAsync(final Output out, final Output err, final File currDir, final String... cmd) {
 
+        return execAsync( out, err, 0, TimeUnit.MILLISECONDS, currDir, cmd );
+    }
+
+    /**
+     * Run an application or shell script.  The call will not block.
+     *
+     * <p> The process' standard input is closed.  The returned future completes once the process has exited and its output has been
+     * handled.  Cancelling the future, or its timeout expiring, forcibly destroys the process. </p>
+     *
+     * @param out      How to handle the process' standard output.
+     * @param err      How to handle the process' standard error.
+     * @param timeout  How long the process may run.  When it expires, the future fails with a {@link TimeoutException}.  {@code 0}
+     *                 allows it to run indefinitely.
+     * @param timeUnit The unit of the timeout.
+     * @param currDir  The current directory for the child process.
+     * @param cmd      The command to invoke for running the new process.
+     *
+     * @return A future for the process' exit status and captured output.  It fails with an {@link IOException} if the process could not
+     * be started or its output could not be handled.
+     */
+    public static CompletableFuture<Result> execAsync(final Output out, final Output err, final long timeout, final TimeUnit timeUnit,
+                                                      final File currDir, final String... cmd) {
+
+        CompletableFuture<Result> future = new CompletableFuture<>();
+        Process process;
         try {
-            @SuppressWarnings({ "CallToRuntimeExec" })
-            final Process process = Runtime.getRuntime().exec( execCmd, null, currDir );
+            process = start( out, err, currDir, cmd );
+            process.getOutputStream().close();
+        }
+        catch (final IOException e) {
+            future.completeExceptionally( e );
+            return future;
+        }
 
-            new Thread( new Runnable() {
+        OutputStream outSink = out.newSink(), errSink = err.newSink();
+        pump( process, outSink, errSink ).thenRunAsync( () -> {
+            try {
+                future.complete( new Result( process.waitFor(), outSink, errSink ) );
+            }
+            catch (final InterruptedException e) {
+                future.completeExceptionally( e );
+            }
+        }, pumpExecutor ).whenComplete( (result, failure) -> {
+            if (failure != null)
+                future.completeExceptionally( failure instanceof CompletionException? failure.getCause(): failure );
+        } );
 
-                @Override
-                public void run() {
+        if (timeout > 0) {
+            ScheduledFuture<?> timer = timeoutExecutor.schedule( () -> future.completeExceptionally( new TimeoutException(
+                    String.format( "%s did not complete within %d %s.", cmd[0], timeout, timeUnit ) ) ), timeout, timeUnit );
+            future.whenComplete( (result, failure) -> timer.cancel( false ) );
+        }
+        future.whenComplete( (result, failure) -> {
+            if (failure != null)
+                process.destroyForcibly();
+        } );
 
-                    try (InputStream inputStream = process.getInputStream()) {
-                        ByteStreams.copy( inputStream, out );
-                    }
-                    catch (final IOException e) {
-                        logger.err( e, "Couldn't read from process or write to stdout!" );
-                    }
-                }
-            }, cmd[0] + " stdout" ).start();
+        return future;
+    }
 
-            new Thread( new Runnable() {
+    private static Process start(final Output out, final Output err, final File currDir, final String... cmd)
+            throws IOException {
 
-                @Override
-                public void run() {
+        ProcessBuilder builder = new ProcessBuilder( interpreted( currDir, cmd ) ).directory( currDir );
+        if (out.redirect != null)
+            builder.redirectOutput( out.redirect );
+        if (err.redirect != null)
+            builder.redirectError( err.redirect );
 
-                    try (InputStream errorStream = process.getErrorStream()) {
-                        ByteStreams.copy( errorStream, err );
-                    }
-                    catch (final IOException e) {
-                        logger.err( e, "Couldn't read from process or write to stderr!" );
-                    }
-                }
-            }, cmd[0] + " stderr" ).start();
+        return builder.start();
+    }
 
-            return process;
+    /**
+     * @return The command with the interpreter named by the script's shebang line (and its optional argument) put in front of it, or the
+     * command itself if it doesn't name a script.
+     */
+    private static String[] interpreted(final File currDir, final String... cmd) {
+
+        File file = new File( cmd[0] );
+        if (!file.isAbsolute())
+            file = new File( currDir, cmd[0] );
+        if (!file.isFile())
+            return cmd;
+
+        byte[] head = new byte[SHEBANG_LIMIT];
+        int length;
+        try (InputStream in = new FileInputStream( file )) {
+            length = ByteStreams.read( in, head, 0, head.length );
         }
         catch (final IOException e) {
-            logger.err( e, "Could not start process %s!", cmd[0] );
-            return null;
+            logger.dbg( e, "Couldn't read %s, executing it as is.", file );
+            return cmd;
+        }
+        if (length < 2 || head[0] != '#' || head[1] != '!')
+            return cmd;
+
+        int eol = 2;
+        while (eol < length && head[eol] != '\n')
+            ++eol;
+        String shebang = new String( head, 2, eol - 2, StandardCharsets.US_ASCII ).trim();
+        if (shebang.isEmpty())
+            return cmd;
+
+        List<String> execCmd = new ArrayList<>( cmd.length + 2 );
+        int argument = indexOfWhitespace( shebang );
+        if (argument < 0)
+            execCmd.add( shebang );
+        else {
+            execCmd.add( shebang.substring( 0, argument ) );
+            execCmd.add( shebang.substring( argument ).trim() );
         }
+        Collections.addAll( execCmd, cmd );
+
+        return execCmd.toArray( new String[execCmd.size()] );
+    }
+
+    private static int indexOfWhitespace(final String string) {
+
+        for (int i = 0; i < string.length(); ++i)
+            if (Character.isWhitespace( string.charAt( i ) ))
+                return i;
+
+        return -1;
     }
 
     /**
-     * Run an application or shell script and read its standard output and standard error into a string.
-     *
-     * @param charset The character set to decode the process' output with.
-     * @param currDir The current directory for the child process.
-     * @param cmd     The command to invoke for running the new process.
-     *
-     * @return The standard output and standard error of the process.
+     * @return A future that completes when the process' standard output and standard error streams that aren't redirected have been
+     * written to their sinks.
      */
-    @Nullable
-    public static String execRead(final Charset charset, final File currDir, final String... cmd) {
+    private static CompletableFuture<Void> pump(final Process process, @Nullable final OutputStream outSink,
+                                                @Nullable final OutputStream errSink) {
 
-        try {
-            PipedOutputStream output = new PipedOutputStream();
-            exec( output, new NullOutputStream(), currDir, cmd );
+        List<CompletableFuture<Void>> pumps = new ArrayList<>( 2 );
+        if (outSink != null)
+            pumps.add( pump( process.getInputStream(), outSink ) );
+        if (errSink != null)
+            pumps.add( pump( process.getErrorStream(), errSink ) );
+
+        return CompletableFuture.allOf( pumps.toArray( new CompletableFuture<?>[pumps.size()] ) );
+    }
+
+    private static CompletableFuture<Void> pump(final InputStream from, final OutputStream to) {
+
+        return CompletableFuture.runAsync( () -> {
+            try (InputStream in = from) {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                for (int read; (read = in.read( buffer )) >= 0; )
+                    to.write( buffer, 0, read );
+            }
+            catch (final IOException e) {
+                throw new CompletionException( e );
+            }
+        }, pumpExecutor );
+    }
+
+
+    /**
+     * How to handle one of a process' output streams.
+     */
+    public static final class Output {
+
+        private static final Output INHERIT = new Output( ProcessBuilder.Redirect.INHERIT, null, 0 );
+        private static final Output DISCARD = new Output( ProcessBuilder.Redirect.to( NULL_FILE ), null, 0 );
 
-            return CharStreams.toString( new InputStreamReader( new PipedInputStream( output ), charset ) );
+        @Nullable
+        private final ProcessBuilder.Redirect redirect;
+        @Nullable
+        private final OutputStream            stream;
+        private final int                     captureLimit;
+
+        private Output(@Nullable final ProcessBuilder.Redirect redirect, @Nullable final OutputStream stream, final int captureLimit) {
+
+            this.redirect = redirect;
+            this.stream = stream;
+            this.captureLimit = captureLimit;
         }
-        catch (final FileNotFoundException e) {
-            logger.err( e, "Command to execute was not found!" );
+
+        /**
+         * @return The output goes to where ours goes.  No thread is needed to pump it.
+         */
+        public static Output inherit() {
+
+            return INHERIT;
         }
-        catch (final IOException e) {
-            logger.err( e, "Failed to read from the process!" );
+
+        /**
+         * @return The output is thrown away by the operating system.  No thread is needed to pump it.
+         */
+        public static Output discard() {
+
+            return DISCARD;
         }
 
-        return null;
+        /**
+         * @return The output replaces the given file's contents.  No thread is needed to pump it.
+         */
+        public static Output toFile(final File file) {
+
+            return new Output( ProcessBuilder.Redirect.to( file ), null, 0 );
+        }
+
+        /**
+         * @return The output is appended to the given file.  No thread is needed to pump it.
+         */
+        public static Output appendTo(final File file) {
+
+            return new Output( ProcessBuilder.Redirect.appendTo( file ), null, 0 );
+        }
+
+        /**
+         * @return The output is written to the given stream as it arrives.  The stream is not closed.
+         */
+        public static Output to(final OutputStream stream) {
+
+            return new Output( null, stream, 0 );
+        }
+
+        /**
+         * @return The first megabyte of output is captured in the {@link Result}.
+         */
+        public static Output capture() {
+
+            return capture( DEFAULT_CAPTURE_LIMIT );
+        }
+
+        /**
+         * @param limit The maximum amount of bytes to capture.  Output beyond it is read and counted, but not kept.
+         *
+         * @return The first {@code limit} bytes of output are captured in the {@link Result}.
+         */
+        public static Output capture(final int limit) {
+
+            return new Output( null, null, limit );
+        }
+
+        @Nullable
+        OutputStream newSink() {
+
+            if (redirect != null)
+                return null;
+            if (stream != null)
+                return stream;
+
+            return new CaptureStream( captureLimit );
+        }
+    }
+
+
+    /**
+     * The outcome of a process run by {@link #execAsync(Output, Output, long, TimeUnit, File, String...)}.
+     */
+    public static final class Result {
+
+        private static final byte[] NO_OUTPUT = new byte[0];
+
+        private final int    exitValue;
+        private final byte[] out;
+        private final long   outLength;
+        private final byte[] err;
+        private final long   errLength;
+
+        Result(final int exitValue, @Nullable final OutputStream outSink, @Nullable final OutputStream errSink) {
+
+            this.exitValue = exitValue;
+            out = outSink instanceof CaptureStream? ((CaptureStream) outSink).toByteArray(): NO_OUTPUT;
+            outLength = outSink instanceof CaptureStream? ((CaptureStream) outSink).getLength(): 0;
+            err = errSink instanceof CaptureStream? ((CaptureStream) errSink).toByteArray(): NO_OUTPUT;
+            errLength = errSink instanceof CaptureStream? ((CaptureStream) errSink).getLength(): 0;
+        }
+
+        public int getExitValue() {
+
+            return exitValue;
+        }
+
+        /**
+         * @return The captured standard output, or an empty array if it wasn't captured.
+         */
+        public byte[] getOut() {
+
+            return out.clone();
+        }
+
+        public String getOut(final Charset charset) {
+
+            return new String( out, charset );
+        }
+
+        /**
+         * @return {@code true} if the process wrote more standard output than could be captured.
+         */
+        public boolean isOutTruncated() {
+
+            return outLength > out.length;
+        }
+
+        /**
+         * @return The captured standard error, or an empty array if it wasn't captured.
+         */
+        public byte[] getErr() {
+
+            return err.clone();
+        }
+
+        public String getErr(final Charset charset) {
+
+            return new String( err, charset );
+        }
+
+        /**
+         * @return {@code true} if the process wrote more standard error than could be captured.
+         */
+        public boolean isErrTruncated() {
+
+            return errLength > err.length;
+        }
+
+        @Override
+        public String toString() {
+
+            return String.format( "{Result: exitValue=%d, out=%d bytes, err=%d bytes}", exitValue, outLength, errLength );
+        }
+    }
+
+
+    /**
+     * Keeps the first bytes written to it, up to a limit, and counts the rest.  Written to by a single pump thread.
+     */
+    private static final class CaptureStream extends OutputStream {
+
+        private final int    limit;
+        private       byte[] buffer = new byte[BUFFER_SIZE];
+        private       int    count;
+        private       long   length;
+
+        CaptureStream(final int limit) {
+
+            this.limit = limit;
+        }
+
+        @Override
+        public void write(final int b) {
+
+            write( new byte[]{ (byte) b }, 0, 1 );
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) {
+
+            length += len;
+            int kept = Math.min( len, limit - count );
+            if (kept <= 0)
+                return;
+
+            if (count + kept > buffer.length)
+                buffer = Arrays.copyOf( buffer, (int) Math.min( limit, Math.max( count + kept, buffer.length * 2L ) ) );
+            System.arraycopy( b, off, buffer, count, kept );
+            count += kept;
+        }
+
+        byte[] toByteArray() {
+
+            return Arrays.copyOf( buffer, count );
+        }
+
+        long getLength() {
+
+            return length;
+        }
     }
 }
@@ -0,0 +1,149 @@
+/*
+ *   Copyright 2010, Maarten Billemont
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.lyndir.lhunath.opal.system.util;
+
+import static com.lyndir.lhunath.opal.system.util.ObjectUtils.*;
+
+import com.google.common.base.Verify;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+import org.jetbrains.annotations.NonNls;
+
+
+/**
+ * <h2>{@link ExpansionTemplate}<br> <sub>A source string parsed for {@link StringUtils#expand(String, String, Function)}.</sub></h2>
+ *
+ * <p> The source is parsed once into literal segments and expansion slots, each with its key and optional default value.  Expanding the
+ * template then appends the segments and the slots' values in a single pass. </p>
+ *
+ * @author lhunath
+ */
+public final class ExpansionTemplate {
+
+    private static final int EXPANSION_SIZE_ESTIMATE = 16;
+
+    // literals[s] precedes keys[s]; the last literal follows the last key.
+    private final String[] literals;
+    private final String[] keys;
+    private final String[] fallbacks;
+    private final int      literalsLength;
+
+    private ExpansionTemplate(final List<String> literals, final List<String> keys, final List<String> fallbacks) {
+
+        this.literals = literals.toArray( new String[literals.size()] );
+        this.keys = keys.toArray( new String[keys.size()] );
+        this.fallbacks = fallbacks.toArray( new String[fallbacks.size()] );
+
+        int length = 0;
+        for (final String literal : literals)
+            length += literal.length();
+        literalsLength = length;
+    }
+
+    /**
+     * Parse a source string for expansion words: curly-braced words preceded by the {@code keyPrefix}, such as {@code ${karma}} or
+     * {@code ${karma:good}}.
+     *
+     * @param source    The string to search for expansion words.
+     * @param keyPrefix The string that should come just before the opening curly-brace.
+     *
+     * @return The template for expanding the source.
+     */
+    public static ExpansionTemplate compile(final String source, @NonNls final String keyPrefix) {
+
+        List<String> literals = new ArrayList<>();
+        List<String> keys = new ArrayList<>();
+        List<String> fallbacks = new ArrayList<>();
+
+        String open = keyPrefix + '{';
+        int literalStart = 0;
+        for (int index = source.indexOf( open ); index >= 0; ) {
+            int keyStart = index + open.length(), keyEnd = keyStart;
+            while (keyEnd < source.length() && source.charAt( keyEnd ) != '}' && source.charAt( keyEnd ) != ':')
+                ++keyEnd;
+
+            int end = -1;
+            String fallback = null;
+            if (keyEnd < source.length())
+                if (source.charAt( keyEnd ) == '}')
+                    end = keyEnd + 1;
+                else {
+                    int fallbackEnd = source.indexOf( '}', keyEnd + 1 );
+                    if (fallbackEnd >= 0) {
+                        fallback = source.substring( keyEnd + 1, fallbackEnd );
+                        end = fallbackEnd + 1;
+                    }
+                }
+
+            if (end < 0)
+                // Not terminated: not an expansion word.
+                index = source.indexOf( open, index + 1 );
+            else {
+                literals.add( source.substring( literalStart, index ) );
+                keys.add( source.substring( keyStart, keyEnd ) );
+                fallbacks.add( fallback );
+                literalStart = end;
+                index = source.indexOf( open, end );
+            }
+        }
+        literals.add( source.substring( literalStart ) );
+
+        return new ExpansionTemplate( literals, keys, fallbacks );
+    }
+
+    /**
+     * @param keyToExpansion The function that determines the value to expand an expansion word into.  It is applied to the words in
+     *                       order of their appearance.
+     *
+     * @return The expanded source string.
+     *
+     * @see StringUtils#expand(String, String, Function)
+     */
+    public String expand(final Function<String, String> keyToExpansion) {
+
+        if (keys.length == 0)
+            return literals[0];
+
+        StringBuilder expanded = new StringBuilder( literalsLength + keys.length * EXPANSION_SIZE_ESTIMATE );
+        expand( expanded, keyToExpansion );
+
+        return expanded.toString();
+    }
+
+    /**
+     * Append the expanded source string to the given builder.
+     *
+     * @see #expand(Function)
+     */
+    public void expand(final StringBuilder expanded, final Function<String, String> keyToExpansion) {
+
+        for (int s = 0; s < keys.length; ++s) {
+            String value = keyToExpansion.apply( keys[s] );
+            expanded.append( literals[s] ).append( Verify.verifyNotNull( ifNotNullElse( value, fallbacks[s] ), //
+                                                                         "No value for required expansion key: %s", keys[s] ) );
+        }
+        expanded.append( literals[keys.length] );
+    }
+
+    /**
+     * @return The amount of expansion words in the source string.
+     */
+    public int getExpansions() {
+
+        return keys.length;
+    }
+}
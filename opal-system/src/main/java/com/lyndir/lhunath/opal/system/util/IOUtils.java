@@ -1,13 +1,20 @@
 package com.lyndir.lhunath.opal.system.util;
 
-import com.google.common.io.*;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.ByteSource;
+import com.google.common.io.CharStreams;
 import com.lyndir.lhunath.opal.system.logging.Logger;
-import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
-import java.util.Enumeration;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.stream.Stream;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 import javax.annotation.Nullable;
@@ -26,6 +33,14 @@ public abstract class IOUtils {
 
     private static final Pattern PATH_SEPARATORS = Pattern.compile( "[\\\\/]+" );
 
+    // Charsets in which line terminators are always the single bytes '\r' and '\n' and bytes below 0x80 are always ASCII.
+    private static final Set<Charset> ASCII_COMPATIBLE = ImmutableSet.of( StandardCharsets.UTF_8, StandardCharsets.US_ASCII,
+                                                                           StandardCharsets.ISO_8859_1 );
+    private static final long         MAP_THRESHOLD    = 1024 * 1024;
+    private static final String       REGEX_META       = "\\^$.|?*+()[]{}";
+    private static final String       QUANTIFIERS      = "?*+{";
+    private static final int          MINIMUM_LITERAL  = 2;
+
     public static ByteSource supply(final byte[] supply) {
 
         return ByteSource.wrap( supply );
@@ -92,22 +107,186 @@ public abstract class IOUtils {
      *
      * @throws IOException The file, or a file in the directory could not be read.
      */
-    @SuppressFBWarnings({ "RCN_REDUNDANT_NULLCHECK_OF_NULL_VALUE" })
     public static String grep(final Charset charset, final Pattern pattern, final File file, final int group)
             throws IOException {
 
-        File[] files = file.listFiles();
-        if (files != null) {
-            StringBuilder resultBuilder = new StringBuilder();
-            for (final File child : files)
-                resultBuilder.append( grep( charset, pattern, child, group ) );
+        StringBuilder resultBuilder = new StringBuilder();
+        try (Stream<GrepMatch> matches = grepMatches( charset, pattern, file.toPath(), group )) {
+            matches.forEachOrdered( match -> resultBuilder.append( match.getValue() ).append( System.lineSeparator() ) );
+        }
+        catch (final UncheckedIOException e) {
+            throw e.getCause();
+        }
 
-            return resultBuilder.toString();
+        return resultBuilder.toString();
+    }
+
+    /**
+     * Search for the given pattern in the given file or, if it is a directory, in all regular files beneath it.  The search is line-based
+     * and does not take newlines into account, nor does it have the ability to cross them.
+     *
+     * <p> Files are searched in parallel on the common fork-join pool.  Files in an ASCII-compatible charset (such as UTF-8 or ISO-8859-1)
+     * are scanned as bytes, and only lines that contain the pattern's literal prefix (if it has one) are decoded and matched. </p>
+     *
+     * @param charset The character set to decode the file's bytes with.
+     * @param pattern The pattern to search for.
+     * @param path    The file or directory to search in.
+     * @param group   The group number in the pattern to return as the matches' value; or 0 to return the whole matching line.
+     *
+     * @return The matches, in the order of the files and of the lines in them.  Close the stream when done with it.  A file that can't be
+     *         read causes an {@link UncheckedIOException} while the stream is consumed.
+     *
+     * @throws IOException The directory could not be opened.
+     * @see #grepMatches(Charset, Pattern, String, Path, int)
+     */
+    public static Stream<GrepMatch> grepMatches(final Charset charset, final Pattern pattern, final Path path, final int group)
+            throws IOException {
+
+        return grepMatches( charset, pattern, literalPrefix( pattern ), path, group );
+    }
+
+    /**
+     * Search for the given pattern in the given file or, if it is a directory, in all regular files beneath it.
+     *
+     * @param literal Text that every line matching the pattern contains, or {@code null} if there is none.  Lines without it are skipped
+     *                without evaluating the pattern.
+     *
+     * @see #grepMatches(Charset, Pattern, Path, int)
+     */
+    public static Stream<GrepMatch> grepMatches(final Charset charset, final Pattern pattern, @Nullable final String literal,
+                                                final Path path, final int group)
+            throws IOException {
+
+        Stream<Path> files = Files.walk( path );
+        return files.filter( Files::isRegularFile ).parallel().flatMap( file -> {
+            try {
+                return grepFile( charset, pattern, Strings.emptyToNull( literal ), file, group ).stream();
+            }
+            catch (final IOException e) {
+                throw new UncheckedIOException( e );
+            }
+        } ).onClose( files::close );
+    }
+
+    private static List<GrepMatch> grepFile(final Charset charset, final Pattern pattern, @Nullable final String literal, final Path file,
+                                            final int group)
+            throws IOException {
+
+        if (!ASCII_COMPATIBLE.contains( charset ))
+            return grepLines( charset, pattern, literal, file, group );
+
+        ByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open( file, StandardOpenOption.READ )) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE)
+                // Too large to scan as one buffer.
+                return grepLines( charset, pattern, literal, file, group );
+
+            if (size > MAP_THRESHOLD)
+                buffer = channel.map( FileChannel.MapMode.READ_ONLY, 0, size );
+            else {
+                buffer = ByteBuffer.allocate( (int) size );
+                while (buffer.hasRemaining() && channel.read( buffer ) >= 0) {
+                    // Fill the buffer.
+                }
+                buffer.flip();
+            }
         }
 
-        try (Reader reader = new InputStreamReader( new FileInputStream( file ), charset ) ) {
-            return grep( pattern, reader, group );
+        List<GrepMatch> matches = new ArrayList<>();
+        // A literal that the charset can't encode can't be looked for in the bytes.
+        byte[] needle = literal == null || !charset.newEncoder().canEncode( literal )? null: literal.getBytes( charset );
+        byte[] lineBytes = new byte[0];
+        long lineNumber = 0;
+        for (int lineStart = 0, limit = buffer.limit(); lineStart < limit; ) {
+            // Lines end in '\n', '\r' or "\r\n", like BufferedReader's.
+            int lineEnd = lineStart;
+            for (byte b; lineEnd < limit && (b = buffer.get( lineEnd )) != '\n' && b != '\r'; )
+                ++lineEnd;
+            ++lineNumber;
+
+            if (needle == null || contains( buffer, lineStart, lineEnd, needle )) {
+                int length = lineEnd - lineStart;
+                if (lineBytes.length < length)
+                    lineBytes = new byte[Math.max( length, lineBytes.length * 2 )];
+                ByteBuffer line = buffer.duplicate();
+                line.position( lineStart );
+                line.get( lineBytes, 0, length );
+
+                match( pattern, file, lineNumber, new String( lineBytes, 0, length, charset ), group, matches );
+            }
+
+            lineStart = lineEnd + 1;
+            if (lineStart < limit && buffer.get( lineEnd ) == '\r' && buffer.get( lineStart ) == '\n')
+                ++lineStart;
+        }
+
+        return matches;
+    }
+
+    private static List<GrepMatch> grepLines(final Charset charset, final Pattern pattern, @Nullable final String literal,
+                                             final Path file, final int group)
+            throws IOException {
+
+        List<GrepMatch> matches = new ArrayList<>();
+        // Unlike Files.newBufferedReader, this replaces malformed input instead of failing on it.
+        try (BufferedReader reader = new BufferedReader( new InputStreamReader( Files.newInputStream( file ), charset ) )) {
+            long lineNumber = 0;
+            for (String line; (line = reader.readLine()) != null; ) {
+                ++lineNumber;
+                if (literal == null || line.contains( literal ))
+                    match( pattern, file, lineNumber, line, group, matches );
+            }
         }
+
+        return matches;
+    }
+
+    private static void match(final Pattern pattern, final Path file, final long lineNumber, final String line, final int group,
+                              final Collection<GrepMatch> matches) {
+
+        Matcher matcher = pattern.matcher( line );
+        if (matcher.find())
+            matches.add( new GrepMatch( file, lineNumber, line, matcher.group( group ) ) );
+    }
+
+    private static boolean contains(final ByteBuffer buffer, final int start, final int end, final byte[] needle) {
+
+        if (needle.length == 0)
+            return true;
+
+        byte first = needle[0];
+        for (int b = start, last = end - needle.length; b <= last; ++b)
+            if (buffer.get( b ) == first) {
+                int n = 1;
+                while (n < needle.length && buffer.get( b + n ) == needle[n])
+                    ++n;
+                if (n == needle.length)
+                    return true;
+            }
+
+        return false;
+    }
+
+    /**
+     * @return The text that any match of the pattern must start with, or {@code null} if it has no such text or it can't be determined.
+     */
+    @Nullable
+    static String literalPrefix(final Pattern pattern) {
+
+        String regex = pattern.pattern();
+        if (pattern.flags() != 0 || regex.indexOf( '|' ) >= 0)
+            return null;
+
+        int start = regex.startsWith( "^" )? 1: 0, end = start;
+        while (end < regex.length() && REGEX_META.indexOf( regex.charAt( end ) ) < 0)
+            ++end;
+
+        // A quantifier makes the character before it optional.
+        if (end < regex.length() && QUANTIFIERS.indexOf( regex.charAt( end ) ) >= 0)
+            --end;
+
+        return end - start < MINIMUM_LITERAL? null: regex.substring( start, end );
     }
 
     /**
@@ -136,4 +315,63 @@ public abstract class IOUtils {
 
         return resultBuilder.toString();
     }
+
+    /**
+     * A line that matched a {@link #grepMatches(Charset, Pattern, Path, int) grep}.
+     */
+    public static class GrepMatch {
+
+        private final Path   file;
+        private final long   lineNumber;
+        private final String line;
+        @Nullable
+        private final String value;
+
+        GrepMatch(final Path file, final long lineNumber, final String line, @Nullable final String value) {
+
+            this.file = file;
+            this.lineNumber = lineNumber;
+            this.line = line;
+            this.value = value;
+        }
+
+        /**
+         * @return The file that contains the line.
+         */
+        public Path getFile() {
+
+            return file;
+        }
+
+        /**
+         * @return The number of the line in the file, starting at 1.
+         */
+        public long getLineNumber() {
+
+            return lineNumber;
+        }
+
+        /**
+         * @return The line, without its line terminator.
+         */
+        public String getLine() {
+
+            return line;
+        }
+
+        /**
+         * @return The requested group of the match, or {@code null} if the group didn't participate in it.
+         */
+        @Nullable
+        public String getValue() {
+
+            return value;
+        }
+
+        @Override
+        public String toString() {
+
+            return String.format( "%s:%d:%s", file, lineNumber, line );
+        }
+    }
 }
@@ -17,14 +17,12 @@ package com.lyndir.lhunath.opal.system.util;
 
 import static com.lyndir.lhunath.opal.system.util.ObjectUtils.*;
 
-import com.google.common.base.Verify;
+import com.google.common.cache.*;
 import com.google.common.collect.Maps;
-import com.google.common.collect.Sets;
 import java.net.URL;
 import java.text.MessageFormat;
 import java.util.*;
 import java.util.function.Function;
-import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import javax.annotation.Nullable;
 import org.jetbrains.annotations.NonNls;
@@ -43,6 +41,13 @@ public abstract class StringUtils {
     private static final Pattern TRAILING_SLASHES = Pattern.compile( "/+$" );
     private static final Pattern NON_FINAL_PATH   = Pattern.compile( "^.*/" );
 
+    private static final int                                                          MAXIMUM_TEMPLATES       = 1024;
+    // Larger sources are compiled on every expansion rather than kept alive by the cache.
+    private static final int                                                          MAXIMUM_TEMPLATE_LENGTH = 4096;
+    private static final LoadingCache<Map.Entry<String, String>, ExpansionTemplate> templates               = //
+            CacheBuilder.newBuilder().maximumSize( MAXIMUM_TEMPLATES ).build( CacheLoader.from(
+                    prefixAndSource -> ExpansionTemplate.compile( prefixAndSource.getValue(), prefixAndSource.getKey() ) ) );
+
     /**
      * Convenience shortcut for {@link MessageFormat#format(String, Object...)}.  Great for static imports.
      */
@@ -173,33 +178,15 @@ public abstract class StringUtils {
      *                       will be given to the function.  The expansion value will be expected as return value.
      *
      * @return An expanded version of the source string.
+     *
+     * @see ExpansionTemplate
      */
     public static String expand(final String source, @NonNls final String keyPrefix, final Function<String, String> keyToExpansion) {
 
-        Map<Integer, Integer> indexToEnds = Maps.newTreeMap();
-        Map<Integer, String> indexToExpansions = Maps.newTreeMap();
-
-        Pattern keyPattern = Pattern.compile( String.format( "%s\\{([^\\}:]*)(?::([^\\}]*))?\\}", Pattern.quote( keyPrefix ) ) );
-        Matcher matcher = keyPattern.matcher( source );
-        while (matcher.find()) {
-            int index = matcher.start();
-            String key = matcher.group( 1 );
-            String fallback = matcher.group( 2 );
-            String value = keyToExpansion.apply( key );
-
-            indexToEnds.put( index, matcher.end() );
-            indexToExpansions.put( index, Verify.verifyNotNull( ifNotNullElse( value, fallback ), //
-                                                                "No value for required expansion key: %s", key ) );
-        }
-
-        SortedSet<Integer> reverseIndexes = Sets.newTreeSet( Collections.reverseOrder() );
-        reverseIndexes.addAll( indexToExpansions.keySet() );
-
-        StringBuilder filtered = new StringBuilder( source );
-        for (final Integer index : reverseIndexes)
-            filtered.replace( index, indexToEnds.get( index ), indexToExpansions.get( index ) );
+        if (source.length() > MAXIMUM_TEMPLATE_LENGTH)
+            return ExpansionTemplate.compile( source, keyPrefix ).expand( keyToExpansion );
 
-        return filtered.toString();
+        return templates.getUnchecked( Maps.immutableEntry( keyPrefix, source ) ).expand( keyToExpansion );
     }
 
     public static String indent(final int indents) {